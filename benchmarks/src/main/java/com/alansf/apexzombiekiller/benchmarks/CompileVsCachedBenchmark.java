@@ -0,0 +1,61 @@
+package com.alansf.apexzombiekiller.benchmarks;
+
+import com.alansf.apexzombiekiller.service.JavaExecutionAdapter;
+import io.micrometer.core.instrument.Metrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What an execution costs when its source has to be compiled first versus when the compiled
+ * version is already cached. {@code coldCompile} changes the source on every call so each one
+ * misses the content-addressed cache; {@code cachedInvoke} runs the same version over and over.
+ * {@code backend} compares Janino (with its javac fallback) against javac alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompileVsCachedBenchmark {
+
+	@Param({"janino", "javac"})
+	public String backend;
+
+	private static final String TEMPLATE =
+			"import java.util.*;\n" +
+			"public class BenchRollup {\n" +
+			"  public Object run(Map<String, Object> payload) {\n" +
+			"    List<Map<String, Object>> rows = new ArrayList<>();\n" +
+			"    for (int i = 0; i < 10; i++) rows.add(Map.of(\"amount\", i * %d));\n" +
+			"    long total = 0;\n" +
+			"    for (Map<String, Object> r : rows) total += ((Number) r.get(\"amount\")).longValue();\n" +
+			"    return Map.of(\"total\", total);\n" +
+			"  }\n" +
+			"}\n";
+
+	private final Map<String, Object> payload = Map.of("recordId", "006000000000001");
+	private JavaExecutionAdapter adapter;
+	private String cachedSource;
+	private long version;
+
+	@Setup
+	public void setup() throws Exception {
+		adapter = new JavaExecutionAdapter(null, backend, Metrics.globalRegistry);
+		cachedSource = TEMPLATE.formatted(1);
+		adapter.execute("BenchRollup", "BenchRollup", cachedSource, payload);
+	}
+
+	@Benchmark
+	public Object coldCompile() throws Exception {
+		// A new constant per call gives a new content hash, so nothing is reused.
+		return adapter.execute("BenchRollup", "BenchRollup", TEMPLATE.formatted(++version + 1), payload);
+	}
+
+	@Benchmark
+	public Object cachedInvoke() throws Exception {
+		return adapter.execute("BenchRollupCached", "BenchRollup", cachedSource, payload);
+	}
+}
@@ -0,0 +1,65 @@
+package com.alansf.apexzombiekiller.benchmarks;
+
+import com.alansf.apexzombiekiller.service.Entrypoint;
+import com.alansf.apexzombiekiller.service.JavaExecutionAdapter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of dispatching into a compiled user class: the reflective run()/execute()/main
+ * probing JavaExecutionAdapter used to do on every call versus the MethodHandle resolved once at
+ * load time. {@code entry} selects which entrypoint the user class exposes, since the old path
+ * paid a NoSuchMethodException for every candidate it tried before the right one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EntrypointInvocationBenchmark {
+
+	@Param({"run", "execute", "main"})
+	public String entry;
+
+	private final Map<String, Object> payload = Map.of("recordId", "006000000000001");
+	private Class<?> type;
+	private Entrypoint entrypoint;
+
+	@Setup
+	public void setup() {
+		String body = switch (entry) {
+			case "run" -> "public void run() { }";
+			case "execute" -> "public void execute() { }";
+			default -> "public static void main(String[] args) { }";
+		};
+		String source = "public class BenchJob { " + body + " }";
+		type = new JavaExecutionAdapter().load("BenchJob", "BenchJob", source).type();
+		entrypoint = Entrypoint.resolve(type);
+	}
+
+	@Benchmark
+	public void reflectiveProbe() throws Exception {
+		// The pre-MethodHandle invocation path, kept verbatim for comparison.
+		try {
+			Object instance = type.getDeclaredConstructor().newInstance();
+			try {
+				type.getMethod("run").invoke(instance);
+				return;
+			} catch (NoSuchMethodException ignored) {}
+			try {
+				type.getMethod("execute").invoke(instance);
+				return;
+			} catch (NoSuchMethodException ignored) {}
+		} catch (NoSuchMethodException ignored) {
+		}
+		type.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+	}
+
+	@Benchmark
+	public Object cachedMethodHandle() throws Exception {
+		return entrypoint.invoke(payload);
+	}
+}
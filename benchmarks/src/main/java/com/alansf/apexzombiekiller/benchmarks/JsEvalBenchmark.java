@@ -0,0 +1,61 @@
+package com.alansf.apexzombiekiller.benchmarks;
+
+import com.alansf.apexzombiekiller.service.JsExecutionAdapter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of running approved JS. {@code pooledRun} calls a {@code run(payload)} function on
+ * a pre-warmed context; {@code scriptEval} uses a script without {@code run}, which is evaluated
+ * on a fresh context each call (the parsed source is still shared through the engine).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsEvalBenchmark {
+
+	private static final String RUN_FUNCTION =
+			"function run(payload) {\n" +
+			"  let total = 0;\n" +
+			"  for (const row of payload.rows) total += row.amount;\n" +
+			"  return { total: total, count: payload.rows.length };\n" +
+			"}\n";
+	private static final String SCRIPT =
+			"let total = 0;\n" +
+			"for (const row of payload.rows) total += row.amount;\n" +
+			"({ total: total, count: payload.rows.length });\n";
+
+	private JsExecutionAdapter adapter;
+	private Map<String, Object> payload;
+
+	@Setup
+	public void setup() throws Exception {
+		adapter = new JsExecutionAdapter();
+		payload = new HashMap<>();
+		payload.put("rows", List.of(Map.of("amount", 1), Map.of("amount", 2), Map.of("amount", 3)));
+		adapter.execute("BenchRun", RUN_FUNCTION, payload);
+		adapter.execute("BenchScript", SCRIPT, payload);
+	}
+
+	@TearDown
+	public void tearDown() {
+		adapter.close();
+	}
+
+	@Benchmark
+	public Object pooledRun() throws Exception {
+		return adapter.execute("BenchRun", RUN_FUNCTION, payload);
+	}
+
+	@Benchmark
+	public Object scriptEval() throws Exception {
+		return adapter.execute("BenchScript", SCRIPT, payload);
+	}
+}
@@ -0,0 +1,52 @@
+package com.alansf.apexzombiekiller.benchmarks;
+
+import com.alansf.apexzombiekiller.service.JsonUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JsonUtils.toJson on execution payloads and results, which every audit serializes at least
+ * twice (input and output). {@code rows} goes from a single-record trigger payload to a Flow
+ * batch of records.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonSerializationBenchmark {
+
+	@Param({"1", "200", "10000"})
+	public int rows;
+
+	private Map<String, Object> payload;
+
+	@Setup
+	public void setup() {
+		List<Map<String, Object>> records = new ArrayList<>(rows);
+		for (int i = 0; i < rows; i++) {
+			Map<String, Object> r = new LinkedHashMap<>();
+			r.put("Id", "006" + String.format("%012d", i));
+			r.put("Name", "Opportunity " + i);
+			r.put("Amount", 1000.0 + i);
+			r.put("StageName", i % 2 == 0 ? "Closed Won" : "Prospecting");
+			r.put("IsClosed", i % 2 == 0);
+			r.put("Splits", List.of(Map.of("OwnerId", "005000000000001", "Percent", 60), Map.of("OwnerId", "005000000000002", "Percent", 40)));
+			records.add(r);
+		}
+		payload = new LinkedHashMap<>();
+		payload.put("recordIds", records.stream().map(r -> r.get("Id")).toList());
+		payload.put("records", records);
+	}
+
+	@Benchmark
+	public String toJson() {
+		return JsonUtils.toJson(payload);
+	}
+}
@@ -0,0 +1,62 @@
+package com.alansf.apexzombiekiller.benchmarks;
+
+import com.alansf.apexzombiekiller.model.CodeBinding;
+import com.alansf.apexzombiekiller.model.TransformedCode;
+import com.alansf.apexzombiekiller.repo.BindingRepository;
+import com.alansf.apexzombiekiller.repo.CodeRepository;
+import com.alansf.apexzombiekiller.service.OpenApiService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OpenApiService.generateYaml, rebuilt on every /openapi-generated.yaml request, with 1k and 10k
+ * registered codes and a web binding each. The repositories are in-memory stand-ins so only the
+ * YAML assembly is measured, not the queries.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OpenApiGenerationBenchmark {
+
+	@Param({"1000", "10000"})
+	public int codes;
+
+	private OpenApiService service;
+
+	@Setup
+	public void setup() {
+		List<TransformedCode> all = new ArrayList<>(codes);
+		List<CodeBinding> web = new ArrayList<>(codes);
+		for (int i = 0; i < codes; i++) {
+			TransformedCode c = new TransformedCode();
+			c.id = UUID.randomUUID();
+			c.name = "Job" + i;
+			c.language = i % 2 == 0 ? "java" : "js";
+			all.add(c);
+			CodeBinding b = new CodeBinding();
+			b.name = c.name;
+			b.type = "web";
+			b.configJson = "{\"path\":\"/exec/" + c.name + "\"}";
+			web.add(b);
+		}
+		CodeRepository repo = new CodeRepository(null) {
+			@Override public List<TransformedCode> listAll() { return all; }
+		};
+		BindingRepository bindings = new BindingRepository(null) {
+			@Override public List<CodeBinding> listWeb() { return web; }
+		};
+		service = new OpenApiService(repo, bindings);
+	}
+
+	@Benchmark
+	public String generateYaml() {
+		return service.generateYaml("https://example.herokuapp.com");
+	}
+}
@@ -0,0 +1,53 @@
+package com.alansf.apexzombiekiller.benchmarks;
+
+import com.alansf.apexzombiekiller.service.JavaExecutionAdapter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Regex cost JavaExecutionAdapter pays on every execution before it can look up the cache:
+ * {@code stripPackage} and {@code detectClassName} over the whole source. {@code methods} scales
+ * the generated class toward the size of large transformed Apex batches.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SourceScanBenchmark {
+
+	@Param({"10", "500", "5000"})
+	public int methods;
+
+	private String source;
+	private String stripped;
+
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder("package com.demo.jobs;\n\nimport java.util.*;\n\n");
+		// Helper classes first so detectClassName has to scan past them to the public one.
+		sb.append("class Helper {\n  static int twice(int x) { return x * 2; }\n}\n\n");
+		sb.append("public class LargeJob {\n");
+		for (int i = 0; i < methods; i++) {
+			sb.append("  public Object step").append(i).append("(Map<String, Object> payload) {\n")
+					.append("    // class names in comments must not confuse the scan: class Fake").append(i).append("\n")
+					.append("    return payload.getOrDefault(\"k").append(i).append("\", Helper.twice(").append(i).append("));\n")
+					.append("  }\n");
+		}
+		sb.append("}\n");
+		source = sb.toString();
+		stripped = JavaExecutionAdapter.stripPackage(source);
+	}
+
+	@Benchmark
+	public String stripPackage() {
+		return JavaExecutionAdapter.stripPackage(source);
+	}
+
+	@Benchmark
+	public String detectClassName() {
+		return JavaExecutionAdapter.detectClassName(stripped);
+	}
+}
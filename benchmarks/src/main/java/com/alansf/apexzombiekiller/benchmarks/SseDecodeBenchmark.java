@@ -0,0 +1,95 @@
+package com.alansf.apexzombiekiller.benchmarks;
+
+import com.alansf.apexzombiekiller.service.SseDeltaDecoder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding one chat-completions stream of {@code deltas} events: the old per-chunk
+ * {@code split("\n")} plus {@code readTree} per line versus SseDeltaDecoder over the raw bytes.
+ * The old path is fed line-aligned strings, which flatters it; real chunks split lines anywhere.
+ * Run with {@code -prof gc} to compare allocation per stream.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SseDecodeBenchmark {
+
+	@Param({"100", "2000"})
+	public int deltas;
+
+	/** Bytes per network read handed to the decoder. */
+	@Param({"512"})
+	public int chunkSize;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private List<String> lineChunks;
+	private byte[] stream;
+
+	@Setup
+	public void setup() {
+		lineChunks = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < deltas; i++) {
+			String token = i % 7 == 0 ? "\\n    " : " token" + i;
+			String line = "data: {\"id\":\"chatcmpl-1\",\"object\":\"chat.completion.chunk\",\"created\":1700000000," +
+					"\"model\":\"claude-4-5-sonnet\",\"choices\":[{\"index\":0,\"delta\":{\"content\":\"" + token + "\"},\"finish_reason\":null}]}\n\n";
+			lineChunks.add(line);
+			sb.append(line);
+		}
+		sb.append("data: [DONE]\n\n");
+		lineChunks.add("data: [DONE]\n\n");
+		stream = sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public int splitAndReadTree(Blackhole bh) {
+		// The pre-decoder chunk handling from InferenceClient, kept for comparison.
+		StringBuilder contentAccumulator = new StringBuilder();
+		for (String chunk : lineChunks) {
+			if (chunk == null || chunk.isBlank()) continue;
+			String[] lines = chunk.split("\n");
+			for (String line : lines) {
+				line = line.trim();
+				if (line.startsWith("data: ")) line = line.substring(6);
+				if (line.equals("[DONE]") || line.isEmpty()) continue;
+				try {
+					JsonNode node = mapper.readTree(line);
+					if (node.has("choices") && node.get("choices").isArray() && node.get("choices").size() > 0) {
+						JsonNode choice = node.get("choices").get(0);
+						if (choice.has("delta") && choice.get("delta").has("content")) {
+							String deltaContent = choice.get("delta").get("content").asText();
+							if (deltaContent != null && !deltaContent.isBlank()) contentAccumulator.append(deltaContent);
+						}
+					}
+				} catch (Exception e) {
+					if (!line.startsWith("data:")) contentAccumulator.append(line);
+				}
+			}
+		}
+		bh.consume(contentAccumulator);
+		return contentAccumulator.length();
+	}
+
+	@Benchmark
+	public int incrementalDecoder(Blackhole bh) {
+		StringBuilder contentAccumulator = new StringBuilder();
+		SseDeltaDecoder decoder = new SseDeltaDecoder();
+		for (int off = 0; off < stream.length; off += chunkSize) {
+			decoder.feed(stream, off, Math.min(chunkSize, stream.length - off), contentAccumulator::append);
+		}
+		decoder.finish(contentAccumulator::append);
+		bh.consume(contentAccumulator);
+		return contentAccumulator.length();
+	}
+}
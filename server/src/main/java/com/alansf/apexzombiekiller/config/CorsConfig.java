@@ -14,6 +14,10 @@ public class CorsConfig {
 		config.addAllowedOriginPattern("*");
 		config.addAllowedHeader("*");
 		config.addAllowedMethod("*");
+		// Let browser callers see how a transform was served
+		config.addExposedHeader("X-Transform-Cache");
+		config.addExposedHeader("X-Transform-Cache-Tier");
+		config.addExposedHeader("X-Transform-Cache-Key");
 		config.setAllowCredentials(false);
 		UrlBasedCorsConfigurationSource source = new UrlBasedCorsConfigurationSource();
 		source.registerCorsConfiguration("/**", config);
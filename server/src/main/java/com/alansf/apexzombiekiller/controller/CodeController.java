@@ -1,12 +1,20 @@
 package com.alansf.apexzombiekiller.controller;
 
+import com.alansf.apexzombiekiller.model.ExecuteBatchRequest;
+import com.alansf.apexzombiekiller.model.ExecuteBatchResponse;
 import com.alansf.apexzombiekiller.model.ExecutionAudit;
 import com.alansf.apexzombiekiller.model.TransformedCode;
 import com.alansf.apexzombiekiller.repo.CodeRepository;
+import com.alansf.apexzombiekiller.service.AuditEvents;
+import com.alansf.apexzombiekiller.service.CodeRegistry;
+import com.alansf.apexzombiekiller.service.ExecutionGuard;
 import com.alansf.apexzombiekiller.service.ExecutionService;
+import com.alansf.apexzombiekiller.service.JavaExecutionAdapter;
 import com.alansf.apexzombiekiller.service.PublishService;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
@@ -18,11 +26,20 @@ public class CodeController {
 	private final CodeRepository repo;
 	private final ExecutionService exec;
 	private final PublishService publish;
+	private final JavaExecutionAdapter javaAdapter;
+	private final CodeRegistry codes;
+	private final AuditEvents auditEvents;
+	private final ExecutionGuard guard;
 
-	public CodeController(CodeRepository repo, ExecutionService exec, PublishService publish) {
+	public CodeController(CodeRepository repo, ExecutionService exec, PublishService publish, JavaExecutionAdapter javaAdapter,
+	                      CodeRegistry codes, AuditEvents auditEvents, ExecutionGuard guard) {
 		this.repo = repo;
 		this.exec = exec;
 		this.publish = publish;
+		this.javaAdapter = javaAdapter;
+		this.codes = codes;
+		this.auditEvents = auditEvents;
+		this.guard = guard;
 	}
 
 	public static class RegisterRequest {
@@ -73,16 +90,18 @@ public class CodeController {
 		if (req == null || req.name == null || req.language == null || req.source == null) {
 			throw new IllegalArgumentException("name, language, and source are required");
 		}
-		// Smoke test compile/exec (Java only in demo; JS engine may be absent)
+		String metadataJson = req.metadata == null ? "{}" : com.alansf.apexzombiekiller.service.JsonUtils.toJson(req.metadata);
+		// Smoke test compile/exec (Java only in demo; JS engine may be absent), under the code's own budget
 		try {
 			if ("java".equalsIgnoreCase(req.language)) {
-				new com.alansf.apexzombiekiller.service.JavaExecutionAdapter().execute("com.demo.jobs.UserCode", req.source);
+				guard.run(guard.budgetFor(metadataJson), () -> javaAdapter.execute(req.name, "com.demo.jobs.UserCode", req.source, Map.of()));
 			}
 		} catch (Exception e) {
 			throw new IllegalArgumentException("Compilation/runtime check failed: " + e.getMessage());
 		}
-		String metadataJson = req.metadata == null ? "{}" : com.alansf.apexzombiekiller.service.JsonUtils.toJson(req.metadata);
 		TransformedCode code = repo.upsertCode(req.name, req.language, req.source, metadataJson, sfUser);
+		// Don't wait for our own NOTIFY before executions here see the new source.
+		codes.invalidate(code.name);
 		ApproveResponse r = new ApproveResponse();
 		r.id = code.id;
 		r.name = code.name;
@@ -111,15 +130,52 @@ public class CodeController {
 	}
 
 	@PostMapping("/code/execute-by-name/{name}")
-	public ExecutionAudit executeByName(@PathVariable String name, @RequestBody(required = false) ExecuteRequest req) {
+	public ResponseEntity<ExecutionAudit> executeByName(@PathVariable String name, @RequestBody(required = false) ExecuteRequest req,
+	                                            @RequestParam(required = false) String mode,
+	                                            @RequestHeader(value = "Prefer", required = false) String prefer) {
 		Map<String, Object> payload = req == null ? Map.of() : Optional.ofNullable(req.payload).orElse(Map.of());
-		return exec.executeByName(name, payload);
+		return ExecutionResponses.executeByName(exec, name, payload, mode, prefer);
 	}
 
 	@PostMapping("/ext/{name}/run")
-	public ExecutionAudit extExecute(@PathVariable String name, @RequestBody(required = false) ExecuteRequest req) {
+	public ResponseEntity<ExecutionAudit> extExecute(@PathVariable String name, @RequestBody(required = false) ExecuteRequest req,
+	                                            @RequestParam(required = false) String mode,
+	                                            @RequestHeader(value = "Prefer", required = false) String prefer) {
 		Map<String, Object> payload = req == null ? Map.of() : Optional.ofNullable(req.payload).orElse(Map.of());
-		return exec.executeByName(name, payload);
+		return ExecutionResponses.executeByName(exec, name, payload, mode, prefer);
+	}
+
+	@PostMapping("/code/execute-batch")
+	public ExecuteBatchResponse executeBatch(@RequestBody ExecuteBatchRequest req) {
+		return exec.executeBatch(req == null || req.items == null ? List.of() : req.items);
+	}
+
+	@GetMapping("/code/audits/{id}")
+	public ResponseEntity<ExecutionAudit> audit(@PathVariable UUID id) {
+		return ResponseEntity.of(repo.findAudit(id));
+	}
+
+	/** Streams {@code status} now and {@code completed} with the final audit once the execution finishes. */
+	@GetMapping(value = "/code/audits/{id}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public ResponseEntity<SseEmitter> auditEvents(@PathVariable UUID id) {
+		return repo.findAudit(id)
+				.map(a -> ResponseEntity.ok(auditEvents.subscribe(a)))
+				.orElse(ResponseEntity.notFound().build());
+	}
+
+	@GetMapping("/code/compiler/stats")
+	public Map<String, Object> compilerStats() {
+		return javaAdapter.stats();
+	}
+
+	@GetMapping("/code/guard/stats")
+	public Map<String, Object> guardStats() {
+		return guard.stats();
+	}
+
+	@GetMapping("/code/registry/stats")
+	public Map<String, Object> registryStats() {
+		return codes.stats();
 	}
 
 	@GetMapping("/code/examples")
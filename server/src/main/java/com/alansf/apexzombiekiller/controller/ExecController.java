@@ -3,6 +3,7 @@ package com.alansf.apexzombiekiller.controller;
 import com.alansf.apexzombiekiller.model.ExecutionAudit;
 import com.alansf.apexzombiekiller.service.ExecutionService;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.Map;
@@ -17,8 +18,11 @@ public class ExecController {
 	public static class ExecuteRequest { public Map<String, Object> payload; }
 
 	@PostMapping("/exec/{name}")
-	public ExecutionAudit execByName(@PathVariable String name, @RequestBody(required = false) ExecuteRequest req) {
-		return exec.executeByName(name, req == null ? Map.of() : Optional.ofNullable(req.payload).orElse(Map.of()));
+	public ResponseEntity<ExecutionAudit> execByName(@PathVariable String name, @RequestBody(required = false) ExecuteRequest req,
+	                                                 @RequestParam(required = false) String mode,
+	                                                 @RequestHeader(value = "Prefer", required = false) String prefer) {
+		Map<String, Object> payload = req == null ? Map.of() : Optional.ofNullable(req.payload).orElse(Map.of());
+		return ExecutionResponses.executeByName(exec, name, payload, mode, prefer);
 	}
 }
 
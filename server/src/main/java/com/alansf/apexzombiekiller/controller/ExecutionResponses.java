@@ -0,0 +1,30 @@
+package com.alansf.apexzombiekiller.controller;
+
+import com.alansf.apexzombiekiller.model.ExecutionAudit;
+import com.alansf.apexzombiekiller.service.ExecutionService;
+import org.springframework.http.ResponseEntity;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.Map;
+
+/** Shared sync/async handling for the execute-by-name endpoints. */
+final class ExecutionResponses {
+	private ExecutionResponses() {}
+
+	/** {@code ?mode=async} or {@code Prefer: respond-async} queue the execution instead of running it inline. */
+	static boolean wantsAsync(String mode, String prefer) {
+		return "async".equalsIgnoreCase(mode) || (prefer != null && prefer.toLowerCase(Locale.ROOT).contains("respond-async"));
+	}
+
+	static ResponseEntity<ExecutionAudit> executeByName(ExecutionService exec, String name, Map<String, Object> payload, String mode, String prefer) {
+		if (!wantsAsync(mode, prefer)) {
+			return ResponseEntity.ok(exec.executeByName(name, payload));
+		}
+		ExecutionAudit audit = exec.submitByName(name, payload);
+		return ResponseEntity.accepted()
+				.location(URI.create("/code/audits/" + audit.id))
+				.header("Preference-Applied", "respond-async")
+				.body(audit);
+	}
+}
@@ -2,30 +2,87 @@ package com.alansf.apexzombiekiller.controller;
 
 import com.alansf.apexzombiekiller.model.TransformRequest;
 import com.alansf.apexzombiekiller.model.TransformResponse;
+import com.alansf.apexzombiekiller.service.ContentHash;
 import com.alansf.apexzombiekiller.service.OpenApiService;
+import com.alansf.apexzombiekiller.service.TransformCache;
 import com.alansf.apexzombiekiller.service.TransformService;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 @RestController
 @RequestMapping(produces = MediaType.APPLICATION_JSON_VALUE)
 public class TransformController {
 	private final TransformService transformService;
 	private final OpenApiService openApiService;
+	private final TransformCache transformCache;
 
-	public TransformController(TransformService transformService, OpenApiService openApiService) {
+	public TransformController(TransformService transformService, OpenApiService openApiService, TransformCache transformCache) {
 		this.transformService = transformService;
 		this.openApiService = openApiService;
+		this.transformCache = transformCache;
 	}
 
 	@PostMapping("/transform/apex-to-java")
-	public TransformResponse apexToJava(@RequestBody TransformRequest req) {
-		return transformService.apexToJava(req);
+	public ResponseEntity<TransformResponse> apexToJava(@RequestBody TransformRequest req) {
+		return withCacheHeaders(transformService.transform("java", req));
 	}
 
 	@PostMapping("/transform/apex-to-js")
-	public TransformResponse apexToJs(@RequestBody TransformRequest req) {
-		return transformService.apexToJs(req);
+	public ResponseEntity<TransformResponse> apexToJs(@RequestBody TransformRequest req) {
+		return withCacheHeaders(transformService.transform("js", req));
+	}
+
+	/**
+	 * Server-sent events: {@code delta} ({@code {"text": ...}}) as code arrives, then one {@code done}
+	 * with notes, any test code and the cache status. X-Transform-Cache is sent before generation
+	 * starts; when the stream then falls back to the stub, only {@code done} says BYPASS. The
+	 * request thread is released immediately.
+	 */
+	@PostMapping(value = "/transform/apex-to-java/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public ResponseEntity<Flux<ServerSentEvent<Map<String, Object>>>> streamApexToJava(@RequestBody TransformRequest req) {
+		return events(transformService.stream("java", req));
+	}
+
+	@PostMapping(value = "/transform/apex-to-js/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public ResponseEntity<Flux<ServerSentEvent<Map<String, Object>>>> streamApexToJs(@RequestBody TransformRequest req) {
+		return events(transformService.stream("js", req));
+	}
+
+	@GetMapping("/transform/cache/stats")
+	public Map<String, Object> cacheStats() {
+		return transformCache.stats();
+	}
+
+	private static ResponseEntity<Flux<ServerSentEvent<Map<String, Object>>>> events(TransformService.Streaming s) {
+		Flux<ServerSentEvent<Map<String, Object>>> events = s.events().map(e -> {
+			Map<String, Object> data = new LinkedHashMap<>();
+			if (e.delta() != null) {
+				data.put("text", e.delta());
+				return ServerSentEvent.builder(data).event("delta").build();
+			}
+			data.put("notes", e.notes());
+			if (e.testCode() != null) data.put("testCode", e.testCode());
+			data.put("cache", e.cacheStatus());
+			return ServerSentEvent.builder(data).event("done").build();
+		});
+		ResponseEntity.BodyBuilder ok = ResponseEntity.ok().header("X-Transform-Cache", s.cacheStatus());
+		if (s.cacheTier() != null) ok.header("X-Transform-Cache-Tier", s.cacheTier());
+		if (s.cacheKey() != null) ok.header("X-Transform-Cache-Key", ContentHash.shortKey(s.cacheKey()));
+		return ok.header("Cache-Control", "no-cache").body(events);
+	}
+
+	// X-Transform-Cache: HIT | MISS | BYPASS; the tier (memory, postgres, in-flight) only on hits.
+	private static ResponseEntity<TransformResponse> withCacheHeaders(TransformService.Transformed t) {
+		ResponseEntity.BodyBuilder ok = ResponseEntity.ok().header("X-Transform-Cache", t.cacheStatus());
+		if (t.cacheTier() != null) ok.header("X-Transform-Cache-Tier", t.cacheTier());
+		if (t.cacheKey() != null) ok.header("X-Transform-Cache-Key", ContentHash.shortKey(t.cacheKey()));
+		return ok.body(t.response());
 	}
 
 	@GetMapping(value = "/openapi-generated.yaml", produces = "application/yaml")
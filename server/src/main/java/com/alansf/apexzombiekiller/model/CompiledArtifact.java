@@ -0,0 +1,11 @@
+package com.alansf.apexzombiekiller.model;
+
+import java.time.Instant;
+import java.util.Map;
+
+public class CompiledArtifact {
+	public String sourceHash;
+	public String className;
+	public Map<String, byte[]> classes; // binary name -> bytecode, inner classes included
+	public Instant updatedAt;
+}
@@ -0,0 +1,13 @@
+package com.alansf.apexzombiekiller.model;
+
+import java.util.List;
+import java.util.Map;
+
+public class ExecuteBatchRequest {
+	public List<Item> items;
+
+	public static class Item {
+		public String name;
+		public Map<String, Object> payload;
+	}
+}
@@ -0,0 +1,14 @@
+package com.alansf.apexzombiekiller.model;
+
+import java.util.List;
+
+public class ExecuteBatchResponse {
+	public List<Result> results; // same order as the request items
+
+	public static class Result {
+		public String name;
+		public int status; // 200 when the code ran (see audit.status), 404 when no code has that name, 500 when it could not be run
+		public ExecutionAudit audit;
+		public String error;
+	}
+}
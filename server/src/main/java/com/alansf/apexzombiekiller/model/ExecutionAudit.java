@@ -9,9 +9,11 @@ public class ExecutionAudit {
 	public String codeName;
 	public Instant startedAt;
 	public Instant completedAt;
-	public String status; // ACCEPTED, RUNNING, SUCCEEDED, FAILED
+	public String status; // ACCEPTED, RUNNING, SUCCEEDED, FAILED, TIMED_OUT
 	public String error;
 	public String inputJson;
+	public String outputJson; // entrypoint result, when it returns one
+	public ExecutionUsage usage; // null until the execution finishes
 }
 
 
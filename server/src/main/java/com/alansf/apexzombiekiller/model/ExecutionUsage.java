@@ -0,0 +1,10 @@
+package com.alansf.apexzombiekiller.model;
+
+/** Resources one execution consumed, measured on the thread that ran the user code. */
+public class ExecutionUsage {
+	public Long cpuTimeMicros;   // thread CPU time
+	public Long wallTimeMicros;  // time inside the user code, compile included
+	public Long allocatedBytes;  // heap allocated by the executing thread
+	public Boolean cacheHit;     // false when this execution compiled (or loaded) the code
+	public Long queueWaitMillis; // time between acceptance and start (queued, batch slots)
+}
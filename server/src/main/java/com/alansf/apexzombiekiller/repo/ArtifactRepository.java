@@ -0,0 +1,86 @@
+package com.alansf.apexzombiekiller.repo;
+
+import com.alansf.apexzombiekiller.model.CompiledArtifact;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Durable store for compiled bytecode in {@code compiled_artifact}, keyed by source hash so
+ * fresh dynos can define classes without invoking javac.
+ */
+@Repository
+public class ArtifactRepository {
+	private final JdbcTemplate jdbc;
+	private final RowMapper<CompiledArtifact> row = new RowMapper<>() {
+		@Override public CompiledArtifact mapRow(ResultSet rs, int rowNum) throws SQLException {
+			CompiledArtifact a = new CompiledArtifact();
+			a.sourceHash = rs.getString("name");
+			a.className = rs.getString("class_name");
+			a.classes = unpack(rs.getBytes("bytes"));
+			a.updatedAt = rs.getTimestamp("updated_at").toInstant();
+			return a;
+		}
+	};
+
+	public ArtifactRepository(JdbcTemplate jdbc) { this.jdbc = jdbc; }
+
+	public Optional<CompiledArtifact> find(String sourceHash) {
+		List<CompiledArtifact> list = jdbc.query(
+				"SELECT name, class_name, bytes, updated_at FROM compiled_artifact WHERE name=? AND class_name IS NOT NULL",
+				row, sourceHash);
+		return list.stream().findFirst();
+	}
+
+	public void save(String sourceHash, String className, Map<String, byte[]> classes) {
+		jdbc.update("INSERT INTO compiled_artifact(name, class_name, bytes) VALUES (?,?,?) " +
+						"ON CONFLICT (name) DO UPDATE SET class_name=EXCLUDED.class_name, bytes=EXCLUDED.bytes, updated_at=NOW()",
+				sourceHash, className, pack(classes));
+	}
+
+	// Layout: class count, then (binary name, length, bytes) per class file.
+	static byte[] pack(Map<String, byte[]> classes) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (DataOutputStream data = new DataOutputStream(out)) {
+			data.writeInt(classes.size());
+			for (Map.Entry<String, byte[]> e : classes.entrySet()) {
+				data.writeUTF(e.getKey());
+				data.writeInt(e.getValue().length);
+				data.write(e.getValue());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+
+	static Map<String, byte[]> unpack(byte[] bytes) {
+		Map<String, byte[]> classes = new LinkedHashMap<>();
+		if (bytes == null) return classes;
+		try (DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes))) {
+			int count = data.readInt();
+			for (int i = 0; i < count; i++) {
+				String name = data.readUTF();
+				byte[] b = new byte[data.readInt()];
+				data.readFully(b);
+				classes.put(name, b);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return classes;
+	}
+}
@@ -1,6 +1,7 @@
 package com.alansf.apexzombiekiller.repo;
 
 import com.alansf.apexzombiekiller.model.ExecutionAudit;
+import com.alansf.apexzombiekiller.model.ExecutionUsage;
 import com.alansf.apexzombiekiller.model.TransformedCode;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
@@ -8,7 +9,7 @@ import org.springframework.stereotype.Repository;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.time.Instant;
+import java.sql.Timestamp;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -42,6 +43,17 @@ public class CodeRepository {
 			a.status = rs.getString("status");
 			a.error = rs.getString("error");
 			a.inputJson = rs.getString("input");
+			a.outputJson = rs.getString("output");
+			Long wall = rs.getObject("wall_time_us", Long.class);
+			Long queueWait = rs.getObject("queue_wait_ms", Long.class);
+			if (wall != null || queueWait != null) {
+				a.usage = new ExecutionUsage();
+				a.usage.wallTimeMicros = wall;
+				a.usage.cpuTimeMicros = rs.getObject("cpu_time_us", Long.class);
+				a.usage.allocatedBytes = rs.getObject("allocated_bytes", Long.class);
+				a.usage.cacheHit = rs.getObject("cache_hit", Boolean.class);
+				a.usage.queueWaitMillis = queueWait;
+			}
 			return a;
 		}
 	};
@@ -52,8 +64,10 @@ public class CodeRepository {
 
 	public TransformedCode insertCode(String name, String language, String source, String metadataJson, String createdBy) {
 		UUID id = UUID.randomUUID();
-		jdbc.update("INSERT INTO transformed_code(id,name,language,source,metadata,created_by) VALUES (?,?,?,?,?::jsonb,?)",
-				id, name, language, source, metadataJson, createdBy);
+		// Insert and tell every dyno's CodeRegistry in one statement.
+		jdbc.query("WITH c AS (INSERT INTO transformed_code(id,name,language,source,metadata,created_by) VALUES (?,?,?,?,?::jsonb,?) RETURNING name) " +
+						"SELECT pg_notify('code_changed', name) FROM c",
+				ResultSet::next, id, name, language, source, metadataJson, createdBy);
 		return findById(id).orElseThrow();
 	}
 
@@ -70,8 +84,9 @@ public class CodeRepository {
 	public TransformedCode upsertCode(String name, String language, String source, String metadataJson, String createdBy) {
 		Optional<TransformedCode> existing = findByName(name);
 		if (existing.isPresent()) {
-			jdbc.update("UPDATE transformed_code SET language=?, source=?, metadata=?::jsonb, status='READY' WHERE name=?",
-					language, source, metadataJson, name);
+			jdbc.query("WITH c AS (UPDATE transformed_code SET language=?, source=?, metadata=?::jsonb, status='READY' WHERE name=? RETURNING name) " +
+							"SELECT pg_notify('code_changed', name) FROM c",
+					ResultSet::next, language, source, metadataJson, name);
 			return findByName(name).orElseThrow();
 		}
 		return insertCode(name, language, source, metadataJson, createdBy);
@@ -82,22 +97,76 @@ public class CodeRepository {
 	}
 
 	public ExecutionAudit createAudit(UUID codeId, String codeName, String inputJson) {
-		UUID id = UUID.randomUUID();
-		jdbc.update("INSERT INTO execution_audit(id, code_id, code_name, status, input) VALUES (?,?,?,?,?::jsonb)",
-				id, codeId, codeName, "ACCEPTED", inputJson);
-		return findAudit(id).orElseThrow();
+		return jdbc.queryForObject(
+				"INSERT INTO execution_audit(id, code_id, code_name, status, input) VALUES (?,?,?,'ACCEPTED',?::jsonb) RETURNING *",
+				auditRow, UUID.randomUUID(), codeId, codeName, inputJson);
+	}
+
+	/** Opens an audit that is already RUNNING, in a single round trip. */
+	public ExecutionAudit startAudit(UUID codeId, String codeName, String inputJson) {
+		return jdbc.queryForObject(
+				"INSERT INTO execution_audit(id, code_id, code_name, status, started_at, input) VALUES (?,?,?,'RUNNING',NOW(),?::jsonb) RETURNING *",
+				auditRow, UUID.randomUUID(), codeId, codeName, inputJson);
 	}
 
+	/** Starts an ACCEPTED audit, recording how long it waited in the queue. */
 	public void markAuditRunning(UUID id) {
-		jdbc.update("UPDATE execution_audit SET status='RUNNING', started_at=? WHERE id=?", Instant.now(), id);
+		jdbc.update("UPDATE execution_audit SET status='RUNNING', started_at=NOW(), " +
+				"queue_wait_ms=(EXTRACT(EPOCH FROM NOW() - started_at) * 1000)::bigint WHERE id=?", id);
+	}
+
+	/** Completes the audit and returns the final row. */
+	public Optional<ExecutionAudit> markAuditSuccess(UUID id, String outputJson, ExecutionUsage usage) {
+		return completeAudit(id, "SUCCEEDED", null, outputJson, usage);
+	}
+
+	/** Completes the audit and returns the final row. */
+	public Optional<ExecutionAudit> markAuditFailure(UUID id, String error, ExecutionUsage usage) {
+		return completeAudit(id, "FAILED", error, null, usage);
+	}
+
+	/** Completes the audit as TIMED_OUT (cancelled past its budget) and returns the final row. */
+	public Optional<ExecutionAudit> markAuditTimedOut(UUID id, String error, ExecutionUsage usage) {
+		return completeAudit(id, "TIMED_OUT", error, null, usage);
+	}
+
+	private Optional<ExecutionAudit> completeAudit(UUID id, String status, String error, String outputJson, ExecutionUsage u) {
+		ExecutionUsage usage = u == null ? new ExecutionUsage() : u;
+		// queue_wait_ms may already be set by markAuditRunning.
+		return jdbc.query("UPDATE execution_audit SET status=?, completed_at=NOW(), error=?, output=?::jsonb, " +
+						"cpu_time_us=?, wall_time_us=?, allocated_bytes=?, cache_hit=?, queue_wait_ms=COALESCE(?, queue_wait_ms) " +
+						"WHERE id=? RETURNING *",
+				auditRow, status, error, outputJson, usage.cpuTimeMicros, usage.wallTimeMicros, usage.allocatedBytes,
+				usage.cacheHit, usage.queueWaitMillis, id).stream().findFirst();
 	}
 
-	public void markAuditSuccess(UUID id) {
-		jdbc.update("UPDATE execution_audit SET status='SUCCEEDED', completed_at=? WHERE id=?", Instant.now(), id);
+	/**
+	 * Writes audit snapshots in one JDBC batch. A snapshot updates an existing row only while that
+	 * row is still open, so a late RUNNING snapshot never reverts a completed audit.
+	 */
+	public void upsertAudits(List<ExecutionAudit> audits) {
+		jdbc.batchUpdate(
+				"INSERT INTO execution_audit(id, code_id, code_name, started_at, completed_at, status, error, input, output, " +
+						"cpu_time_us, wall_time_us, allocated_bytes, cache_hit, queue_wait_ms) " +
+						"VALUES (?,?,?,?,?,?,?,?::jsonb,?::jsonb,?,?,?,?,?) " +
+						"ON CONFLICT (id) DO UPDATE SET completed_at=EXCLUDED.completed_at, status=EXCLUDED.status, " +
+						"error=EXCLUDED.error, output=EXCLUDED.output, cpu_time_us=EXCLUDED.cpu_time_us, " +
+						"wall_time_us=EXCLUDED.wall_time_us, allocated_bytes=EXCLUDED.allocated_bytes, " +
+						"cache_hit=EXCLUDED.cache_hit, queue_wait_ms=EXCLUDED.queue_wait_ms WHERE execution_audit.completed_at IS NULL",
+				audits.stream().map(a -> {
+					ExecutionUsage u = a.usage == null ? new ExecutionUsage() : a.usage;
+					return new Object[]{
+							a.id, a.codeId, a.codeName,
+							a.startedAt == null ? null : Timestamp.from(a.startedAt),
+							a.completedAt == null ? null : Timestamp.from(a.completedAt),
+							a.status, a.error, a.inputJson, a.outputJson,
+							u.cpuTimeMicros, u.wallTimeMicros, u.allocatedBytes, u.cacheHit, u.queueWaitMillis};
+				}).toList());
 	}
 
-	public void markAuditFailure(UUID id, String error) {
-		jdbc.update("UPDATE execution_audit SET status='FAILED', completed_at=?, error=? WHERE id=?", Instant.now(), error, id);
+	/** Tells listeners on every dyno (see AuditEvents) that an asynchronous execution finished. */
+	public void notifyAuditDone(UUID id) {
+		jdbc.query("SELECT pg_notify('audit_done', ?)", ResultSet::next, id.toString());
 	}
 
 	public Optional<ExecutionAudit> findAudit(UUID id) {
@@ -1,20 +1,46 @@
 package com.alansf.apexzombiekiller.repo;
 
 import com.alansf.apexzombiekiller.model.JobItem;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.stereotype.Repository;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
 
 @Repository
 public class JobQueueRepository {
+	private static final List<String> JOB_TYPES = List.of("compile", "publish", "execute");
+	private static final long SNAPSHOT_TTL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
 	private final JdbcTemplate jdbc;
+	private final MeterRegistry meters;
+	private final Timer claimedJobs;
+	private final Timer claimedNothing;
+	private final Map<String, Timer> waitTimers = new ConcurrentHashMap<>();
+	private volatile QueueSnapshot snapshot;
 	private final RowMapper<JobItem> row = new RowMapper<>() {
 		@Override public JobItem mapRow(ResultSet rs, int rowNum) throws SQLException {
 			JobItem j = new JobItem();
@@ -34,33 +60,156 @@ public class JobQueueRepository {
 		}
 	};
 
-	public JobQueueRepository(JdbcTemplate jdbc) { this.jdbc = jdbc; }
+	public JobQueueRepository(JdbcTemplate jdbc) { this(jdbc, Metrics.globalRegistry); }
+
+	@Autowired
+	public JobQueueRepository(JdbcTemplate jdbc, MeterRegistry meters) {
+		this.jdbc = jdbc;
+		this.meters = meters;
+		this.claimedJobs = claimTimer(meters, "jobs");
+		this.claimedNothing = claimTimer(meters, "empty");
+		if (jdbc == null) return;
+		// Depth and age are sampled from job_queue at most every 5 s, however often they are scraped.
+		for (String type : JOB_TYPES) {
+			Gauge.builder("azk.queue.depth", this, r -> r.queued(type, QueueDepth::depth))
+					.description("Queued jobs").tag("type", type).register(meters);
+			TimeGauge.builder("azk.queue.oldest.age", this, TimeUnit.MILLISECONDS, r -> r.queued(type, QueueDepth::oldestMillis))
+					.description("Age of the oldest queued job").tag("type", type).register(meters);
+		}
+	}
+
+	private static Timer claimTimer(MeterRegistry meters, String result) {
+		return Timer.builder("azk.queue.claim").description("Latency of the claim (lockBatch) statement")
+				.tag("result", result).register(meters);
+	}
 
 	public UUID enqueue(String jobType, String targetName, String payloadJson) {
 		UUID id = UUID.randomUUID();
-		jdbc.update("INSERT INTO job_queue(id, job_type, target_name, payload) VALUES (?,?,?,?::jsonb)",
-				id, jobType, targetName, payloadJson == null ? "{}" : payloadJson);
-		// Fire a lightweight NOTIFY for demo
-		try { jdbc.execute("NOTIFY mia_events"); } catch (Exception ignored) {}
+		// Insert and NOTIFY in one statement; listeners get the job id and type to wake a worker.
+		jdbc.query(
+				"WITH job AS (INSERT INTO job_queue(id, job_type, target_name, payload) VALUES (?,?,?,?::jsonb) RETURNING id, job_type) " +
+						"SELECT pg_notify('mia_events', json_build_object('id', id, 'type', job_type)::text) FROM job",
+				ResultSet::next, id, jobType, targetName, payloadJson == null ? "{}" : payloadJson);
 		return id;
 	}
 
 	public Optional<JobItem> lockNext() {
-		List<JobItem> list = jdbc.query(
-				"UPDATE job_queue SET status='running', started_at=NOW(), attempts=attempts+1 " +
-						"WHERE id = (" +
-						"  SELECT id FROM job_queue WHERE status='queued' ORDER BY enqueued_at LIMIT 1 FOR UPDATE SKIP LOCKED" +
-						") RETURNING *",
-				row);
-		return list.stream().findFirst();
+		return lockBatch(1, Set.of()).stream().findFirst();
+	}
+
+	/**
+	 * Claims up to {@code n} queued jobs in a single statement, oldest first. Only jobs whose type
+	 * is in {@code jobTypes} are claimed, or any type when it is empty.
+	 */
+	public List<JobItem> lockBatch(int n, Set<String> jobTypes) {
+		if (n <= 0) return List.of();
+		boolean anyType = jobTypes == null || jobTypes.isEmpty();
+		String sql = "UPDATE job_queue SET status='running', started_at=NOW(), attempts=attempts+1 " +
+				"WHERE id IN (" +
+				"  SELECT id FROM job_queue WHERE status='queued'" + (anyType ? "" : " AND job_type = ANY(?)") +
+				"  ORDER BY enqueued_at LIMIT ? FOR UPDATE SKIP LOCKED" +
+				") RETURNING *";
+		return claim(con -> {
+			PreparedStatement ps = con.prepareStatement(sql);
+			int i = 1;
+			if (!anyType) ps.setArray(i++, con.createArrayOf("varchar", jobTypes.toArray()));
+			ps.setInt(i, n);
+			return ps;
+		});
+	}
+
+	/**
+	 * Claims up to {@code n} queued jobs in a single statement, oldest first, taking at most
+	 * {@code perType.get(type)} jobs of each type and none of a type missing from the map.
+	 */
+	public List<JobItem> lockBatch(int n, Map<String, Integer> perType) {
+		if (n <= 0 || perType.isEmpty()) return List.of();
+		String sql = "UPDATE job_queue SET status='running', started_at=NOW(), attempts=attempts+1 " +
+				"WHERE id IN (" +
+				"  SELECT c.id FROM UNNEST(?::varchar[], ?::int[]) AS l(job_type, n)" +
+				"  CROSS JOIN LATERAL (SELECT id, enqueued_at FROM job_queue WHERE status='queued' AND job_type = l.job_type" +
+				"    ORDER BY enqueued_at LIMIT l.n FOR UPDATE SKIP LOCKED) c" +
+				"  ORDER BY c.enqueued_at LIMIT ?" +
+				") RETURNING *";
+		List<Map.Entry<String, Integer>> limits = List.copyOf(perType.entrySet());
+		return claim(con -> {
+			PreparedStatement ps = con.prepareStatement(sql);
+			ps.setArray(1, con.createArrayOf("varchar", limits.stream().map(Map.Entry::getKey).toArray()));
+			ps.setArray(2, con.createArrayOf("integer", limits.stream().map(Map.Entry::getValue).toArray()));
+			ps.setInt(3, n);
+			return ps;
+		});
+	}
+
+	private List<JobItem> claim(PreparedStatementCreator statement) {
+		long start = System.nanoTime();
+		List<JobItem> claimed = jdbc.query(statement, row);
+		(claimed.isEmpty() ? claimedNothing : claimedJobs).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		for (JobItem j : claimed) {
+			// Both timestamps come from the database clock.
+			waitTimers.computeIfAbsent(j.jobType, type -> Timer.builder("azk.queue.wait")
+					.description("Time from enqueue to claim").tag("type", type).register(meters))
+					.record(Duration.between(j.enqueuedAt, j.startedAt));
+		}
+		return claimed;
+	}
+
+	/** Queued jobs and the age of the oldest, per job type. */
+	public Map<String, QueueDepth> queueDepth() {
+		Map<String, QueueDepth> out = new HashMap<>();
+		jdbc.query("SELECT job_type, COUNT(*) AS depth, EXTRACT(EPOCH FROM NOW() - MIN(enqueued_at)) * 1000 AS oldest_ms " +
+				"FROM job_queue WHERE status='queued' GROUP BY job_type", rs -> {
+			out.put(rs.getString("job_type"), new QueueDepth(rs.getLong("depth"), rs.getDouble("oldest_ms")));
+		});
+		return out;
+	}
+
+	public record QueueDepth(long depth, double oldestMillis) {}
+
+	private record QueueSnapshot(long takenAt, Map<String, QueueDepth> byType) {}
+
+	/** A gauge value from the cached snapshot; NaN while the database cannot be read. */
+	private double queued(String type, ToDoubleFunction<QueueDepth> value) {
+		QueueSnapshot s = snapshot;
+		if (s == null || System.nanoTime() - s.takenAt > SNAPSHOT_TTL_NANOS) {
+			try {
+				s = new QueueSnapshot(System.nanoTime(), queueDepth());
+			} catch (DataAccessException e) {
+				return Double.NaN;
+			}
+			snapshot = s;
+		}
+		return value.applyAsDouble(s.byType.getOrDefault(type, new QueueDepth(0, 0)));
 	}
 
 	public void markDone(UUID id) {
-		jdbc.update("UPDATE job_queue SET status='done', finished_at=NOW() WHERE id=?", id);
+		markDone(List.of(id));
 	}
-	public void markError(UUID id, String error) {
-		jdbc.update("UPDATE job_queue SET status='error', finished_at=NOW(), error=? WHERE id=?", error, id);
+
+	/** Completes many jobs in one statement. */
+	public void markDone(Collection<UUID> ids) {
+		if (ids.isEmpty()) return;
+		jdbc.update(con -> {
+			PreparedStatement ps = con.prepareStatement("UPDATE job_queue SET status='done', finished_at=NOW() WHERE id = ANY(?)");
+			ps.setArray(1, con.createArrayOf("uuid", ids.toArray()));
+			return ps;
+		});
 	}
-}
 
+	public void markError(UUID id, String error) {
+		markError(List.of(id), Collections.singletonList(error));
+	}
 
+	/** Fails many jobs in one statement; {@code errors} lines up with {@code ids}. */
+	public void markError(List<UUID> ids, List<String> errors) {
+		if (ids.isEmpty()) return;
+		jdbc.update(con -> {
+			PreparedStatement ps = con.prepareStatement(
+					"UPDATE job_queue j SET status='error', finished_at=NOW(), error=e.error " +
+							"FROM UNNEST(?::uuid[], ?::text[]) AS e(id, error) WHERE j.id = e.id");
+			ps.setArray(1, con.createArrayOf("uuid", ids.toArray()));
+			ps.setArray(2, con.createArrayOf("text", errors.toArray()));
+			return ps;
+		});
+	}
+}
@@ -0,0 +1,55 @@
+package com.alansf.apexzombiekiller.repo;
+
+import com.alansf.apexzombiekiller.model.TransformResponse;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+/** Durable tier of the transform cache in {@code transform_cache}, so every dyno reuses a result once any has paid for it. */
+@Repository
+public class TransformCacheRepository {
+	private final JdbcTemplate jdbc;
+	private final RowMapper<TransformResponse> row = new RowMapper<>() {
+		@Override public TransformResponse mapRow(ResultSet rs, int rowNum) throws SQLException {
+			TransformResponse r = new TransformResponse();
+			r.javaCode = rs.getString("java_code");
+			r.jsCode = rs.getString("js_code");
+			r.testCode = rs.getString("test_code");
+			r.notes = rs.getString("notes");
+			return r;
+		}
+	};
+
+	public TransformCacheRepository(JdbcTemplate jdbc) { this.jdbc = jdbc; }
+
+	/** The row for {@code key} unless it is older than {@code maxAge}. */
+	public Optional<TransformResponse> find(String key, Duration maxAge) {
+		List<TransformResponse> list = jdbc.query(
+				"SELECT java_code, js_code, test_code, notes FROM transform_cache WHERE cache_key=? AND created_at > ?", row, key, cutoff(maxAge));
+		return list.stream().findFirst();
+	}
+
+	/** First writer wins; a concurrent dyno that produced the same key keeps the row already there. */
+	public void save(String key, String target, String model, TransformResponse r) {
+		jdbc.update("INSERT INTO transform_cache(cache_key, target, model, java_code, js_code, test_code, notes) VALUES (?,?,?,?,?,?,?) " +
+						"ON CONFLICT (cache_key) DO NOTHING",
+				key, target, model, r.javaCode, r.jsCode, r.testCode, r.notes);
+	}
+
+	/** Deletes rows older than {@code maxAge}; returns how many. */
+	public int deleteOlderThan(Duration maxAge) {
+		return jdbc.update("DELETE FROM transform_cache WHERE created_at <= ?", cutoff(maxAge));
+	}
+
+	private static Timestamp cutoff(Duration maxAge) {
+		return Timestamp.from(Instant.now().minus(maxAge));
+	}
+}
@@ -0,0 +1,216 @@
+package com.alansf.apexzombiekiller.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits one Apex class into the pieces a large transform converts separately: the class
+ * declaration with its fields, properties and initializers, and each method, constructor and
+ * inner type. A lexical scan (string literals, comments, brace depth) rather than a parser; a
+ * source that is not a single top-level class (a trigger, several classes, unbalanced braces)
+ * is not split.
+ */
+public final class ApexUnits {
+	private static final Pattern TYPE = Pattern.compile("\\b(class|interface|enum)\\s+([A-Za-z_][A-Za-z0-9_]*)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern NAME_BEFORE_PAREN = Pattern.compile("([A-Za-z_][A-Za-z0-9_]*)\\s*\\($");
+
+	/** {@code kind} is "method", "constructor" or "type"; {@code source} includes its leading comments and annotations. */
+	public record Unit(String kind, String name, String signature, String source) {}
+
+	/**
+	 * {@code declaration} is everything before the class body's opening brace; {@code state} the
+	 * fields, properties, initializers and comments between members, in source order.
+	 */
+	public record Split(String className, String declaration, String state, List<Unit> units) {
+
+		/** The class with its state and each unit reduced to a signature: the context every unit is converted with. */
+		public String outline() {
+			StringBuilder sb = new StringBuilder(declaration.stripTrailing()).append(" {\n");
+			if (!state.isBlank()) sb.append(state.stripTrailing()).append('\n');
+			for (Unit u : units) sb.append("\n    ").append(u.signature()).append(" { /* converted separately */ }");
+			return sb.append("\n}\n").toString();
+		}
+	}
+
+	private ApexUnits() {}
+
+	public static Optional<Split> split(String apex) {
+		if (apex == null) return Optional.empty();
+		int open = nextCode(apex, 0, '{');
+		if (open < 0) return Optional.empty();
+		String declaration = apex.substring(0, open);
+		Matcher type = TYPE.matcher(stripComments(declaration));
+		if (!type.find() || !"class".equalsIgnoreCase(type.group(1))) return Optional.empty();
+		String className = type.group(2);
+
+		StringBuilder state = new StringBuilder();
+		List<Unit> units = new ArrayList<>();
+		int memberStart = open + 1;
+		int i = open + 1;
+		while (i < apex.length()) {
+			int skipped = skipLiteralOrComment(apex, i);
+			if (skipped > i) {
+				i = skipped;
+				continue;
+			}
+			char c = apex.charAt(i);
+			if (c == ';') {
+				state.append(apex, memberStart, i + 1);
+				memberStart = i + 1;
+			} else if (c == '}') {
+				// End of the class body; nothing but whitespace and comments may follow
+				if (!stripComments(apex.substring(i + 1)).isBlank()) return Optional.empty();
+				state.append(apex, memberStart, i);
+				return Optional.of(new Split(className, declaration, state.toString(), units));
+			} else if (c == '{') {
+				int close = matching(apex, i);
+				if (close < 0) return Optional.empty();
+				String head = signatureOf(apex.substring(memberStart, i));
+				// Leading blank lines dropped; the first line keeps its indentation
+				Unit unit = classify(head, className, apex.substring(memberStart, close + 1).replaceFirst("^\\s*\n", ""));
+				if (unit == null && assignsAtTopLevel(head)) {
+					// A field initialised with a collection literal: the braces belong to the expression
+					i = close + 1;
+					continue;
+				}
+				if (unit == null) {
+					state.append(apex, memberStart, close + 1);
+				} else {
+					units.add(unit);
+				}
+				memberStart = close + 1;
+				i = close + 1;
+				continue;
+			}
+			i++;
+		}
+		return Optional.empty();
+	}
+
+	private static Unit classify(String head, String className, String source) {
+		String withoutAnnotations = stripAnnotations(head);
+		Matcher type = TYPE.matcher(withoutAnnotations);
+		if (type.find()) return new Unit("type", type.group(2), head, source);
+		if (assignsAtTopLevel(withoutAnnotations)) return null;
+		int paren = withoutAnnotations.indexOf('(');
+		if (paren < 0) return null; // property accessors or a static initializer
+		Matcher name = NAME_BEFORE_PAREN.matcher(withoutAnnotations.substring(0, paren + 1));
+		if (!name.find()) return null;
+		String kind = name.group(1).equalsIgnoreCase(className) ? "constructor" : "method";
+		return new Unit(kind, name.group(1), head, source);
+	}
+
+	/** The code of a member head on one line: comments dropped, whitespace collapsed. */
+	private static String signatureOf(String head) {
+		return stripComments(head).replaceAll("\\s+", " ").strip();
+	}
+
+	/** Drops leading {@code @Annotation} and {@code @Annotation(...)} tokens. */
+	private static String stripAnnotations(String head) {
+		String s = head;
+		while (s.startsWith("@")) {
+			int i = 1;
+			while (i < s.length() && (Character.isLetterOrDigit(s.charAt(i)) || s.charAt(i) == '_' || s.charAt(i) == '.')) i++;
+			while (i < s.length() && s.charAt(i) == ' ') i++;
+			if (i < s.length() && s.charAt(i) == '(') {
+				int depth = 0;
+				for (; i < s.length(); i++) {
+					if (s.charAt(i) == '\'') i = skipLiteralOrComment(s, i) - 1;
+					else if (s.charAt(i) == '(') depth++;
+					else if (s.charAt(i) == ')' && --depth == 0) {
+						i++;
+						break;
+					}
+				}
+			}
+			s = s.substring(Math.min(i, s.length())).strip();
+		}
+		return s;
+	}
+
+	/** True when the head has an {@code =} outside parentheses, i.e. it is a field with an initializer. */
+	private static boolean assignsAtTopLevel(String head) {
+		String s = stripAnnotations(head);
+		int depth = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\'') i = skipLiteralOrComment(s, i) - 1;
+			else if (c == '(') depth++;
+			else if (c == ')') depth--;
+			else if (c == '=' && depth == 0) return true;
+		}
+		return false;
+	}
+
+	/** Index of the brace closing the one at {@code open}, or -1. */
+	private static int matching(String s, int open) {
+		int depth = 0;
+		for (int i = open; i < s.length(); ) {
+			int skipped = skipLiteralOrComment(s, i);
+			if (skipped > i) {
+				i = skipped;
+				continue;
+			}
+			char c = s.charAt(i);
+			if (c == '{') depth++;
+			else if (c == '}' && --depth == 0) return i;
+			i++;
+		}
+		return -1;
+	}
+
+	/** Index of the first {@code target} at or after {@code from} that is code, or -1. */
+	private static int nextCode(String s, int from, char target) {
+		for (int i = from; i < s.length(); ) {
+			int skipped = skipLiteralOrComment(s, i);
+			if (skipped > i) {
+				i = skipped;
+				continue;
+			}
+			if (s.charAt(i) == target) return i;
+			i++;
+		}
+		return -1;
+	}
+
+	/** If a string literal or comment starts at {@code i}, the index just past it; otherwise {@code i}. */
+	private static int skipLiteralOrComment(String s, int i) {
+		char c = s.charAt(i);
+		if (c == '\'') {
+			for (int j = i + 1; j < s.length(); j++) {
+				if (s.charAt(j) == '\\') j++;
+				else if (s.charAt(j) == '\'') return j + 1;
+			}
+			return s.length();
+		}
+		if (c == '/' && i + 1 < s.length()) {
+			if (s.charAt(i + 1) == '/') {
+				int end = s.indexOf('\n', i);
+				return end < 0 ? s.length() : end;
+			}
+			if (s.charAt(i + 1) == '*') {
+				int end = s.indexOf("*/", i + 2);
+				return end < 0 ? s.length() : end + 2;
+			}
+		}
+		return i;
+	}
+
+	private static String stripComments(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); ) {
+			int skipped = skipLiteralOrComment(s, i);
+			if (skipped > i) {
+				if (s.charAt(i) == '\'') sb.append(s, i, skipped);
+				else sb.append(' ');
+				i = skipped;
+				continue;
+			}
+			sb.append(s.charAt(i++));
+		}
+		return sb.toString();
+	}
+}
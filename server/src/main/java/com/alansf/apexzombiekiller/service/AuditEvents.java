@@ -0,0 +1,82 @@
+package com.alansf.apexzombiekiller.service;
+
+import com.alansf.apexzombiekiller.model.ExecutionAudit;
+import com.alansf.apexzombiekiller.repo.CodeRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Server-sent completion events for asynchronous executions. Subscribers wait on an audit id until
+ * {@code audit_done} for it arrives through NotifyListener (from whichever dyno ran the job), then
+ * get the final audit as a {@code completed} event and the stream ends. No servlet thread is held
+ * while waiting.
+ */
+@Component
+public class AuditEvents {
+	private static final Logger log = LoggerFactory.getLogger(AuditEvents.class);
+
+	private final CodeRepository repo;
+	private final long timeoutMillis;
+	private final Map<UUID, List<SseEmitter>> waiting = new ConcurrentHashMap<>();
+
+	public AuditEvents(CodeRepository repo, @Value("${audit.events.timeout-ms:300000}") long timeoutMillis) {
+		this.repo = repo;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/** Opens a stream for {@code audit}; it is answered at once when the audit has already finished. */
+	public SseEmitter subscribe(ExecutionAudit audit) {
+		SseEmitter emitter = new SseEmitter(timeoutMillis);
+		if (isFinal(audit)) {
+			sendFinal(emitter, audit);
+			return emitter;
+		}
+		waiting.computeIfAbsent(audit.id, k -> new CopyOnWriteArrayList<>()).add(emitter);
+		Runnable unsubscribe = () -> waiting.computeIfPresent(audit.id, (k, list) -> {
+			list.remove(emitter);
+			return list.isEmpty() ? null : list;
+		});
+		emitter.onCompletion(unsubscribe);
+		emitter.onTimeout(unsubscribe);
+		emitter.onError(e -> unsubscribe.run());
+		try {
+			emitter.send(SseEmitter.event().name("status").data(audit));
+		} catch (IOException e) {
+			emitter.completeWithError(e);
+			return emitter;
+		}
+		// It may have finished between the caller's read and our registration.
+		repo.findAudit(audit.id).filter(AuditEvents::isFinal).ifPresent(a -> completed(a.id));
+		return emitter;
+	}
+
+	/** Called for every {@code audit_done} notification. */
+	public void completed(UUID id) {
+		List<SseEmitter> subscribers = waiting.remove(id);
+		if (subscribers == null || subscribers.isEmpty()) return;
+		repo.findAudit(id).ifPresent(audit -> subscribers.forEach(e -> sendFinal(e, audit)));
+	}
+
+	private static void sendFinal(SseEmitter emitter, ExecutionAudit audit) {
+		try {
+			emitter.send(SseEmitter.event().name("completed").data(audit));
+			emitter.complete();
+		} catch (IOException | IllegalStateException e) {
+			log.debug("Audit {} subscriber went away", audit.id);
+		}
+	}
+
+	private static boolean isFinal(ExecutionAudit audit) {
+		return audit.completedAt != null;
+	}
+}
@@ -0,0 +1,255 @@
+package com.alansf.apexzombiekiller.service;
+
+import com.alansf.apexzombiekiller.model.ExecutionAudit;
+import com.alansf.apexzombiekiller.model.ExecutionUsage;
+import com.alansf.apexzombiekiller.repo.CodeRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the execution audit lifecycle. By default each transition is written on the calling
+ * thread. With {@code audit.write-behind.enabled} the audit is kept in memory and its snapshots go
+ * through a bounded buffer to a background writer that upserts them in JDBC batches, so callers
+ * never wait on Postgres unless the buffer is full. A failed batch is retried with backoff, then
+ * written row by row; only rows that still fail are dropped, and counted in
+ * {@code azk.audit.dropped}.
+ */
+@Component
+public class AuditWriter {
+	private static final Logger log = LoggerFactory.getLogger(AuditWriter.class);
+	private static final int BATCH_ATTEMPTS = 3;
+	private static final long RETRY_BACKOFF_MILLIS = 100;
+
+	private final CodeRepository repo;
+	private final boolean writeBehind;
+	private final int flushSize;
+	private final long flushIntervalMillis;
+	private final long maxBlockMillis;
+	private final BlockingQueue<ExecutionAudit> buffer;
+	private final Thread writer;
+	private final Counter dropped;
+	private volatile boolean stopping;
+
+	public AuditWriter(CodeRepository repo, boolean writeBehind, int bufferSize, int flushSize, long flushIntervalMillis, long maxBlockMillis) {
+		this(repo, Metrics.globalRegistry, writeBehind, bufferSize, flushSize, flushIntervalMillis, maxBlockMillis);
+	}
+
+	@Autowired
+	public AuditWriter(CodeRepository repo, MeterRegistry meters,
+	                   @Value("${audit.write-behind.enabled:false}") boolean writeBehind,
+	                   @Value("${audit.write-behind.buffer-size:4096}") int bufferSize,
+	                   @Value("${audit.write-behind.flush-size:200}") int flushSize,
+	                   @Value("${audit.write-behind.flush-interval-ms:50}") long flushIntervalMillis,
+	                   @Value("${audit.write-behind.max-block-ms:100}") long maxBlockMillis) {
+		this.repo = repo;
+		this.dropped = Counter.builder("azk.audit.dropped").description("Write-behind audits that could not be written")
+				.register(meters);
+		this.writeBehind = writeBehind;
+		this.flushSize = Math.max(1, flushSize);
+		this.flushIntervalMillis = Math.max(1, flushIntervalMillis);
+		this.maxBlockMillis = Math.max(0, maxBlockMillis);
+		this.buffer = writeBehind ? new ArrayBlockingQueue<>(Math.max(1, bufferSize)) : null;
+		this.writer = writeBehind ? Thread.ofPlatform().name("audit-writer").daemon().start(this::writeLoop) : null;
+	}
+
+	/** Opens an audit in state RUNNING. */
+	public ExecutionAudit start(UUID codeId, String codeName, String inputJson) {
+		if (!writeBehind) return repo.startAudit(codeId, codeName, inputJson);
+		ExecutionAudit a = running(codeId, codeName, inputJson);
+		enqueue(a);
+		return a;
+	}
+
+	public ExecutionAudit succeed(ExecutionAudit audit, String outputJson, ExecutionUsage usage) {
+		if (!writeBehind) return repo.markAuditSuccess(audit.id, outputJson, usage).orElse(audit);
+		ExecutionAudit a = succeeded(audit, outputJson, usage);
+		enqueue(a);
+		return a;
+	}
+
+	public ExecutionAudit fail(ExecutionAudit audit, String error, ExecutionUsage usage) {
+		if (!writeBehind) return repo.markAuditFailure(audit.id, error, usage).orElse(audit);
+		ExecutionAudit a = failed(audit, error, usage);
+		enqueue(a);
+		return a;
+	}
+
+	public ExecutionAudit timeOut(ExecutionAudit audit, String error, ExecutionUsage usage) {
+		if (!writeBehind) return repo.markAuditTimedOut(audit.id, error, usage).orElse(audit);
+		ExecutionAudit a = timedOut(audit, error, usage);
+		enqueue(a);
+		return a;
+	}
+
+	/** Records finished audits built in memory: one JDBC batch, or the write-behind buffer when enabled. */
+	public void writeAll(List<ExecutionAudit> finished) {
+		if (finished.isEmpty()) return;
+		if (!writeBehind) {
+			repo.upsertAudits(finished);
+			return;
+		}
+		finished.forEach(this::enqueue);
+	}
+
+	/** A new RUNNING audit that exists only in memory until written. */
+	public static ExecutionAudit running(UUID codeId, String codeName, String inputJson) {
+		ExecutionAudit a = new ExecutionAudit();
+		a.id = UUID.randomUUID();
+		a.codeId = codeId;
+		a.codeName = codeName;
+		a.startedAt = Instant.now();
+		a.status = "RUNNING";
+		a.inputJson = inputJson;
+		return a;
+	}
+
+	public static ExecutionAudit succeeded(ExecutionAudit audit, String outputJson, ExecutionUsage usage) {
+		ExecutionAudit a = copy(audit);
+		a.usage = usage;
+		a.status = "SUCCEEDED";
+		a.completedAt = Instant.now();
+		a.outputJson = outputJson;
+		return a;
+	}
+
+	public static ExecutionAudit failed(ExecutionAudit audit, String error, ExecutionUsage usage) {
+		ExecutionAudit a = copy(audit);
+		a.usage = usage;
+		a.status = "FAILED";
+		a.completedAt = Instant.now();
+		a.error = error;
+		return a;
+	}
+
+	public static ExecutionAudit timedOut(ExecutionAudit audit, String error, ExecutionUsage usage) {
+		ExecutionAudit a = failed(audit, error, usage);
+		a.status = "TIMED_OUT";
+		return a;
+	}
+
+	/**
+	 * Hands a snapshot to the writer. A full buffer blocks the caller for up to
+	 * {@code max-block-ms}; past that the snapshot is written inline so no audit is dropped.
+	 */
+	private void enqueue(ExecutionAudit snapshot) {
+		try {
+			if (!stopping && buffer.offer(snapshot, maxBlockMillis, TimeUnit.MILLISECONDS)) return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.debug("Audit buffer full or closed, writing {} inline", snapshot.id);
+		repo.upsertAudits(List.of(snapshot));
+	}
+
+	private void writeLoop() {
+		List<ExecutionAudit> batch = new ArrayList<>(flushSize);
+		while (!stopping || !buffer.isEmpty()) {
+			try {
+				ExecutionAudit first = buffer.poll(200, TimeUnit.MILLISECONDS);
+				if (first == null) continue;
+				batch.add(first);
+				// Flush once flush-size snapshots are in hand or flush-interval has passed since the first.
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+				while (batch.size() < flushSize && !stopping) {
+					buffer.drainTo(batch, flushSize - batch.size());
+					long left = deadline - System.nanoTime();
+					if (batch.size() >= flushSize || left <= 0) break;
+					ExecutionAudit next = buffer.poll(left, TimeUnit.NANOSECONDS);
+					if (next != null) batch.add(next);
+				}
+				buffer.drainTo(batch, flushSize - batch.size());
+			} catch (InterruptedException e) {
+				stopping = true;
+			}
+			flush(batch);
+		}
+	}
+
+	private void flush(List<ExecutionAudit> batch) {
+		if (batch.isEmpty()) return;
+		// Keep only the latest snapshot per audit; RUNNING rows are usually superseded before they land.
+		Map<UUID, ExecutionAudit> latest = new LinkedHashMap<>();
+		batch.forEach(a -> latest.put(a.id, a));
+		List<ExecutionAudit> rows = new ArrayList<>(latest.values());
+		batch.clear();
+		for (int attempt = 1; ; attempt++) {
+			try {
+				repo.upsertAudits(rows);
+				return;
+			} catch (Exception ex) {
+				if (attempt >= BATCH_ATTEMPTS || !backOff(attempt)) {
+					log.warn("Failed to write {} execution audits in a batch, writing them one by one", rows.size(), ex);
+					break;
+				}
+				log.debug("Audit batch write failed (attempt {}), retrying: {}", attempt, ex.getMessage());
+			}
+		}
+		// One bad row fails the whole JDBC batch; alone it only loses itself.
+		int lost = 0;
+		for (ExecutionAudit a : rows) {
+			try {
+				repo.upsertAudits(List.of(a));
+			} catch (Exception ex) {
+				lost++;
+				log.error("Dropping execution audit {} ({})", a.id, a.status, ex);
+			}
+		}
+		dropped.increment(lost);
+	}
+
+	/** Sleeps before the next attempt; false when close() interrupted the wait. */
+	private boolean backOff(int attempt) {
+		try {
+			Thread.sleep(RETRY_BACKOFF_MILLIS << (2 * (attempt - 1)));
+			return true;
+		} catch (InterruptedException e) {
+			// close() set stopping before interrupting; the rows are written one by one right away.
+			return false;
+		}
+	}
+
+	/** Stops taking snapshots and writes everything still buffered before the datasource closes. */
+	@PreDestroy
+	public void close() throws InterruptedException {
+		if (writer == null) return;
+		stopping = true;
+		// Wakes the writer if it is waiting out flush-interval for more snapshots; it then flushes and drains.
+		writer.interrupt();
+		writer.join(10_000);
+		List<ExecutionAudit> rest = new ArrayList<>();
+		buffer.drainTo(rest);
+		flush(rest);
+	}
+
+	private static ExecutionAudit copy(ExecutionAudit src) {
+		ExecutionAudit a = new ExecutionAudit();
+		a.id = src.id;
+		a.codeId = src.codeId;
+		a.codeName = src.codeName;
+		a.startedAt = src.startedAt;
+		a.completedAt = src.completedAt;
+		a.status = src.status;
+		a.error = src.error;
+		a.inputJson = src.inputJson;
+		a.outputJson = src.outputJson;
+		a.usage = src.usage;
+		return a;
+	}
+}
@@ -0,0 +1,110 @@
+package com.alansf.apexzombiekiller.service;
+
+import com.alansf.apexzombiekiller.model.TransformedCode;
+import com.alansf.apexzombiekiller.repo.CodeRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of approved code by name, so executions skip the transformed_code lookup.
+ * Code only changes on register/approve, which NOTIFY {@code code_changed} with the code name;
+ * {@code NotifyListener} relays that to {@link #invalidate} on every dyno. Entries are evicted
+ * least-recently-used past {@code max-entries} or {@code max-source-chars} of cached source.
+ */
+@Service
+public class CodeRegistry {
+	private static final Logger log = LoggerFactory.getLogger(CodeRegistry.class);
+
+	private final CodeRepository repo;
+	private final int maxEntries;
+	private final long maxSourceChars;
+	private final LinkedHashMap<String, TransformedCode> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long sourceChars;
+	// Bumped on every invalidation; a lookup that raced with one does not cache what it read.
+	private long generation;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	public CodeRegistry(CodeRepository repo,
+	                    @Value("${code.cache.max-entries:1000}") int maxEntries,
+	                    @Value("${code.cache.max-source-chars:16000000}") long maxSourceChars) {
+		this.repo = repo;
+		this.maxEntries = maxEntries;
+		this.maxSourceChars = maxSourceChars;
+	}
+
+	public Optional<TransformedCode> findByName(String name) {
+		long seen;
+		synchronized (this) {
+			TransformedCode cached = entries.get(name);
+			if (cached != null) {
+				hits.increment();
+				return Optional.of(cached);
+			}
+			seen = generation;
+		}
+		misses.increment();
+		Optional<TransformedCode> loaded = repo.findByName(name);
+		loaded.ifPresent(code -> put(name, code, seen));
+		return loaded;
+	}
+
+	public synchronized void invalidate(String name) {
+		generation++;
+		invalidations.increment();
+		TransformedCode removed = entries.remove(name);
+		if (removed != null) {
+			sourceChars -= weight(removed);
+			log.debug("Invalidated cached code {}", name);
+		}
+	}
+
+	/** Drops everything, e.g. after the LISTEN connection was re-established and notifications may be lost. */
+	public synchronized void invalidateAll() {
+		generation++;
+		invalidations.increment();
+		entries.clear();
+		sourceChars = 0;
+	}
+
+	public synchronized Map<String, Object> stats() {
+		long h = hits.sum();
+		long m = misses.sum();
+		Map<String, Object> out = new LinkedHashMap<>();
+		out.put("entries", entries.size());
+		out.put("sourceChars", sourceChars);
+		out.put("hits", h);
+		out.put("misses", m);
+		out.put("hitRatio", h + m == 0 ? 0.0 : (double) h / (h + m));
+		out.put("evictions", evictions.sum());
+		out.put("invalidations", invalidations.sum());
+		return out;
+	}
+
+	private synchronized void put(String name, TransformedCode code, long seen) {
+		if (generation != seen || weight(code) > maxSourceChars) return;
+		TransformedCode previous = entries.put(name, code);
+		if (previous != null) sourceChars -= weight(previous);
+		sourceChars += weight(code);
+		for (Iterator<TransformedCode> it = entries.values().iterator();
+		     it.hasNext() && (entries.size() > maxEntries || sourceChars > maxSourceChars); ) {
+			sourceChars -= weight(it.next());
+			it.remove();
+			evictions.increment();
+		}
+	}
+
+	private static long weight(TransformedCode code) {
+		return code.source == null ? 0 : code.source.length();
+	}
+}
@@ -0,0 +1,75 @@
+package com.alansf.apexzombiekiller.service;
+
+import java.util.Map;
+
+/**
+ * One compiled version of a user class, keyed by the content hash of its sanitized source and
+ * compiler options. Each unit owns its own class loader, so distinct versions of the same class
+ * name can be live side by side while in-flight executions drain.
+ */
+public final class CompiledUnit {
+	final String key;
+	final String className;
+	final Map<String, byte[]> classBytes;
+	final Class<?> type;
+	final Entrypoint entrypoint;
+	final String backend; // compiler that produced the bytecode, or "artifact" when loaded from storage
+	final long compileNanos;
+
+	private int inFlight;
+	private boolean retired;
+	private boolean evicted;
+
+	CompiledUnit(String key, String className, Map<String, byte[]> classBytes, Class<?> type, String backend, long compileNanos) {
+		this.key = key;
+		this.className = className;
+		this.classBytes = classBytes;
+		this.type = type;
+		this.entrypoint = Entrypoint.resolve(type);
+		this.backend = backend;
+		this.compileNanos = compileNanos;
+	}
+
+	public String key() { return key; }
+	public String className() { return className; }
+	public Map<String, byte[]> classBytes() { return classBytes; }
+	public Class<?> type() { return type; }
+	public Entrypoint entrypoint() { return entrypoint; }
+	public String backend() { return backend; }
+	public long compileNanos() { return compileNanos; }
+
+	/** Pins the unit for an execution; fails if it was evicted after being looked up. */
+	synchronized boolean tryAcquire() {
+		if (evicted) return false;
+		inFlight++;
+		return true;
+	}
+
+	/** Unpins the unit; returns true when this was the last user of a retired unit. */
+	synchronized boolean release() {
+		inFlight--;
+		if (inFlight == 0 && retired) {
+			evicted = true;
+			return true;
+		}
+		return false;
+	}
+
+	/** Marks the unit as superseded; returns true when it is idle and can be dropped right away. */
+	synchronized boolean retire() {
+		retired = true;
+		if (inFlight == 0) {
+			evicted = true;
+			return true;
+		}
+		return false;
+	}
+
+	synchronized void reinstate() {
+		retired = false;
+	}
+
+	synchronized int inFlight() {
+		return inFlight;
+	}
+}
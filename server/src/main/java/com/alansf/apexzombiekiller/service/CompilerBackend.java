@@ -0,0 +1,33 @@
+package com.alansf.apexzombiekiller.service;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns sanitized user sources into class files for {@link JavaExecutionAdapter}. A backend sets
+ * either {@link Unit#classBytes} or {@link Unit#error} on every unit it is given; one bad source
+ * must not fail the others.
+ */
+interface CompilerBackend {
+
+	String name();
+
+	void compile(List<Unit> units);
+
+	/** One source to compile, and what its compile produced. */
+	final class Unit {
+		final String key;
+		final String className;
+		final String source;
+		Map<String, byte[]> classBytes;
+		String error;
+		String backend;
+		long compileNanos;
+
+		Unit(String key, String className, String source) {
+			this.key = key;
+			this.className = className;
+			this.source = source;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package com.alansf.apexzombiekiller.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+public final class ContentHash {
+	private ContentHash() {}
+
+	/** Hex SHA-256 over the UTF-8 parts, separated by NUL so ("ab","c") and ("a","bc") differ. */
+	public static String sha256(String... parts) {
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-256");
+			for (int i = 0; i < parts.length; i++) {
+				if (i > 0) sha.update((byte) 0);
+				sha.update(parts[i].getBytes(StandardCharsets.UTF_8));
+			}
+			return HexFormat.of().formatHex(sha.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String shortKey(String key) {
+		return key.length() > 12 ? key.substring(0, 12) : key;
+	}
+}
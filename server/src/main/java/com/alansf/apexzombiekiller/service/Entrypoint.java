@@ -0,0 +1,133 @@
+package com.alansf.apexzombiekiller.service;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Entrypoint of a compiled user class, resolved once at load time into a {@link MethodHandle}
+ * so executions skip reflective lookups and {@link NoSuchMethodException} probing.
+ *
+ * <p>The typed contract is {@code Function<Map<String,Object>,Object>} or a public
+ * {@code run(Map)}/{@code execute(Map)} method; the request payload is handed over as-is and the
+ * return value becomes the execution result. The untyped run()/execute()/main(String[]) forms
+ * are still accepted and produce no result.
+ */
+public final class Entrypoint {
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+	private static final MethodType INVOKER = MethodType.methodType(Object.class, Map.class);
+
+	private final String signature;
+	private final MethodHandle handle; // (Map)Object; null when the class has no usable entrypoint
+
+	private Entrypoint(String signature, MethodHandle handle) {
+		this.signature = signature;
+		this.handle = handle;
+	}
+
+	/** Resolves Function.apply, run(Map), execute(Map), run(), execute(), or static main(String[]), in that order. */
+	public static Entrypoint resolve(Class<?> type) {
+		initiate(type, Map.class, Function.class, String[].class);
+		MethodHandle ctor = find(() -> LOOKUP.findConstructor(type, MethodType.methodType(void.class)));
+		if (ctor != null && Function.class.isAssignableFrom(type)) {
+			MethodHandle apply = find(() -> LOOKUP.findVirtual(Function.class, "apply", MethodType.methodType(Object.class, Object.class)));
+			return new Entrypoint("Function.apply(Map)",
+					MethodHandles.collectArguments(apply, 0, ctor.asType(MethodType.methodType(Function.class))).asType(INVOKER));
+		}
+		for (String name : new String[]{"run", "execute"}) {
+			Entrypoint e = instanceOrStatic(type, ctor, name, Map.class);
+			if (e != null) return e;
+		}
+		for (String name : new String[]{"run", "execute"}) {
+			Entrypoint e = instanceOrStatic(type, ctor, name);
+			if (e != null) return e;
+		}
+		MethodHandle main = find(() -> LOOKUP.findStatic(type, "main", MethodType.methodType(void.class, String[].class)));
+		if (main != null) {
+			MethodHandle noPayload = MethodHandles.insertArguments(main, 0, (Object) new String[0]);
+			return new Entrypoint("static main(String[])", adapt(noPayload, false));
+		}
+		return new Entrypoint(null, null);
+	}
+
+	public String signature() {
+		return signature;
+	}
+
+	/** Invokes the entrypoint with the payload (no copy is made) and returns its result, or null. */
+	public Object invoke(Map<String, Object> payload) throws Exception {
+		if (handle == null) {
+			throw new RuntimeException("No suitable entrypoint found. Expected one of: Function<Map,Object>, run(Map), execute(Map), run(), execute(), or static main(String[]).");
+		}
+		try {
+			return (Object) handle.invokeExact((Map) payload);
+		} catch (Exception | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
+		}
+	}
+
+	private static Entrypoint instanceOrStatic(Class<?> type, MethodHandle ctor, String name, Class<?>... params) {
+		Method method;
+		try {
+			method = type.getMethod(name, params);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+		MethodHandle m = find(() -> LOOKUP.unreflect(method));
+		if (m == null) return null;
+		boolean isStatic = Modifier.isStatic(method.getModifiers());
+		boolean takesPayload = params.length == 1;
+		String signature = (isStatic ? "static " : "") + name + (takesPayload ? "(Map)" : "()");
+		if (isStatic) {
+			return new Entrypoint(signature, adapt(m, takesPayload));
+		}
+		if (ctor == null) return null;
+		// new T().name(...) on every call, matching the old per-execution instance.
+		MethodHandle bound = MethodHandles.collectArguments(m, 0, ctor.asType(MethodType.methodType(type)));
+		return new Entrypoint(signature, adapt(bound, takesPayload));
+	}
+
+	/** Brings a handle to (Map)Object: void returns become null, payload-less handles ignore the map. */
+	private static MethodHandle adapt(MethodHandle h, boolean takesPayload) {
+		if (h.type().returnType() == void.class) {
+			h = MethodHandles.filterReturnValue(h, MethodHandles.constant(Object.class, null));
+		}
+		if (!takesPayload) {
+			h = MethodHandles.dropArguments(h, 0, Map.class);
+		}
+		return h.asType(INVOKER);
+	}
+
+	/**
+	 * Records the user class loader as an initiating loader for signature types its code never
+	 * resolved itself. Otherwise C2 sees them as unloaded while inlining the handle and crashes
+	 * (observed on JDK 21.0.1 with an empty static main(String[])).
+	 */
+	private static void initiate(Class<?> type, Class<?>... signatureTypes) {
+		for (Class<?> c : signatureTypes) {
+			try {
+				Class.forName(c.getName(), false, type.getClassLoader());
+			} catch (ClassNotFoundException ignored) {
+				// Not visible from the user loader; nothing to register.
+			}
+		}
+	}
+
+	private interface HandleLookup {
+		MethodHandle find() throws ReflectiveOperationException;
+	}
+
+	private static MethodHandle find(HandleLookup lookup) {
+		try {
+			return lookup.find();
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
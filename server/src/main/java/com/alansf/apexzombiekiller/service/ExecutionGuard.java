@@ -0,0 +1,279 @@
+package com.alansf.apexzombiekiller.service;
+
+import com.alansf.apexzombiekiller.model.ExecutionUsage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs user code on a dedicated, bounded pool of platform threads under a wall-clock and an
+ * optional CPU-time budget, so a runaway execution never holds the caller's (servlet, worker)
+ * thread. Past its budget the execution is interrupted and abandoned: the caller gets an
+ * {@link ExecutionTimeoutException} right away. Java code that ignores interrupts keeps its pool
+ * thread until it returns; once all {@code exec.guard.max-threads} are taken new executions are
+ * refused instead of queueing behind it. Budgets come from the code's metadata
+ * ({@code timeoutMs}, {@code cpuTimeMs}) or the {@code exec.timeout-ms} / {@code exec.cpu-time-ms}
+ * defaults. When given an {@link ExecutionUsage}, the run's thread CPU time, allocated bytes and
+ * wall time are recorded into it, including for runs that time out.
+ */
+@Component
+public class ExecutionGuard {
+	private static final Logger log = LoggerFactory.getLogger(ExecutionGuard.class);
+	private static final long CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final ThreadLocal<Task<?>> CURRENT = new ThreadLocal<>();
+
+	private final long defaultTimeoutMillis;
+	private final long defaultCpuMillis;
+	private final ThreadPoolExecutor pool;
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder cpuTimeouts = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	public ExecutionGuard() {
+		this(30_000, 0, 64);
+	}
+
+	@Autowired
+	public ExecutionGuard(@Value("${exec.timeout-ms:30000}") long defaultTimeoutMillis,
+	                      @Value("${exec.cpu-time-ms:0}") long defaultCpuMillis,
+	                      @Value("${exec.guard.max-threads:64}") int maxThreads) {
+		this.defaultTimeoutMillis = defaultTimeoutMillis;
+		this.defaultCpuMillis = defaultCpuMillis;
+		AtomicInteger n = new AtomicInteger();
+		this.pool = new ThreadPoolExecutor(0, Math.max(1, maxThreads), 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+			Thread t = new Thread(r, "user-code-" + n.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		if (defaultCpuMillis > 0 && !THREADS.isThreadCpuTimeSupported()) {
+			log.warn("Thread CPU time is not supported by this JVM; exec.cpu-time-ms will not be enforced");
+		}
+	}
+
+	/** Limits for one execution; a value of 0 or less disables that limit. */
+	public record Budget(long timeoutMillis, long cpuMillis) {}
+
+	/** The code's own budget from its metadata JSON, falling back to the configured defaults. */
+	public Budget budgetFor(String metadataJson) {
+		long timeout = defaultTimeoutMillis;
+		long cpu = defaultCpuMillis;
+		if (metadataJson != null && !metadataJson.isBlank()) {
+			try {
+				Map<String, Object> meta = JsonUtils.toMap(metadataJson);
+				if (meta.get("timeoutMs") instanceof Number t) timeout = t.longValue();
+				if (meta.get("cpuTimeMs") instanceof Number c) cpu = c.longValue();
+			} catch (IllegalArgumentException ignored) {
+				// Not an object; keep the defaults.
+			}
+		}
+		return new Budget(timeout, cpu);
+	}
+
+	/**
+	 * Registers how to stop the current guarded execution beyond interrupting its thread (e.g.
+	 * cancelling a polyglot context), or clears it with null. Once clearing returns, the action can
+	 * no longer run. Outside a guarded execution this does nothing.
+	 */
+	public static void onCancel(Runnable action) {
+		Task<?> task = CURRENT.get();
+		if (task != null) task.setCancelAction(action);
+	}
+
+	/**
+	 * Records whether the current guarded execution found its code already compiled/parsed.
+	 * Outside a metered execution this does nothing.
+	 */
+	public static void recordCacheHit(boolean hit) {
+		Task<?> task = CURRENT.get();
+		if (task != null && task.usage != null) task.usage.cacheHit = hit;
+	}
+
+	public <T> T run(Budget budget, Callable<T> work) throws Exception {
+		return run(budget, work, null);
+	}
+
+	public <T> T run(Budget budget, Callable<T> work, ExecutionUsage usage) throws Exception {
+		Task<T> task = new Task<>(work, usage);
+		try {
+			pool.execute(task);
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+			throw new IllegalStateException("All " + pool.getMaximumPoolSize() + " execution threads are busy", e);
+		}
+		long start = System.nanoTime();
+		long timeoutNanos = budget.timeoutMillis() > 0 ? TimeUnit.MILLISECONDS.toNanos(budget.timeoutMillis()) : Long.MAX_VALUE;
+		long cpuNanos = budget.cpuMillis() > 0 ? TimeUnit.MILLISECONDS.toNanos(budget.cpuMillis()) : Long.MAX_VALUE;
+		try {
+			while (true) {
+				long left = timeoutNanos == Long.MAX_VALUE ? CHECK_NANOS : timeoutNanos - (System.nanoTime() - start);
+				if (left <= 0) {
+					timeouts.increment();
+					task.measureSoFar();
+					task.abandon();
+					throw new ExecutionTimeoutException("Execution exceeded its " + budget.timeoutMillis() + " ms time budget");
+				}
+				try {
+					return task.get(Math.min(left, CHECK_NANOS), TimeUnit.NANOSECONDS);
+				} catch (TimeoutException notYet) {
+					if (cpuNanos != Long.MAX_VALUE && task.cpuNanos() > cpuNanos) {
+						cpuTimeouts.increment();
+						task.measureSoFar();
+						task.abandon();
+						throw new ExecutionTimeoutException("Execution exceeded its " + budget.cpuMillis() + " ms CPU budget");
+					}
+				}
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception ex) throw ex;
+			if (e.getCause() instanceof Error err) throw err;
+			throw e;
+		} catch (InterruptedException e) {
+			task.abandon();
+			throw e;
+		}
+	}
+
+	public Map<String, Object> stats() {
+		Map<String, Object> m = new LinkedHashMap<>();
+		m.put("running", pool.getActiveCount());
+		m.put("threads", pool.getPoolSize());
+		m.put("maxThreads", pool.getMaximumPoolSize());
+		m.put("timeouts", timeouts.sum());
+		m.put("cpuTimeouts", cpuTimeouts.sum());
+		m.put("rejected", rejected.sum());
+		return m;
+	}
+
+	@PreDestroy
+	public void close() {
+		pool.shutdownNow();
+	}
+
+	private static final class Task<T> extends FutureTask<T> {
+		final ExecutionUsage usage;
+		private final Meter meter;
+		private volatile Thread thread;
+		private Runnable cancelAction;
+
+		Task(Callable<T> work, ExecutionUsage usage) {
+			this(new Meter(usage), work);
+		}
+
+		private Task(Meter meter, Callable<T> work) {
+			// Measured inside the callable so usage is complete before the result is published.
+			super(() -> {
+				meter.begin();
+				try {
+					return work.call();
+				} finally {
+					meter.end();
+				}
+			});
+			this.meter = meter;
+			this.usage = meter.usage;
+		}
+
+		@Override
+		public void run() {
+			thread = Thread.currentThread();
+			CURRENT.set(this);
+			try {
+				super.run();
+			} finally {
+				CURRENT.remove();
+				thread = null;
+			}
+		}
+
+		synchronized void setCancelAction(Runnable action) {
+			cancelAction = action;
+		}
+
+		/** Runs the cancel action, interrupts the thread, and stops waiting for a result. */
+		void abandon() {
+			synchronized (this) {
+				if (cancelAction != null) {
+					try {
+						cancelAction.run();
+					} catch (RuntimeException e) {
+						log.debug("Cancel action failed", e);
+					}
+					cancelAction = null;
+				}
+			}
+			cancel(true);
+		}
+
+		/** CPU time this run has used so far; pool threads are reused, so their totals are not. */
+		long cpuNanos() {
+			Thread t = thread;
+			long start = meter.startCpu;
+			return t == null || start < 0 ? 0 : THREADS.getThreadCpuTime(t.threadId()) - start;
+		}
+
+		/** Fills usage from the still-running thread, for an execution about to be abandoned. */
+		void measureSoFar() {
+			Thread t = thread;
+			if (usage != null && t != null) meter.record(THREADS.getThreadCpuTime(t.threadId()), allocatedBytes(t.threadId()));
+		}
+	}
+
+	/** Thread CPU and allocation counters at the start of a run, turned into usage at its end. */
+	private static final class Meter {
+		final ExecutionUsage usage;
+		private volatile long startNanos;
+		private volatile long startCpu = -1; // -1 until the run begins, or when CPU time is unsupported
+		private volatile long startAllocated = -1;
+
+		Meter(ExecutionUsage usage) {
+			this.usage = usage;
+		}
+
+		void begin() {
+			long id = Thread.currentThread().threadId();
+			startCpu = THREADS.getThreadCpuTime(id);
+			startAllocated = allocatedBytes(id);
+			startNanos = System.nanoTime();
+		}
+
+		void end() {
+			if (usage == null) return;
+			long id = Thread.currentThread().threadId();
+			record(THREADS.getThreadCpuTime(id), allocatedBytes(id));
+		}
+
+		synchronized void record(long cpuNow, long allocatedNow) {
+			if (usage.wallTimeMicros != null) return; // the first of end/abandon wins
+			usage.wallTimeMicros = (System.nanoTime() - startNanos) / 1_000;
+			if (cpuNow >= 0 && startCpu >= 0) usage.cpuTimeMicros = (cpuNow - startCpu) / 1_000;
+			if (allocatedNow >= 0 && startAllocated >= 0) usage.allocatedBytes = allocatedNow - startAllocated;
+		}
+	}
+
+	/** Heap bytes the thread has allocated so far, or -1 when the JVM does not track it. */
+	private static long allocatedBytes(long threadId) {
+		if (THREADS instanceof com.sun.management.ThreadMXBean sun && sun.isThreadAllocatedMemoryEnabled()) {
+			return sun.getThreadAllocatedBytes(threadId);
+		}
+		return -1;
+	}
+}
@@ -1,25 +1,61 @@
 package com.alansf.apexzombiekiller.service;
 
+import com.alansf.apexzombiekiller.model.ExecuteBatchRequest;
+import com.alansf.apexzombiekiller.model.ExecuteBatchResponse;
 import com.alansf.apexzombiekiller.model.ExecutionAudit;
+import com.alansf.apexzombiekiller.model.ExecutionUsage;
 import com.alansf.apexzombiekiller.model.TransformedCode;
 import com.alansf.apexzombiekiller.repo.CodeRepository;
+import com.alansf.apexzombiekiller.repo.JobQueueRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class ExecutionService {
 	private static final Logger log = LoggerFactory.getLogger(ExecutionService.class);
 	private final CodeRepository repo;
-	private final JavaExecutionAdapter javaAdapter = new JavaExecutionAdapter();
-	private final JsExecutionAdapter jsAdapter = new JsExecutionAdapter();
+	private final CodeRegistry codes;
+	private final AuditWriter audits;
+	private final JavaExecutionAdapter javaAdapter;
+	private final JsExecutionAdapter jsAdapter;
+	private final ExecutionGuard guard;
+	private final MeterRegistry meters;
+	private final Map<String, Timer> latencyTimers = new ConcurrentHashMap<>();
 
-	public ExecutionService(CodeRepository repo) {
+	private final JobQueueRepository jobs;
+	private final int batchConcurrency;
+	private final int batchMaxItems;
+
+	public ExecutionService(CodeRepository repo, CodeRegistry codes, AuditWriter audits, JobQueueRepository jobs,
+	                        JavaExecutionAdapter javaAdapter, JsExecutionAdapter jsAdapter, ExecutionGuard guard, MeterRegistry meters,
+	                        @Value("${exec.batch.concurrency:8}") int batchConcurrency,
+	                        @Value("${exec.batch.max-items:200}") int batchMaxItems) {
 		this.repo = repo;
+		this.jobs = jobs;
+		this.batchConcurrency = Math.max(1, batchConcurrency);
+		this.batchMaxItems = batchMaxItems;
+		this.codes = codes;
+		this.audits = audits;
+		this.javaAdapter = javaAdapter;
+		this.jsAdapter = jsAdapter;
+		this.guard = guard;
+		this.meters = meters;
 	}
 
 	public ExecutionAudit executeById(UUID id, Map<String, Object> payload) {
@@ -32,7 +68,7 @@ public class ExecutionService {
 	}
 
 	public ExecutionAudit executeByName(String name, Map<String, Object> payload) {
-		Optional<TransformedCode> opt = repo.findByName(name);
+		Optional<TransformedCode> opt = codes.findByName(name);
 		if (opt.isEmpty()) {
 			throw new IllegalArgumentException("Code not found: " + name);
 		}
@@ -40,25 +76,176 @@ public class ExecutionService {
 		return execute(code, payload);
 	}
 
-	private ExecutionAudit execute(TransformedCode code, Map<String, Object> payload) {
+	/**
+	 * Runs many executions in one request, at most {@code exec.batch.concurrency} at a time, and
+	 * returns a result per item in request order. Audits are built in memory and written together
+	 * once every item has finished. An item that could not be run, because its lookup failed or the
+	 * batch was interrupted first, gets a 500 result with the error rather than a null entry.
+	 */
+	public ExecuteBatchResponse executeBatch(List<ExecuteBatchRequest.Item> items) {
+		if (items.size() > batchMaxItems) {
+			throw new IllegalArgumentException("At most " + batchMaxItems + " items per batch, got " + items.size());
+		}
+		ExecuteBatchResponse.Result[] results = new ExecuteBatchResponse.Result[items.size()];
+		Semaphore permits = new Semaphore(batchConcurrency);
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < items.size(); i++) {
+				int index = i;
+				long submitted = System.nanoTime();
+				executor.execute(() -> {
+					try {
+						permits.acquire();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return; // left null, filled in below
+					}
+					try {
+						results[index] = executeItem(items.get(index), (System.nanoTime() - submitted) / 1_000_000);
+					} catch (RuntimeException e) {
+						log.error("Batch item {} failed before it ran", items.get(index).name, e);
+						results[index] = notRun(items.get(index), e.getMessage());
+					} finally {
+						permits.release();
+					}
+				});
+			}
+		}
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] == null) results[i] = notRun(items.get(i), "Batch interrupted before this item ran");
+		}
+		List<ExecutionAudit> finished = new ArrayList<>();
+		for (ExecuteBatchResponse.Result r : results) {
+			if (r != null && r.audit != null) finished.add(r.audit);
+		}
+		audits.writeAll(finished);
+		ExecuteBatchResponse response = new ExecuteBatchResponse();
+		response.results = Arrays.asList(results);
+		return response;
+	}
+
+	private static ExecuteBatchResponse.Result notRun(ExecuteBatchRequest.Item item, String error) {
+		ExecuteBatchResponse.Result r = new ExecuteBatchResponse.Result();
+		r.name = item.name;
+		r.status = 500;
+		r.error = error;
+		return r;
+	}
+
+	private ExecuteBatchResponse.Result executeItem(ExecuteBatchRequest.Item item, long slotWaitMillis) {
+		ExecuteBatchResponse.Result r = new ExecuteBatchResponse.Result();
+		r.name = item.name;
+		Optional<TransformedCode> code = item.name == null ? Optional.empty() : codes.findByName(item.name);
+		if (code.isEmpty()) {
+			r.status = 404;
+			r.error = "Code not found: " + item.name;
+			return r;
+		}
+		Map<String, Object> payload = item.payload == null ? Map.of() : item.payload;
+		long start = System.nanoTime();
+		ExecutionAudit audit = AuditWriter.running(code.get().id, code.get().name, JsonUtils.toJson(payload));
+		ExecutionUsage usage = new ExecutionUsage();
+		usage.queueWaitMillis = slotWaitMillis;
+		try {
+			Object result = invoke(code.get(), payload, usage);
+			r.audit = AuditWriter.succeeded(audit, result == null ? null : JsonUtils.toJson(result), usage);
+		} catch (ExecutionTimeoutException ex) {
+			log.warn("Execution timed out for {}: {}", item.name, ex.getMessage());
+			r.audit = AuditWriter.timedOut(audit, ex.getMessage(), usage);
+		} catch (Exception ex) {
+			log.error("Execution failed for {}", item.name, ex);
+			r.audit = AuditWriter.failed(audit, ex.getMessage(), usage);
+		}
+		recordLatency(code.get(), "batch", r.audit, start);
+		r.status = 200;
+		return r;
+	}
+
+	/**
+	 * Records an ACCEPTED audit and queues an {@code execute} job for it instead of running the
+	 * code on the caller's thread; QueueWorker picks it up via {@link #runQueued}.
+	 */
+	public ExecutionAudit submitByName(String name, Map<String, Object> payload) {
+		TransformedCode code = codes.findByName(name)
+				.orElseThrow(() -> new IllegalArgumentException("Code not found: " + name));
 		ExecutionAudit audit = repo.createAudit(code.id, code.name, JsonUtils.toJson(payload));
-		repo.markAuditRunning(audit.id);
+		jobs.enqueue("execute", code.name, JsonUtils.toJson(Map.of("auditId", audit.id.toString(), "payload", payload)));
+		return audit;
+	}
+
+	/**
+	 * Runs a queued execution against its ACCEPTED audit. The outcome is written synchronously
+	 * (even with write-behind on) so that it is readable when {@code audit_done} is announced.
+	 */
+	public ExecutionAudit runQueued(UUID auditId, String name, Map<String, Object> payload) {
+		long start = System.nanoTime();
+		repo.markAuditRunning(auditId);
+		ExecutionAudit done;
+		ExecutionUsage usage = new ExecutionUsage(); // queue wait was recorded by markAuditRunning
+		TransformedCode code = null;
 		try {
-			if ("java".equalsIgnoreCase(code.language)) {
-				// Expect a class with no-arg constructor and a public void run() method.
-				javaAdapter.execute("com.demo.jobs.UserCode", code.source);
-			} else if ("js".equalsIgnoreCase(code.language)) {
-				jsAdapter.execute(code.source);
-			} else {
-				throw new IllegalArgumentException("Unsupported language: " + code.language);
-			}
-			repo.markAuditSuccess(audit.id);
+			code = codes.findByName(name)
+					.orElseThrow(() -> new IllegalArgumentException("Code not found: " + name));
+			Object result = invoke(code, payload, usage);
+			done = repo.markAuditSuccess(auditId, result == null ? null : JsonUtils.toJson(result), usage).orElseThrow();
+		} catch (ExecutionTimeoutException ex) {
+			log.warn("Queued execution {} timed out for {}: {}", auditId, name, ex.getMessage());
+			done = repo.markAuditTimedOut(auditId, ex.getMessage(), usage).orElseThrow();
+		} catch (Exception ex) {
+			log.error("Queued execution {} failed for {}", auditId, name, ex);
+			done = repo.markAuditFailure(auditId, ex.getMessage(), usage).orElseThrow();
+		}
+		repo.notifyAuditDone(auditId);
+		recordLatency(code, "queued", done, start);
+		return done;
+	}
+
+	private ExecutionAudit execute(TransformedCode code, Map<String, Object> payload) {
+		long start = System.nanoTime();
+		// Opens the audit already RUNNING; with write-behind on, neither this nor the completion waits on Postgres.
+		ExecutionAudit audit = audits.start(code.id, code.name, JsonUtils.toJson(payload));
+		ExecutionUsage usage = new ExecutionUsage();
+		usage.queueWaitMillis = 0L;
+		ExecutionAudit done;
+		try {
+			Object result = invoke(code, payload, usage);
+			done = audits.succeed(audit, result == null ? null : JsonUtils.toJson(result), usage);
+		} catch (ExecutionTimeoutException ex) {
+			log.warn("Execution timed out for {}: {}", code.name, ex.getMessage());
+			done = audits.timeOut(audit, ex.getMessage(), usage);
 		} catch (Exception ex) {
 			log.error("Execution failed for {}", code.name, ex);
-			repo.markAuditFailure(audit.id, ex.getMessage());
+			done = audits.fail(audit, ex.getMessage(), usage);
 		}
-		return repo.findAudit(audit.id).orElse(audit);
+		recordLatency(code, "sync", done, start);
+		return done;
 	}
-}
 
+	/**
+	 * End-to-end latency per code, audit writes included; mode is sync, batch or queued. Only codes
+	 * found in the registry get their own series, anything else is tagged {@code unknown}.
+	 */
+	private void recordLatency(TransformedCode code, String mode, ExecutionAudit done, long startNanos) {
+		String codeName = code == null ? "unknown" : code.name;
+		String status = done == null ? "UNKNOWN" : done.status;
+		latencyTimers.computeIfAbsent(codeName + '/' + mode + '/' + status, k -> Timer.builder("azk.execution")
+				.description("End-to-end execution latency per code")
+				.tag("code", codeName).tag("mode", mode).tag("status", status).register(meters))
+				.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+	}
 
+	/**
+	 * Runs the code on the guard's executor under its budget, metering it into {@code usage}; past
+	 * the budget this throws ExecutionTimeoutException.
+	 */
+	private Object invoke(TransformedCode code, Map<String, Object> payload, ExecutionUsage usage) throws Exception {
+		// The parsed request map goes to the user code as-is; its return value is the result.
+		if ("java".equalsIgnoreCase(code.language)) {
+			// Expect a no-arg constructor and run(Map)/Function<Map,Object>, or a plain run().
+			return guard.run(guard.budgetFor(code.metadataJson),
+					() -> javaAdapter.execute(code.name, "com.demo.jobs.UserCode", code.source, payload), usage);
+		} else if ("js".equalsIgnoreCase(code.language)) {
+			return guard.run(guard.budgetFor(code.metadataJson), () -> jsAdapter.execute(code.name, code.source, payload), usage);
+		}
+		throw new IllegalArgumentException("Unsupported language: " + code.language);
+	}
+}
@@ -0,0 +1,8 @@
+package com.alansf.apexzombiekiller.service;
+
+/** User code ran past its wall-clock or CPU budget and was cancelled; audited as TIMED_OUT. */
+public class ExecutionTimeoutException extends RuntimeException {
+	public ExecutionTimeoutException(String message) {
+		super(message);
+	}
+}
@@ -2,91 +2,249 @@ package com.alansf.apexzombiekiller.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.http.HttpEntity;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
-import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 import reactor.util.retry.Retry;
 
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Calls Managed Inference, trying the configured URL and its known schema variants. The first
+ * candidate that answers with a completion is memoized per configured endpoint and used alone until
+ * it fails; on a cold start (or after a failure) the candidates are probed concurrently, at most
+ * {@code inference.probe.concurrency} at a time, and the losers cancelled. Every probe in flight is a
+ * full inference call, so a cold probe spends up to that many times the tokens of a warm one.
+ * With {@code inference.hedge.enabled}, a call to the memoized URL that runs past that URL's recent
+ * p95 latency is duplicated and whichever copy answers first wins.
+ */
 @Component
 public class InferenceClient {
 	private static final Logger log = LoggerFactory.getLogger(InferenceClient.class);
+	// One retry for transient failures; a 4xx will not change on a second try.
+	private static final Retry RETRY = Retry.max(1)
+			.filter(e -> !(e instanceof WebClientResponseException w && w.getStatusCode().is4xxClientError()));
+
+	private static final String JAVA_CLASS_RULES = "You convert Salesforce Apex to efficient, bulk-safe standalone executable Java code. Generate a single public class with a public no-arg constructor and a public Object run(java.util.Map<String, Object> payload) method that reads its inputs from payload and returns its result (a Map, List, String, number, or null). Use standard Java libraries only - no Spring annotations (@Service, @Autowired, etc.). The code should be self-contained and executable without framework dependencies. Replace SOQL/DML-in-loops with batch processing, use indexed filters, and selective fields.";
+
+	// Every prompt rendered with empty inputs, hashed; see promptVersion().
+	private static final String PROMPT_VERSION = promptHash(
+			transformPrompt("java", "", false, false), transformPrompt("js", "", false, false),
+			outlinePrompt("", false, false), memberPrompt("", "", false));
+
 	private final WebClient http = WebClient.builder().build();
 	private final ObjectMapper mapper = new ObjectMapper();
+	private final MeterRegistry meters;
+	private final String endpoint;
+	private final String model;
+	private final String key;
+	private final boolean hedge;
+	private final int hedgeMinSamples;
+	private final int probeConcurrency;
+	// Configured endpoint -> candidate URL that last answered, and recent latencies per candidate URL.
+	private final Map<String, String> resolved = new ConcurrentHashMap<>();
+	private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+	public InferenceClient() {
+		this(Metrics.globalRegistry, System.getenv("INFERENCE_URL"), System.getenv("INFERENCE_MODEL_ID"),
+				Optional.ofNullable(System.getenv("INFERENCE_KEY")).filter(s -> !s.isBlank()).orElse(System.getenv("INFERENCE_TOKEN")),
+				false, 20);
+	}
+
+	public InferenceClient(MeterRegistry meters, String endpoint, String model, String key, boolean hedge, int hedgeMinSamples) {
+		this(meters, endpoint, model, key, hedge, hedgeMinSamples, 2);
+	}
+
+	@Autowired
+	public InferenceClient(MeterRegistry meters,
+	                       @Value("${inference.endpoint:}") String endpoint,
+	                       @Value("${inference.model:}") String model,
+	                       @Value("${inference.key:}") String key,
+	                       @Value("${inference.hedge.enabled:false}") boolean hedge,
+	                       @Value("${inference.hedge.min-samples:20}") int hedgeMinSamples,
+	                       @Value("${inference.probe.concurrency:2}") int probeConcurrency) {
+		this.meters = meters;
+		this.endpoint = endpoint;
+		this.model = model;
+		this.key = key;
+		this.hedge = hedge;
+		this.hedgeMinSamples = Math.max(1, hedgeMinSamples);
+		this.probeConcurrency = Math.max(1, probeConcurrency);
+	}
 
 	private Optional<String> endpoint() {
-		// Use INFERENCE_URL only
-		String url = System.getenv("INFERENCE_URL");
-		return Optional.ofNullable(url).filter(s -> s != null && !s.isBlank());
+		return Optional.ofNullable(endpoint).filter(s -> !s.isBlank());
 	}
 	private Optional<String> model() {
-		// Use INFERENCE_MODEL_ID only
-		String m = System.getenv("INFERENCE_MODEL_ID");
-		return Optional.ofNullable(m).filter(s -> s != null && !s.isBlank());
+		return Optional.ofNullable(model).filter(s -> !s.isBlank());
 	}
 	private Optional<String> bearerToken() {
-		// Prefer demo env naming (INFERENCE_KEY), fallback to legacy INFERENCE_TOKEN
-		String t = System.getenv("INFERENCE_KEY");
-		if (t == null || t.isBlank()) {
-			t = System.getenv("INFERENCE_TOKEN");
-		}
-		return Optional.ofNullable(t).filter(s -> !s.isBlank());
+		// INFERENCE_KEY, or the legacy INFERENCE_TOKEN (see inference.key)
+		return Optional.ofNullable(key).filter(s -> !s.isBlank());
+	}
+
+	/** The configured model id, part of every transform cache key. */
+	public Optional<String> modelId() {
+		return model();
 	}
 
 	public Optional<String> apexToJava(String apexCode, boolean useHerokuConnect, boolean generateTests) {
-		return callTransform("java", apexCode, useHerokuConnect, generateTests);
+		return transform("java", apexCode, useHerokuConnect, generateTests).blockOptional();
 	}
 
 	public Optional<String> apexToJs(String apexCode, boolean useHerokuConnect, boolean generateTests) {
-		return callTransform("js", apexCode, useHerokuConnect, generateTests);
+		return transform("js", apexCode, useHerokuConnect, generateTests).blockOptional();
 	}
 
-	private Optional<String> callTransform(String target, String apexCode, boolean useHerokuConnect, boolean generateTests) {
-		if (endpoint().isEmpty() || model().isEmpty()) {
-			log.warn("Inference not configured: endpoint={}, model={}", endpoint().orElse("missing"), model().orElse("missing"));
-			return Optional.empty();
-		}
+	/**
+	 * Converts the outline of a class split by {@link ApexUnits} (declaration, state and member
+	 * signatures) into the Java class that the separately converted members are stitched into.
+	 */
+	public Optional<String> apexOutlineToJava(String outline, boolean useHerokuConnect, boolean generateTests) {
+		if (!configured()) return Optional.empty();
+		return resolve(request(outlinePrompt(outline, useHerokuConnect, generateTests))).blockOptional();
+	}
+
+	/** Converts one member of a split class to Java, with the class outline as context. */
+	public Optional<String> apexMemberToJava(String outline, String member, boolean useHerokuConnect) {
+		if (!configured()) return Optional.empty();
+		return resolve(request(memberPrompt(outline, member, useHerokuConnect))).blockOptional();
+	}
+
+	/**
+	 * Identifies the wording of every prompt; part of every transform cache key, so editing a prompt
+	 * stops serving code generated with the old one.
+	 */
+	public String promptVersion() {
+		return PROMPT_VERSION;
+	}
+
+	/**
+	 * The generated code as it is produced: content deltas from the chat completions stream, or the
+	 * whole answer as a single element when only a non-streaming path answers. No thread waits on
+	 * the model. Empty when inference is not configured or every candidate failed.
+	 */
+	public Flux<String> streamTransform(String target, String apexCode, boolean useHerokuConnect, boolean generateTests) {
+		if (!configured()) return Flux.empty();
+		Request req = request(target, apexCode, useHerokuConnect, generateTests);
+		String chat = req.candidates().stream().filter(u -> u.contains("/v1/chat/completions")).findFirst().orElse(null);
+		String known = resolved.get(req.configured());
+		if (chat == null || (known != null && !known.equals(chat))) return resolve(req).flux();
+		return Flux.defer(() -> {
+			long start = System.nanoTime();
+			AtomicBoolean emitted = new AtomicBoolean();
+			AtomicBoolean recorded = new AtomicBoolean();
+			return streamDeltas(chat, req.headers(), req.system(), req.user())
+					.doOnNext(delta -> emitted.set(true))
+					.doOnComplete(() -> {
+						if (recorded.compareAndSet(false, true)) recordAttempt(chat, emitted.get() ? "success" : "empty", start);
+						if (emitted.get()) resolved.put(req.configured(), chat);
+					})
+					.doOnError(ex -> {
+						if (recorded.compareAndSet(false, true)) recordAttempt(chat, outcomeOf(ex), start);
+					})
+					.doOnCancel(() -> {
+						if (recorded.compareAndSet(false, true)) recordAttempt(chat, "cancelled", start);
+					})
+					// Deltas already relayed cannot be taken back, so only a failure before the first one falls back.
+					.onErrorResume(ex -> {
+						if (emitted.get()) return Flux.error(ex);
+						log.warn("Inference stream failed before the first delta for url={}: {}", chat, ex.getMessage());
+						return Flux.empty();
+					})
+					.switchIfEmpty(Flux.defer(() -> {
+						resolved.remove(req.configured(), chat);
+						return resolve(req).flux();
+					}));
+		});
+	}
+
+	private record Request(String configured, List<String> candidates, HttpHeaders headers, String system, String user) {}
+
+	private record Prompt(String system, String user) {}
+
+	private boolean configured() {
+		if (endpoint().isPresent() && model().isPresent()) return true;
+		log.warn("Inference not configured: endpoint={}, model={}", endpoint().orElse("missing"), model().orElse("missing"));
+		return false;
+	}
+
+	private Mono<String> transform(String target, String apexCode, boolean useHerokuConnect, boolean generateTests) {
+		if (!configured()) return Mono.empty();
+		return resolve(request(target, apexCode, useHerokuConnect, generateTests));
+	}
+
+	private Request request(String target, String apexCode, boolean useHerokuConnect, boolean generateTests) {
+		return request(transformPrompt(target, apexCode, useHerokuConnect, generateTests));
+	}
+
+	private static Prompt transformPrompt(String target, String apexCode, boolean useHerokuConnect, boolean generateTests) {
+		String system = (target.equals("java")
+				? JAVA_CLASS_RULES
+				: "You convert Salesforce Apex to efficient, bulk-safe JavaScript for Node/Heroku.") +
+			" Output only the code, no explanations.";
+		String user = "Options: useHerokuConnect=" + useHerokuConnect + ", generateTests=" + generateTests + "\nApex code:\n" + apexCode;
+		return new Prompt(system, user);
+	}
+
+	private static Prompt outlinePrompt(String outline, boolean useHerokuConnect, boolean generateTests) {
+		String system = JAVA_CLASS_RULES +
+				" You are given the outline of one Apex class: its declaration, fields and properties, and the signatures of its methods, constructors and inner types, whose bodies are converted separately." +
+				" Generate the Java class with the converted fields, the public no-arg constructor unless the outline already declares one, and the run(payload) method calling the converted methods." +
+				" Do not write the elided members; they are added to the class later with the same names and parameters." +
+				" Output only the code, no explanations.";
+		String user = "Options: useHerokuConnect=" + useHerokuConnect + ", generateTests=" + generateTests + "\nApex class outline:\n" + outline;
+		return new Prompt(system, user);
+	}
+
+	private static Prompt memberPrompt(String outline, String member, boolean useHerokuConnect) {
+		String system = "You convert Salesforce Apex to efficient, bulk-safe Java using standard Java libraries only. Replace SOQL/DML-in-loops with batch processing, use indexed filters, and selective fields." +
+				" You are given the outline of an Apex class for context and one of its members." +
+				" Convert only that member, as it will appear inside the converted Java class: a method, a constructor, or a static nested class, keeping its name and parameters." +
+				" Do not repeat the class declaration or other members; put any import statements first." +
+				" Output only the code, no explanations.";
+		String user = "Options: useHerokuConnect=" + useHerokuConnect + "\nApex class outline:\n" + outline + "\nMember to convert:\n" + member;
+		return new Prompt(system, user);
+	}
+
+	private Request request(Prompt prompt) {
+		String system = prompt.system();
+		String user = prompt.user();
 		// Build headers once
 		HttpHeaders headers = new HttpHeaders();
 		headers.setContentType(MediaType.APPLICATION_JSON);
 		bearerToken().ifPresent(tok -> headers.set("Authorization", "Bearer " + tok));
 		log.debug("Calling inference: endpoint={}, model={}", endpoint().get(), model().get());
 
-		// Construct a flexible body that can satisfy common schemas
-		Map<String, Object> body = new HashMap<>();
-		body.put("model", model().get());
-
-		String system = "You convert Salesforce Apex to efficient, bulk-safe " +
-			(target.equals("java") 
-				? "standalone executable Java code. Generate a single public class with a public void run() method (or public static void main(String[] args)). Use standard Java libraries only - no Spring annotations (@Service, @Autowired, etc.). The code should be self-contained and executable without framework dependencies. Replace SOQL/DML-in-loops with batch processing, use indexed filters, and selective fields."
-				: "JavaScript for Node/Heroku.") +
-			" Output only the code, no explanations.";
-		String user = "Options: useHerokuConnect=" + useHerokuConnect + ", generateTests=" + generateTests + "\nApex code:\n" + apexCode;
-		// OpenAI/Anthropic-style messages (array)
-		body.put("messages", List.of(
-			Map.of("role", "system", "content", system),
-			Map.of("role", "user", "content", user)
-		));
-		// Generic single-field prompt for simpler /v1/infer style APIs
-		body.put("input", system + "\n\n" + user);
-
 		// Prepare candidate URLs:
 		// - If the configured endpoint already has a versioned path, try it first then a couple of alternates
 		// - If it's just a host/base, append known paths
 		String configured = endpoint().get().trim();
 		boolean hasVersionPath = configured.matches(".*/v\\d+/.*");
-		List<String> candidates = hasVersionPath
+		List<String> candidates = (hasVersionPath
 			? List.of(
 				configured,
 				configured.replace("/v1/infer", "/v1/messages"),
@@ -98,154 +256,270 @@ public class InferenceClient {
 				trimTrailingSlash(configured) + "/v1/chat/completions",
 				trimTrailingSlash(configured) + "/v1/messages",
 				trimTrailingSlash(configured) + "/v1/infer"
-			);
-
-		for (String url : candidates) {
-			try {
-				// Build request body per target schema to avoid 400s on unknown args
-				Map<String, Object> payload = new HashMap<>();
-				payload.put("model", model().get());
-				if (url.contains("/v1/chat/completions")) {
-					// Strict chat schema: messages only
-					payload.put("messages", List.of(
-						Map.of("role", "system", "content", system),
-						Map.of("role", "user", "content", user)
-					));
-					payload.put("stream", true);
-				} else if (url.contains("/v1/infer")) {
-					// Simple infer schema: input only
-					payload.put("input", system + "\n\n" + user);
-				} else {
-					// Generic messages endpoint
-					payload.put("messages", List.of(
-						Map.of("role", "user", "content", system + "\n\n" + user)
-					));
-				}
-
-				// Streaming for chat completions; fall back to non-stream for others
-				if (url.contains("/v1/chat/completions")) {
-					StringBuilder contentAccumulator = new StringBuilder();
-					try {
-						log.debug("Attempting streaming request to: {}", url);
-						http.post()
-								.uri(url)
-								.headers(h -> {
-									headers.forEach((k, v) -> h.addAll(k, v));
-									h.set("Accept", "text/event-stream"); // SSE format
-								})
-								.bodyValue(payload)
-								.retrieve()
-								.bodyToFlux(String.class)
-								.doOnNext(chunk -> {
-									// Handle SSE format: "data: {...}\n\n" or plain JSON chunks
-									if (chunk != null && !chunk.isBlank()) {
-										String[] lines = chunk.split("\n");
-										for (String line : lines) {
-											line = line.trim();
-											if (line.startsWith("data: ")) {
-												line = line.substring(6); // Remove "data: " prefix
-											}
-											if (line.equals("[DONE]") || line.isEmpty()) {
-												continue;
-											}
-											try {
-												JsonNode node = mapper.readTree(line);
-												// Extract content from delta or message
-												if (node.has("choices") && node.get("choices").isArray() && node.get("choices").size() > 0) {
-													JsonNode choice = node.get("choices").get(0);
-													if (choice.has("delta") && choice.get("delta").has("content")) {
-														String deltaContent = choice.get("delta").get("content").asText();
-														if (deltaContent != null && !deltaContent.isBlank()) {
-															contentAccumulator.append(deltaContent);
-														}
-													} else if (choice.has("message") && choice.get("message").has("content")) {
-														String msgContent = choice.get("message").get("content").asText();
-														if (msgContent != null && !msgContent.isBlank()) {
-															contentAccumulator.append(msgContent);
-														}
-													}
-												}
-											} catch (Exception e) {
-												// Not JSON, might be partial chunk - accumulate as-is
-												if (!line.startsWith("data:") && !line.equals("[DONE]")) {
-													contentAccumulator.append(line);
-												}
-											}
-										}
-									}
-								})
-								.doOnError(err -> log.warn("Streaming error for url={}, error={}", url, err.getMessage(), err))
-								.retryWhen(Retry.max(1))
-								.blockLast();
-						log.debug("Streaming completed, accumulated {} chars", contentAccumulator.length());
-					} catch (Exception ex) {
-						log.error("Streaming request failed for url={}, error={}", url, ex.getMessage(), ex);
+			)).stream().distinct().toList();
+		return new Request(configured, candidates, headers, system, user);
+	}
+
+	/** Calls the memoized URL when there is one, otherwise races every candidate; re-probes the others if it fails. */
+	private Mono<String> resolve(Request req) {
+		return Mono.defer(() -> {
+			String known = resolved.get(req.configured());
+			if (known == null) return race(req, req.candidates());
+			return hedged(known, req.headers(), req.system(), req.user()).switchIfEmpty(Mono.defer(() -> {
+				resolved.remove(req.configured(), known);
+				log.warn("Inference URL {} stopped answering, re-probing the other candidates", known);
+				return race(req, req.candidates().stream().filter(u -> !u.equals(known)).toList());
+			}));
+		}).map(Hit::content);
+	}
+
+	private Mono<Hit> race(Request req, List<String> urls) {
+		// Probe the candidates in order, a few at once; the first to return a completion wins and next()
+		// cancels the rest. A candidate that fails or answers without one makes room for the next.
+		return Flux.merge(Flux.fromIterable(urls).map(url -> attempt(url, req.headers(), req.system(), req.user())), probeConcurrency)
+				.next()
+				.doOnNext(hit -> {
+					if (!hit.url().equals(resolved.put(req.configured(), hit.url()))) {
+						log.info("Inference resolved {} to {}", req.configured(), hit.url());
 					}
-					if (contentAccumulator.length() > 0) {
-						log.info("Successfully extracted {} chars from inference stream", contentAccumulator.length());
-						return Optional.of(contentAccumulator.toString());
-					} else {
-						log.warn("No content extracted from inference stream for url={}, trying non-streaming fallback", url);
-						// Fallback to non-streaming request
+				})
+				.switchIfEmpty(Mono.fromRunnable(() ->
+						log.warn("All inference URL candidates failed. Check INFERENCE_URL, INFERENCE_MODEL_ID, and INFERENCE_KEY.")));
+	}
+
+	private record Hit(String url, String content) {}
+
+	/**
+	 * Calls the memoized URL and, when hedging is on and enough latencies are known, fires a second
+	 * identical request once the first has run past the URL's p95 without finishing.
+	 */
+	private Mono<Hit> hedged(String url, HttpHeaders headers, String system, String user) {
+		Duration delay = hedgeDelay(url);
+		if (delay == null) return attempt(url, headers, system, user);
+		Sinks.One<Boolean> primaryEnded = Sinks.one();
+		Mono<Hit> primary = attempt(url, headers, system, user).doFinally(sig -> primaryEnded.tryEmitValue(true));
+		Mono<Hit> backup = Mono.firstWithValue(Mono.delay(delay).map(t -> false), primaryEnded.asMono())
+				.flatMap(ended -> {
+					if (ended) return Mono.<Hit>empty();
+					meters.counter("azk.inference.hedges", "endpoint", endpointTag(url)).increment();
+					log.debug("Hedging inference call to {} after {} ms", url, delay.toMillis());
+					return attempt(url, headers, system, user);
+				});
+		return Flux.merge(primary, backup).next();
+	}
+
+	private Duration hedgeDelay(String url) {
+		if (!hedge) return null;
+		LatencyWindow window = latencies.get(url);
+		if (window == null || window.count() < hedgeMinSamples) return null;
+		return Duration.ofNanos(window.percentile(0.95));
+	}
+
+	/** One metered call; completes empty rather than failing so it can race the other candidates. */
+	private Mono<Hit> attempt(String url, HttpHeaders headers, String system, String user) {
+		return Mono.defer(() -> {
+			long start = System.nanoTime();
+			AtomicBoolean recorded = new AtomicBoolean();
+			return callCandidate(url, headers, system, user)
+					.map(content -> new Hit(url, content))
+					.doOnSuccess(hit -> {
+						if (!recorded.compareAndSet(false, true)) return;
+						recordAttempt(url, hit != null ? "success" : "empty", start);
+						if (hit != null) latencies.computeIfAbsent(url, u -> new LatencyWindow()).add(System.nanoTime() - start);
+					})
+					.doOnError(ex -> {
+						if (recorded.compareAndSet(false, true)) recordAttempt(url, outcomeOf(ex), start);
+					})
+					.doOnCancel(() -> {
+						if (recorded.compareAndSet(false, true)) recordAttempt(url, "cancelled", start);
+					})
+					.onErrorResume(ex -> {
+						if (ex instanceof WebClientResponseException.NotFound) {
+							log.warn("Inference path 404: {}", url);
+						} else {
+							log.error("Inference unexpected error for url={}, error={}", url, ex.getMessage(), ex);
+						}
+						return Mono.empty();
+					});
+		});
+	}
+
+	/** Request body per target schema, to avoid 400s on unknown args. */
+	private Map<String, Object> payloadFor(String url, String system, String user) {
+		Map<String, Object> payload = new HashMap<>();
+		payload.put("model", model().get());
+		if (url.contains("/v1/chat/completions")) {
+			// Strict chat schema: messages only
+			payload.put("messages", List.of(
+				Map.of("role", "system", "content", system),
+				Map.of("role", "user", "content", user)
+			));
+			payload.put("stream", true);
+		} else if (url.contains("/v1/infer")) {
+			// Simple infer schema: input only
+			payload.put("input", system + "\n\n" + user);
+		} else {
+			// Generic messages endpoint
+			payload.put("messages", List.of(
+				Map.of("role", "user", "content", system + "\n\n" + user)
+			));
+		}
+		return payload;
+	}
+
+	/** Content deltas of a chat completions stream, in order, as each SSE chunk arrives. */
+	private Flux<String> streamDeltas(String url, HttpHeaders headers, String system, String user) {
+		return http.post()
+				.uri(url)
+				.headers(h -> {
+					headers.forEach((k, v) -> h.addAll(k, v));
+					h.set("Accept", "text/event-stream"); // SSE format
+				})
+				.bodyValue(payloadFor(url, system, user))
+				.retrieve()
+				.bodyToFlux(DataBuffer.class)
+				.transform(SseDeltaDecoder::decode);
+	}
+
+	/**
+	 * Calls one candidate URL with the body its schema expects; empty when it yields no completion, so
+	 * an error or health document served with a 200 never wins the race.
+	 */
+	private Mono<String> callCandidate(String url, HttpHeaders headers, String system, String user) {
+		Map<String, Object> payload = payloadFor(url, system, user);
+		if (!url.contains("/v1/chat/completions")) {
+			return http.post()
+					.uri(url)
+					.headers(h -> headers.forEach((k, v) -> h.addAll(k, v)))
+					.bodyValue(payload)
+					.retrieve()
+					.bodyToMono(String.class)
+					.retryWhen(RETRY)
+					.<String>handle((res, sink) -> {
 						try {
-							Map<String, Object> nonStreamPayload = new HashMap<>(payload);
-							nonStreamPayload.remove("stream"); // Remove stream flag
-							String res = http.post()
-									.uri(url)
-									.headers(h -> headers.forEach((k, v) -> h.addAll(k, v)))
-									.bodyValue(nonStreamPayload)
-									.retrieve()
-									.bodyToMono(String.class)
-									.retryWhen(Retry.max(1))
-									.block();
-							if (res != null && !res.isBlank()) {
-								JsonNode root = mapper.readTree(res);
-								if (root.has("choices") && root.get("choices").isArray() && root.get("choices").size() > 0) {
-									String content = root.get("choices").get(0).path("message").path("content").asText();
-									if (content != null && !content.isBlank()) {
-										log.info("Successfully got content from non-streaming response");
-										return Optional.of(content);
-									}
-								}
-							}
-						} catch (Exception fallbackEx) {
-							log.warn("Non-streaming fallback also failed for url={}", url, fallbackEx);
+							String content = completion(mapper.readTree(res));
+							if (content != null) sink.next(content);
+							else log.warn("Inference url={} answered without a completion", url);
+						} catch (Exception e) {
+							sink.error(e);
 						}
-					}
-				} else {
-					String res = http.post()
-							.uri(url)
-							.headers(h -> headers.forEach((k, v) -> h.addAll(k, v)))
-							.bodyValue(payload)
-							.retrieve()
-							.bodyToMono(String.class)
-							.retryWhen(Retry.max(1))
-							.block();
-					if (res != null) {
-						JsonNode root = mapper.readTree(res);
-						if (root.has("output")) return Optional.ofNullable(root.get("output").asText());
-						if (root.has("choices") && root.get("choices").isArray() && root.get("choices").size() > 0) {
-							return Optional.ofNullable(root.get("choices").get(0).path("message").path("content").asText());
+					});
+		}
+
+		// Streaming for chat completions, falling back to a non-stream request
+		Mono<String> nonStreaming = Mono.defer(() -> {
+			Map<String, Object> nonStreamPayload = new HashMap<>(payload);
+			nonStreamPayload.remove("stream"); // Remove stream flag
+			return http.post()
+					.uri(url)
+					.headers(h -> headers.forEach((k, v) -> h.addAll(k, v)))
+					.bodyValue(nonStreamPayload)
+					.retrieve()
+					.bodyToMono(String.class)
+					.retryWhen(RETRY)
+					.<String>handle((res, sink) -> {
+						try {
+							String content = completion(mapper.readTree(res));
+							if (content != null) {
+								log.info("Successfully got content from non-streaming response");
+								sink.next(content);
+							}
+						} catch (Exception e) {
+							sink.error(e);
 						}
-						return Optional.of(res);
-					}
-				}
-			} catch (HttpClientErrorException.NotFound nf) {
-				log.warn("Inference path 404, trying next candidate: {}", url);
-			} catch (Exception ex) {
-				log.error("Inference unexpected error for url={}, error={}", url, ex.getMessage(), ex);
-				// Move on to next candidate
-			}
+					})
+					.onErrorResume(fallbackEx -> {
+						log.warn("Non-streaming fallback also failed for url={}", url, fallbackEx);
+						return Mono.empty();
+					});
+		});
+		// collect() starts a fresh accumulator per subscription, so a retried stream does not append to a partial one.
+		return Mono.defer(() -> {
+					log.debug("Attempting streaming request to: {}", url);
+					return streamDeltas(url, headers, system, user)
+							.collect(StringBuilder::new, StringBuilder::append)
+							.map(StringBuilder::toString);
+				})
+				.doOnError(err -> log.warn("Streaming error for url={}, error={}", url, err.getMessage()))
+				.retryWhen(RETRY)
+				.onErrorResume(ex -> {
+					log.error("Streaming request failed for url={}, error={}", url, ex.getMessage(), ex);
+					return Mono.empty();
+				})
+				.filter(content -> !content.isEmpty())
+				.doOnNext(content -> log.info("Successfully extracted {} chars from inference stream", content.length()))
+				.switchIfEmpty(Mono.defer(() -> {
+					log.warn("No content extracted from inference stream for url={}, trying non-streaming fallback", url);
+					return nonStreaming;
+				}));
+	}
+
+	/** The generated text of an {@code output} or {@code choices[0].message.content} answer, or null. */
+	private static String completion(JsonNode root) {
+		JsonNode content = root.path("output");
+		if (content.isMissingNode()) content = root.path("choices").path(0).path("message").path("content");
+		return content.isTextual() && !content.asText().isBlank() ? content.asText() : null;
+	}
+
+	private static String promptHash(Prompt... prompts) {
+		List<String> parts = new ArrayList<>();
+		for (Prompt p : prompts) {
+			parts.add(p.system());
+			parts.add(p.user());
+		}
+		return ContentHash.shortKey(ContentHash.sha256(parts.toArray(String[]::new)));
+	}
+
+	private static String outcomeOf(Throwable ex) {
+		return ex instanceof WebClientResponseException.NotFound ? "not_found" : "error";
+	}
+
+	/** Per-candidate latency, tagged by URL path (no host or credentials) and outcome. */
+	private void recordAttempt(String url, String outcome, long startNanos) {
+		String endpoint = endpointTag(url);
+		Timer.builder("azk.inference.request").description("Inference call latency per candidate URL")
+				.tag("endpoint", endpoint).tag("outcome", outcome)
+				.register(meters).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+		// Probes that lost the race were cancelled by us, not failed by the server.
+		if (!"success".equals(outcome) && !"cancelled".equals(outcome)) {
+			meters.counter("azk.inference.failures", "endpoint", endpoint, "reason", outcome).increment();
+		}
+	}
+
+	private static String endpointTag(String url) {
+		try {
+			String path = URI.create(url).getPath();
+			return path == null || path.isEmpty() ? "/" : path;
+		} catch (IllegalArgumentException e) {
+			return "invalid";
 		}
-		log.warn("All inference URL candidates failed. Check INFERENCE_URL, INFERENCE_MODEL_ID, and INFERENCE_KEY.");
-		return Optional.empty();
 	}
 
 	private static String trimTrailingSlash(String s) {
 		if (s == null || s.isEmpty()) return s;
 		return s.endsWith("/") ? s.substring(0, s.length() - 1) : s;
 	}
-}
 
+	/** The last 128 successful latencies of one URL, enough for a stable p95 without a histogram. */
+	static final class LatencyWindow {
+		private final long[] samples = new long[128];
+		private int next;
+		private int count;
+
+		synchronized void add(long nanos) {
+			samples[next] = nanos;
+			next = (next + 1) % samples.length;
+			if (count < samples.length) count++;
+		}
 
+		synchronized int count() {
+			return count;
+		}
 
+		synchronized long percentile(double p) {
+			long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			return sorted[Math.max(0, Math.min(count - 1, (int) Math.ceil(p * count) - 1))];
+		}
+	}
+}
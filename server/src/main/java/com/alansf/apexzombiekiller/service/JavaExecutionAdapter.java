@@ -1,19 +1,252 @@
 package com.alansf.apexzombiekiller.service;
 
-import javax.tools.*;
-import java.io.IOException;
-import java.net.URI;
-import java.util.Arrays;
-import java.util.Collections;
+import com.alansf.apexzombiekiller.model.CompiledArtifact;
+import com.alansf.apexzombiekiller.repo.ArtifactRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+@Component
 public class JavaExecutionAdapter {
-	private static final Map<String, Class<?>> cache = new ConcurrentHashMap<>();
+	private static final Logger log = LoggerFactory.getLogger(JavaExecutionAdapter.class);
+	static final List<String> COMPILER_OPTIONS = JavacBackend.OPTIONS;
+
+	// Compiled versions keyed by content hash, and the hash each code name currently resolves to.
+	private final Map<String, CompiledUnit> cache = new ConcurrentHashMap<>();
+	private final Map<String, String> current = new ConcurrentHashMap<>();
+	// Compiles under way, so concurrent misses on one version share a single compile.
+	private final Map<String, CompletableFuture<CompiledUnit>> inFlight = new ConcurrentHashMap<>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder artifactLoads = new LongAdder();
+	private final LongAdder compiles = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder compileNanos = new LongAdder();
+	private final LongAdder fallbacks = new LongAdder();
+	private final Map<String, LongAdder> backendCompiles = new ConcurrentHashMap<>();
+	private final Map<String, LongAdder> backendNanos = new ConcurrentHashMap<>();
+	private final ArtifactRepository artifacts;
+	private final List<CompilerBackend> backends;
+	private final String backendId;
+	private final MeterRegistry meters;
+	private final Timer invokeOk;
+	private final Timer invokeError;
+	private final Map<String, Timer> compileTimers = new ConcurrentHashMap<>();
+
+	public JavaExecutionAdapter() {
+		this(null, "janino", Metrics.globalRegistry);
+	}
+
+	/** {@code backend} "janino" tries Janino first and falls back to javac; "javac" always uses javac. */
+	@Autowired
+	public JavaExecutionAdapter(ArtifactRepository artifacts, @Value("${java.compiler.backend:janino}") String backend,
+	                            MeterRegistry meters) {
+		this.artifacts = artifacts;
+		this.backends = "javac".equalsIgnoreCase(backend)
+				? List.of(new JavacBackend())
+				: List.of(new JaninoBackend(), new JavacBackend());
+		this.backendId = String.join(">", backends.stream().map(CompilerBackend::name).toList());
+		this.meters = meters;
+		this.invokeOk = invokeTimer(meters, "success");
+		this.invokeError = invokeTimer(meters, "error");
+	}
+
+	private static Timer invokeTimer(MeterRegistry meters, String outcome) {
+		return Timer.builder("azk.invoke").description("Java entrypoint invocation, compile excluded")
+				.tag("language", "java").tag("outcome", outcome).register(meters);
+	}
+
+	private Timer compileTimer(String backend, String outcome) {
+		return compileTimers.computeIfAbsent(backend + '/' + outcome, k -> Timer.builder("azk.compile")
+				.description("Compile time per source and backend")
+				.tag("backend", backend).tag("outcome", outcome).register(meters));
+	}
 
-	public void execute(String className, String source) throws Exception {
+	public Object execute(String className, String source) throws Exception {
+		return execute(null, className, source, Map.of());
+	}
+
+	/**
+	 * Executes the given source, compiling it only if this exact version has not been seen before,
+	 * and returns the entrypoint's result. {@code payload} is passed to the user code as-is.
+	 * {@code codeName} identifies the logical code entry; when a new version is loaded for it the
+	 * previous version is retired and dropped once its in-flight executions finish.
+	 */
+	public Object execute(String codeName, String className, String source, Map<String, Object> payload) throws Exception {
+		CompiledUnit unit = acquire(codeName, className, source);
+		long start = System.nanoTime();
+		boolean ok = false;
+		try {
+			Object result = unit.entrypoint.invoke(payload);
+			ok = true;
+			return result;
+		} finally {
+			(ok ? invokeOk : invokeError).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			release(unit);
+		}
+	}
+
+	/** Compiles (or finds) the current version for {@code codeName} without running it. */
+	public CompiledUnit load(String codeName, String className, String source) {
+		CompiledUnit unit = acquire(codeName, className, source);
+		release(unit);
+		return unit;
+	}
+
+	public Map<String, Object> stats() {
+		Map<String, Object> m = new LinkedHashMap<>();
+		long compiled = compiles.sum();
+		m.put("entries", cache.size());
+		m.put("hits", hits.sum());
+		m.put("misses", misses.sum());
+		m.put("artifactLoads", artifactLoads.sum());
+		m.put("compiles", compiled);
+		m.put("evictions", evictions.sum());
+		m.put("compileMillisTotal", compileNanos.sum() / 1_000_000);
+		m.put("compileMillisAvg", compiled == 0 ? 0 : compileNanos.sum() / compiled / 1_000_000);
+		m.put("fallbacks", fallbacks.sum());
+		Map<String, Object> perBackend = new LinkedHashMap<>();
+		for (CompilerBackend b : backends) {
+			LongAdder n = backendCompiles.get(b.name());
+			LongAdder t = backendNanos.get(b.name());
+			perBackend.put(b.name(), Map.of(
+					"compiles", n == null ? 0L : n.sum(),
+					"millisTotal", t == null ? 0L : t.sum() / 1_000_000));
+		}
+		m.put("backends", perBackend);
+		return m;
+	}
+
+	/**
+	 * Loads many sources at once. Versions already cached or stored are reused, and the rest are
+	 * compiled together: one Janino pass, then the leftovers through javac, one task per source on a
+	 * shared compiler. A
+	 * source that fails to compile gets its own diagnostics in {@link BatchItem#error} without
+	 * failing the others in the batch.
+	 */
+	public void loadAll(List<BatchItem> items) {
+		Map<String, CompilerBackend.Unit> toCompile = new LinkedHashMap<>();
+		List<Prepared> prepared = new ArrayList<>(items.size());
+		for (BatchItem item : items) {
+			Prepared p = prepare(item.codeName, item.className, item.source);
+			prepared.add(p);
+			if (!cache.containsKey(p.key) && !toCompile.containsKey(p.key)) {
+				Optional<CompiledUnit> stored = loadArtifact(p.key);
+				if (stored.isPresent()) {
+					misses.increment();
+					cache.putIfAbsent(p.key, stored.get());
+				} else {
+					toCompile.put(p.key, new CompilerBackend.Unit(p.key, p.className, p.sanitized));
+				}
+			}
+		}
+		if (!toCompile.isEmpty()) {
+			long start = System.nanoTime();
+			compileAll(List.copyOf(toCompile.values()));
+			int defined = 0;
+			for (CompilerBackend.Unit u : toCompile.values()) {
+				if (u.error != null) continue;
+				misses.increment();
+				try {
+					cache.putIfAbsent(u.key, define(u));
+					defined++;
+				} catch (RuntimeException e) {
+					u.error = e.getMessage();
+				}
+			}
+			log.info("Batch-compiled {} of {} sources in {} ms", defined, toCompile.size(), (System.nanoTime() - start) / 1_000_000);
+		}
+		for (int i = 0; i < items.size(); i++) {
+			BatchItem item = items.get(i);
+			Prepared p = prepared.get(i);
+			CompilerBackend.Unit failed = toCompile.get(p.key);
+			if (failed != null && failed.error != null) {
+				item.error = failed.error;
+				continue;
+			}
+			CompiledUnit unit = acquire(p, false);
+			release(unit);
+			item.unit = unit;
+		}
+	}
+
+	private CompiledUnit acquire(String codeName, String className, String source) {
+		return acquire(prepare(codeName, className, source), true);
+	}
+
+	private CompiledUnit acquire(Prepared p, boolean count) {
+		while (true) {
+			CompiledUnit unit = cache.get(p.key);
+			if (unit == null) {
+				unit = loadOrJoin(p);
+				if (count) {
+					misses.increment();
+					ExecutionGuard.recordCacheHit(false);
+				}
+			} else if (count) {
+				hits.increment();
+				ExecutionGuard.recordCacheHit(true);
+			}
+			// Lost a race with eviction of a superseded version: look it up again.
+			if (!unit.tryAcquire()) continue;
+			promote(p.slot, unit);
+			return unit;
+		}
+	}
+
+	/**
+	 * Loads or compiles a version missing from the cache, outside any map lock. The first caller
+	 * does the work; callers arriving meanwhile wait for its result or its failure. A failure
+	 * leaves nothing behind, so the next call tries again.
+	 */
+	private CompiledUnit loadOrJoin(Prepared p) {
+		CompletableFuture<CompiledUnit> mine = new CompletableFuture<>();
+		CompletableFuture<CompiledUnit> running = inFlight.putIfAbsent(p.key, mine);
+		if (running != null) {
+			try {
+				return running.join();
+			} catch (CompletionException e) {
+				throw e.getCause() instanceof RuntimeException re ? re : e;
+			}
+		}
+		try {
+			// Another caller may have finished this version between our cache miss and taking the slot.
+			CompiledUnit unit = cache.get(p.key);
+			if (unit == null) {
+				unit = loadArtifact(p.key).orElseGet(() -> compile(p.key, p.className, p.sanitized));
+				CompiledUnit raced = cache.putIfAbsent(p.key, unit);
+				if (raced != null) unit = raced;
+			}
+			mine.complete(unit);
+			return unit;
+		} catch (RuntimeException | Error e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(p.key, mine);
+		}
+	}
+
+	private Prepared prepare(String codeName, String className, String source) {
 		// Strip any package declaration to simplify in-memory compilation and loading.
 		String sanitized = stripPackage(source);
 		// Auto-detect the primary class name (prefer public), fallback to provided name.
@@ -21,56 +254,119 @@ public class JavaExecutionAdapter {
 		if (effectiveName == null || effectiveName.isBlank()) {
 			effectiveName = className;
 		}
-		final String finalName = effectiveName;
-		final String finalSource = sanitized;
-		Class<?> clazz = cache.computeIfAbsent(finalName, n -> compile(finalName, finalSource));
-		// Try common entrypoints: run(), execute(), or static main(String[])
-		try {
-			Object instance = clazz.getDeclaredConstructor().newInstance();
-			try {
-				clazz.getMethod("run").invoke(instance);
-				return;
-			} catch (NoSuchMethodException ignored) {}
-			try {
-				clazz.getMethod("execute").invoke(instance);
-				return;
-			} catch (NoSuchMethodException ignored) {}
-		} catch (NoSuchMethodException ignored) {
-			// no default ctor: fall through to main
+		String slot = codeName == null || codeName.isBlank() ? effectiveName : codeName;
+		return new Prepared(sanitized, effectiveName, contentKey(sanitized), slot);
+	}
+
+	private void release(CompiledUnit unit) {
+		if (unit.release()) evict(unit);
+	}
+
+	private void promote(String slot, CompiledUnit unit) {
+		unit.reinstate();
+		String previous = current.put(slot, unit.key);
+		if (previous == null || previous.equals(unit.key)) return;
+		CompiledUnit old = cache.get(previous);
+		// Another code name may still point at the same content.
+		if (old != null && !current.containsValue(previous) && old.retire()) {
+			evict(old);
 		}
-		// As a last resort, try static main
+		log.info("Hot-reloaded {} ({} -> {})", slot, ContentHash.shortKey(previous), ContentHash.shortKey(unit.key));
+	}
+
+	private void evict(CompiledUnit unit) {
+		if (cache.remove(unit.key, unit)) {
+			evictions.increment();
+			log.debug("Evicted compiled unit {} for {}", ContentHash.shortKey(unit.key), unit.className);
+		}
+	}
+
+	/** Defines the classes straight from stored bytecode when another dyno already compiled them. */
+	private Optional<CompiledUnit> loadArtifact(String key) {
+		if (artifacts == null) return Optional.empty();
 		try {
-			clazz.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
-		} catch (NoSuchMethodException e) {
-			throw new RuntimeException("No suitable entrypoint found. Expected one of: run(), execute(), or static main(String[]).");
-		}
-	}
-
-	private Class<?> compile(String className, String source) {
-		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-		JavaFileObject file = new JavaSourceFromString(className, source);
-		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
-		StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
-		InMemoryClassFileManager memManager = new InMemoryClassFileManager(fileManager);
-		JavaCompiler.CompilationTask task = compiler.getTask(null, memManager, diagnostics,
-				Arrays.asList("-target", "21", "-source", "21"), null, Collections.singletonList(file));
-		Boolean ok = task.call();
-		if (!Boolean.TRUE.equals(ok)) {
-			StringBuilder sb = new StringBuilder("Compilation failed: ");
-			diagnostics.getDiagnostics().forEach(d -> sb.append(d.getMessage(null)).append("\n"));
-			throw new RuntimeException(sb.toString());
+			Optional<CompiledArtifact> stored = artifacts.find(key);
+			if (stored.isEmpty()) return Optional.empty();
+			CompiledArtifact a = stored.get();
+			Class<?> type = new BytecodeClassLoader(a.classes, JavaExecutionAdapter.class.getClassLoader()).loadClass(a.className);
+			artifactLoads.increment();
+			log.info("Loaded {} ({}) from compiled_artifact", a.className, ContentHash.shortKey(key));
+			return Optional.of(new CompiledUnit(key, a.className, a.classes, type, "artifact", 0));
+		} catch (Exception | LinkageError e) {
+			log.warn("Stored artifact {} unusable, recompiling", ContentHash.shortKey(key), e);
+			return Optional.empty();
+		}
+	}
+
+	private CompiledUnit compile(String key, String className, String source) {
+		CompilerBackend.Unit u = new CompilerBackend.Unit(key, className, source);
+		compileAll(List.of(u));
+		if (u.error != null) {
+			throw new RuntimeException(u.error);
 		}
+		CompiledUnit unit = define(u);
+		log.info("Compiled {} ({}) with {} in {} ms", className, ContentHash.shortKey(key), u.backend, u.compileNanos / 1_000_000);
+		return unit;
+	}
+
+	/**
+	 * Runs the units through each backend in turn; a unit only reaches the next backend if the
+	 * previous one could not compile it, and only the last backend's diagnostics are reported.
+	 */
+	private void compileAll(List<CompilerBackend.Unit> units) {
+		List<CompilerBackend.Unit> remaining = units;
+		for (int i = 0; i < backends.size() && !remaining.isEmpty(); i++) {
+			CompilerBackend backend = backends.get(i);
+			Map<CompilerBackend.Unit, Long> before = new HashMap<>();
+			remaining.forEach(u -> {
+				u.error = null;
+				before.put(u, u.compileNanos);
+			});
+			backend.compile(remaining);
+			List<CompilerBackend.Unit> failed = new ArrayList<>();
+			for (CompilerBackend.Unit u : remaining) {
+				long spent = u.compileNanos - before.get(u);
+				backendNanos.computeIfAbsent(backend.name(), k -> new LongAdder()).add(spent);
+				compileTimer(backend.name(), u.error == null ? "success" : "error").record(spent, TimeUnit.NANOSECONDS);
+				if (u.error != null) {
+					failed.add(u);
+					continue;
+				}
+				u.backend = backend.name();
+				compiles.increment();
+				compileNanos.add(u.compileNanos);
+				backendCompiles.computeIfAbsent(backend.name(), k -> new LongAdder()).increment();
+			}
+			if (!failed.isEmpty() && i < backends.size() - 1) {
+				fallbacks.add(failed.size());
+				failed.forEach(u -> log.debug("{} could not compile {}, falling back: {}", backend.name(), u.className, u.error));
+			}
+			remaining = failed;
+		}
+	}
+
+	private static CompiledUnit define(CompilerBackend.Unit u) {
 		try {
-			return memManager.getClassLoader(null).loadClass(className);
+			Class<?> type = new BytecodeClassLoader(u.classBytes, JavaExecutionAdapter.class.getClassLoader()).loadClass(u.className);
+			return new CompiledUnit(u.key, u.className, u.classBytes, type, u.backend, u.compileNanos);
 		} catch (ClassNotFoundException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Bytecode differs between Janino and javac, so the configured backends are part of the key
+	 * along with the javac options; dynos configured differently never share a stored artifact.
+	 */
+	String contentKey(String sanitizedSource) {
+		return ContentHash.sha256(backendId, String.join(" ", COMPILER_OPTIONS), sanitizedSource);
+	}
+
 	private static final Pattern PUBLIC_CLASS = Pattern.compile("(?m)^\\s*public\\s+class\\s+([A-Za-z_][A-Za-z0-9_]*)\\b");
 	private static final Pattern ANY_CLASS = Pattern.compile("(?m)^\\s*class\\s+([A-Za-z_][A-Za-z0-9_]*)\\b");
 
-	private static String detectClassName(String src) {
+	/** The first public top-level class name in the source, else the first class, else null. */
+	public static String detectClassName(String src) {
 		Matcher m = PUBLIC_CLASS.matcher(src);
 		if (m.find()) return m.group(1);
 		m = ANY_CLASS.matcher(src);
@@ -78,52 +374,39 @@ public class JavaExecutionAdapter {
 		return null;
 	}
 
-	private static String stripPackage(String src) {
+	public static String stripPackage(String src) {
 		// Remove any package declaration lines to keep classes package-less.
 		return src.replaceAll("(?m)^\\s*package\\s+[^;]+;\\s*", "");
 	}
 
-	static class JavaSourceFromString extends SimpleJavaFileObject {
-		final String code;
-		JavaSourceFromString(String name, String code) {
-			super(URI.create("string:///" + name.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
-			this.code = code;
-		}
-		@Override public CharSequence getCharContent(boolean ignoreEncodingErrors) { return code; }
-	}
+	/** One source in a {@link #loadAll} batch; {@code unit} or {@code error} is set afterwards. */
+	public static class BatchItem {
+		public final String codeName;
+		public final String className;
+		public final String source;
+		public CompiledUnit unit;
+		public String error;
 
-	static class InMemoryClassFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
-		private final Map<String, InMemoryClassObject> classes = new ConcurrentHashMap<>();
-		InMemoryClassFileManager(StandardJavaFileManager fileManager) { super(fileManager); }
-		@Override public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
-			InMemoryClassObject obj = new InMemoryClassObject(className, kind);
-			classes.put(className, obj);
-			return obj;
-		}
-		@Override public ClassLoader getClassLoader(Location location) {
-			return new ClassLoader(getClass().getClassLoader()) {
-				@Override protected Class<?> findClass(String name) throws ClassNotFoundException {
-					InMemoryClassObject obj = classes.get(name);
-					if (obj == null) throw new ClassNotFoundException(name);
-					byte[] bytes = obj.getBytes();
-					return defineClass(name, bytes, 0, bytes.length);
-				}
-			};
+		public BatchItem(String codeName, String className, String source) {
+			this.codeName = codeName;
+			this.className = className;
+			this.source = source;
 		}
 	}
 
-	static class InMemoryClassObject extends SimpleJavaFileObject {
-		private final ByteArrayOutputStreamEx baos = new ByteArrayOutputStreamEx();
-		InMemoryClassObject(String name, Kind kind) {
-			super(URI.create("mem:///" + name.replace('.', '/') + kind.extension), kind);
-		}
-		@Override public java.io.OutputStream openOutputStream() throws IOException { return baos; }
-		byte[] getBytes() { return baos.getBytes(); }
-	}
+	private record Prepared(String sanitized, String className, String key, String slot) {}
 
-	static class ByteArrayOutputStreamEx extends java.io.ByteArrayOutputStream {
-		byte[] getBytes() { return this.toByteArray(); }
+	/** Defines classes from a fixed set of bytecode; one loader per compiled version. */
+	static class BytecodeClassLoader extends ClassLoader {
+		private final Map<String, byte[]> classes;
+		BytecodeClassLoader(Map<String, byte[]> classes, ClassLoader parent) {
+			super(parent);
+			this.classes = classes;
+		}
+		@Override protected Class<?> findClass(String name) throws ClassNotFoundException {
+			byte[] bytes = classes.get(name);
+			if (bytes == null) throw new ClassNotFoundException(name);
+			return defineClass(name, bytes, 0, bytes.length);
+		}
 	}
 }
-
-
@@ -0,0 +1,95 @@
+package com.alansf.apexzombiekiller.service;
+
+import javax.tools.*;
+import java.io.IOException;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** The JDK compiler, run in-memory; handles any source the target release accepts. */
+final class JavacBackend implements CompilerBackend {
+	static final List<String> OPTIONS = List.of("-target", "21", "-source", "21");
+
+	@Override
+	public String name() {
+		return "javac";
+	}
+
+	/**
+	 * Compiles each unit in its own javac task, so units cannot see or clash with each other's
+	 * classes and every unit gets only its own diagnostics. The tasks share one compiler and one
+	 * standard file manager, which keeps the platform class index javac builds on first use.
+	 */
+	@Override
+	public void compile(List<Unit> units) {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		try (StandardJavaFileManager shared = compiler.getStandardFileManager(null, null, null)) {
+			for (Unit u : units) {
+				long start = System.nanoTime();
+				javac(compiler, shared, u);
+				u.compileNanos += System.nanoTime() - start;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void javac(JavaCompiler compiler, StandardJavaFileManager shared, Unit u) {
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		// Not closed: closing a forwarding manager closes the shared one underneath.
+		InMemoryClassFileManager output = new InMemoryClassFileManager(shared);
+		List<JavaFileObject> sources = List.of(new JavaSourceFromString(u.className, u.source));
+		Boolean ok = compiler.getTask(null, output, diagnostics, OPTIONS, null, sources).call();
+		if (Boolean.TRUE.equals(ok)) {
+			u.classBytes = output.classBytes();
+			u.error = null;
+			return;
+		}
+		StringBuilder sb = new StringBuilder("Compilation failed: ");
+		diagnostics.getDiagnostics().stream()
+				.filter(d -> d.getKind() == Diagnostic.Kind.ERROR)
+				.forEach(d -> sb.append(d.getMessage(null)).append("\n"));
+		u.error = sb.toString();
+	}
+
+	static class JavaSourceFromString extends SimpleJavaFileObject {
+		final String code;
+		JavaSourceFromString(String name, String code) {
+			super(URI.create("string:///" + name.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+			this.code = code;
+		}
+		@Override public CharSequence getCharContent(boolean ignoreEncodingErrors) { return code; }
+	}
+
+	/** Collects the class files of one task in memory; everything else goes to the wrapped manager. */
+	static class InMemoryClassFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+		private final Map<String, InMemoryClassObject> classes = new ConcurrentHashMap<>();
+		InMemoryClassFileManager(StandardJavaFileManager fileManager) { super(fileManager); }
+		@Override public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
+			InMemoryClassObject obj = new InMemoryClassObject(className, kind);
+			classes.put(className, obj);
+			return obj;
+		}
+		/** Every class file the task wrote, inner and auxiliary classes included. */
+		Map<String, byte[]> classBytes() {
+			Map<String, byte[]> out = new LinkedHashMap<>();
+			classes.forEach((name, obj) -> out.put(name, obj.getBytes()));
+			return out;
+		}
+	}
+
+	static class InMemoryClassObject extends SimpleJavaFileObject {
+		private final ByteArrayOutputStreamEx baos = new ByteArrayOutputStreamEx();
+		InMemoryClassObject(String name, Kind kind) {
+			super(URI.create("mem:///" + name.replace('.', '/') + kind.extension), kind);
+		}
+		@Override public java.io.OutputStream openOutputStream() throws IOException { return baos; }
+		byte[] getBytes() { return baos.getBytes(); }
+	}
+
+	static class ByteArrayOutputStreamEx extends java.io.ByteArrayOutputStream {
+		byte[] getBytes() { return this.toByteArray(); }
+	}
+}
@@ -0,0 +1,151 @@
+package com.alansf.apexzombiekiller.service;
+
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Pre-warmed polyglot contexts for one version of a JS source. Contexts share the adapter's
+ * {@link Engine}, so the parsed {@link Source} and its compiled code are reused across them.
+ * Each context serves a single execution and is then closed, so top-level {@code let}/{@code var}
+ * state, mutated globals and the {@code payload} binding never reach the next caller; what is
+ * saved is evaluating the top level, which happens ahead of time in {@link #replenish()}.
+ * At most {@code maxIdle} evaluated contexts are kept waiting.
+ */
+final class JsContextPool {
+	final String key;
+	final Source source;
+	// Whether the source defines run(payload); scripts without it are evaluated whole per call.
+	final boolean callsRun;
+	private final Engine engine;
+	private final int maxIdle;
+	private final Deque<Lease> idle = new ArrayDeque<>();
+	private boolean retired;
+	private int discarded;
+
+	JsContextPool(String key, Source source, boolean callsRun, Engine engine, int maxIdle) {
+		this.key = key;
+		this.source = source;
+		this.callsRun = callsRun;
+		this.engine = engine;
+		this.maxIdle = maxIdle;
+	}
+
+	/** A context with the script already evaluated and its {@code run} function resolved. */
+	static final class Lease {
+		final Context context;
+		final Value run;
+		final long created = System.nanoTime();
+		volatile boolean cancelled; // closed mid-execution by ExecutionGuard; never pooled again
+
+		private Lease(Context context, Value run) {
+			this.context = context;
+			this.run = run;
+		}
+	}
+
+	Lease borrow() {
+		synchronized (this) {
+			Lease lease = idle.pollFirst();
+			if (lease != null) return lease;
+		}
+		return create();
+	}
+
+	/** Closes a used lease; it is never pooled again. Failed and cancelled leases are counted. */
+	void release(Lease lease, boolean healthy) {
+		if (!healthy || lease.cancelled) {
+			synchronized (this) {
+				discarded++;
+			}
+		}
+		lease.context.close(true);
+	}
+
+	/** Creates contexts until {@code count} are idle; used to warm a version before its first call. */
+	void prewarm(int count) {
+		while (true) {
+			synchronized (this) {
+				if (retired || idle.size() >= Math.min(count, maxIdle)) return;
+			}
+			offer(create());
+		}
+	}
+
+	/** Evaluates one more context unless {@code maxIdle} are already waiting; called after each borrow. */
+	void replenish() {
+		synchronized (this) {
+			if (retired || idle.size() >= maxIdle) return;
+		}
+		offer(create());
+	}
+
+	private void offer(Lease lease) {
+		synchronized (this) {
+			if (!retired && idle.size() < maxIdle) {
+				idle.addLast(lease);
+				return;
+			}
+		}
+		lease.context.close(true);
+	}
+
+	/** Closes contexts idle for longer than {@code idleNanos}; returns how many were closed. */
+	int evictIdle(long idleNanos) {
+		long now = System.nanoTime();
+		Deque<Lease> expired = new ArrayDeque<>();
+		synchronized (this) {
+			for (Iterator<Lease> it = idle.iterator(); it.hasNext(); ) {
+				Lease lease = it.next();
+				if (now - lease.created > idleNanos) {
+					it.remove();
+					expired.add(lease);
+				}
+			}
+		}
+		expired.forEach(l -> l.context.close(true));
+		return expired.size();
+	}
+
+	/** Stops pooling: idle contexts close now, borrowed ones when they are released. */
+	void retire() {
+		Deque<Lease> closing;
+		synchronized (this) {
+			retired = true;
+			closing = new ArrayDeque<>(idle);
+			idle.clear();
+		}
+		closing.forEach(l -> l.context.close(true));
+	}
+
+	synchronized int idleCount() {
+		return idle.size();
+	}
+
+	/** Leases whose execution failed or was cancelled. */
+	synchronized int discardedCount() {
+		return discarded;
+	}
+
+	/** A bare context on the shared engine; host access stays at the EXPLICIT default. */
+	Context newContext() {
+		return Context.newBuilder("js").engine(engine).build();
+	}
+
+	private Lease create() {
+		Context context = newContext();
+		try {
+			context.eval(source);
+			Value run = context.getBindings("js").getMember("run");
+			return new Lease(context, run != null && run.canExecute() ? run : null);
+		} catch (RuntimeException e) {
+			context.close(true);
+			throw e;
+		}
+	}
+}
@@ -1,18 +1,257 @@
 package com.alansf.apexzombiekiller.service;
 
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-import javax.script.SimpleBindings;
+import jakarta.annotation.PreDestroy;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+import org.graalvm.polyglot.proxy.ProxyArray;
+import org.graalvm.polyglot.proxy.ProxyObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+@Component
 public class JsExecutionAdapter {
-	public void execute(String source) throws Exception {
-		ScriptEngineManager manager = new ScriptEngineManager();
-		ScriptEngine engine = manager.getEngineByName("graal.js");
+	private static final Logger log = LoggerFactory.getLogger(JsExecutionAdapter.class);
+	private static final Pattern RUN_FUNCTION = Pattern.compile("\\bfunction\\s+run\\s*\\(|\\b(?:const|let|var)\\s+run\\s*=");
+
+	private final int maxIdle;
+	private final long idleTimeoutMillis;
+	private final int prewarm;
+	// Pools keyed by content hash, and the hash each code name currently resolves to.
+	private final Map<String, JsContextPool> pools = new ConcurrentHashMap<>();
+	private final Map<String, String> current = new ConcurrentHashMap<>();
+	private Engine engine;
+	private ScheduledExecutorService sweeper;
+
+	public JsExecutionAdapter() {
+		this(4, 300_000, 1);
+	}
+
+	@Autowired
+	public JsExecutionAdapter(@org.springframework.beans.factory.annotation.Value("${js.pool.max-idle:4}") int maxIdle,
+	                          @org.springframework.beans.factory.annotation.Value("${js.pool.idle-timeout-ms:300000}") long idleTimeoutMillis,
+	                          @org.springframework.beans.factory.annotation.Value("${js.pool.prewarm:1}") int prewarm) {
+		this.maxIdle = maxIdle;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.prewarm = prewarm;
+	}
+
+	public Object execute(String source, Map<String, Object> payload) throws Exception {
+		return execute(null, source, payload);
+	}
+
+	/**
+	 * Runs the script with the payload bound as {@code payload}. If the script defines a
+	 * {@code run(payload)} function it is called on a pre-warmed context that already evaluated the
+	 * script and its return value is the result; otherwise the whole script is evaluated on a fresh
+	 * context (sharing the engine's parsed code) and the last expression is the result. Either way
+	 * no global state survives from one execution to the next.
+	 */
+	public Object execute(String codeName, String source, Map<String, Object> payload) throws Exception {
+		JsContextPool pool = poolFor(codeName, source);
+		if (!pool.callsRun) {
+			return evalScript(pool, payload);
+		}
+		JsContextPool.Lease lease = pool.borrow();
+		replenish(pool);
+		boolean healthy = true;
+		try {
+			if (lease.run == null) {
+				return evalScript(pool, payload);
+			}
+			PayloadObject bound = new PayloadObject(payload);
+			lease.context.getBindings("js").putMember("payload", bound);
+			// As in evalScript: a timed-out call is stopped by closing its context.
+			ExecutionGuard.onCancel(() -> {
+				lease.cancelled = true;
+				lease.context.close(true);
+			});
+			return toJava(lease.run.execute(bound));
+		} catch (PolyglotException e) {
+			healthy = !e.isCancelled() && !e.isInterrupted() && !e.isExit() && !e.isInternalError();
+			throw e;
+		} finally {
+			ExecutionGuard.onCancel(null);
+			pool.release(lease, healthy);
+		}
+	}
+
+	/** Parses the script and pre-creates pooled contexts so the first execution skips that work. */
+	public void warm(String codeName, String source) {
+		JsContextPool pool = poolFor(codeName, source);
+		if (pool.callsRun) {
+			pool.prewarm(prewarm);
+		}
+	}
+
+	public Map<String, Object> stats() {
+		Map<String, Object> m = new LinkedHashMap<>();
+		m.put("versions", pools.size());
+		m.put("idleContexts", pools.values().stream().mapToInt(JsContextPool::idleCount).sum());
+		m.put("discardedContexts", pools.values().stream().mapToInt(JsContextPool::discardedCount).sum());
+		return m;
+	}
+
+	@PreDestroy
+	public synchronized void close() {
+		if (sweeper != null) {
+			// A replacement context may be mid-evaluation; let it land so retire() closes it.
+			sweeper.shutdownNow();
+			try {
+				sweeper.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		pools.values().forEach(JsContextPool::retire);
+		pools.clear();
+		if (engine != null) engine.close();
+	}
+
+	private Object evalScript(JsContextPool pool, Map<String, Object> payload) {
+		try (Context context = pool.newContext()) {
+			context.getBindings("js").putMember("payload", new PayloadObject(payload));
+			// Interrupting the thread does not stop guest code; cancelling the context does.
+			ExecutionGuard.onCancel(() -> context.close(true));
+			try {
+				return toJava(context.eval(pool.source));
+			} finally {
+				ExecutionGuard.onCancel(null);
+			}
+		}
+	}
+
+	private JsContextPool poolFor(String codeName, String source) {
+		String key = ContentHash.sha256("js", source);
+		String slot = codeName == null || codeName.isBlank() ? key : codeName;
+		// Resolved outside computeIfAbsent: engine() locks the adapter, which close() holds while clearing the map.
+		Engine shared = engine();
+		boolean[] parsed = {false};
+		JsContextPool pool = pools.computeIfAbsent(key, k -> {
+			parsed[0] = true;
+			return new JsContextPool(k, Source.newBuilder("js", source, slot + ".js").cached(true).buildLiteral(),
+					RUN_FUNCTION.matcher(source).find(), shared, maxIdle);
+		});
+		ExecutionGuard.recordCacheHit(!parsed[0]);
+		String previous = current.put(slot, key);
+		if (previous != null && !previous.equals(key) && !current.containsValue(previous)) {
+			JsContextPool old = pools.remove(previous);
+			if (old != null) {
+				old.retire();
+				log.info("Invalidated JS contexts for {} ({} -> {})", slot, ContentHash.shortKey(previous), ContentHash.shortKey(key));
+			}
+		}
+		return pool;
+	}
+
+	/** Evaluates the replacement for a borrowed context off the caller's thread. */
+	private void replenish(JsContextPool pool) {
+		try {
+			sweeper.execute(() -> {
+				try {
+					pool.replenish();
+				} catch (RuntimeException e) {
+					log.debug("Could not pre-warm a JS context for {}: {}", ContentHash.shortKey(pool.key), e.getMessage());
+				}
+			});
+		} catch (RejectedExecutionException closing) {
+			// the adapter is shutting down
+		}
+	}
+
+	private synchronized Engine engine() {
 		if (engine == null) {
-			throw new IllegalStateException("GraalJS engine not available. Ensure Graal JS dependency is present.");
+			engine = Engine.newBuilder("js").option("engine.WarnInterpreterOnly", "false").build();
+			sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+				// Also evaluates replacement contexts, see replenish().
+				Thread t = new Thread(r, "js-pool-sweeper");
+				t.setDaemon(true);
+				return t;
+			});
+			long period = Math.max(1_000, Math.min(idleTimeoutMillis, 60_000));
+			sweeper.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
 		}
-		engine.eval(source, new SimpleBindings());
+		return engine;
 	}
-}
 
+	private void evictIdle() {
+		long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+		int closed = pools.values().stream().mapToInt(p -> p.evictIdle(idleNanos)).sum();
+		if (closed > 0) log.debug("Closed {} idle JS contexts", closed);
+	}
 
+	/** Copies a guest value into plain Java types so it outlives the (pooled) context. */
+	static Object toJava(Value v) {
+		if (v == null || v.isNull()) return null;
+		if (v.isBoolean()) return v.asBoolean();
+		if (v.isNumber()) {
+			if (v.fitsInInt()) return v.asInt();
+			if (v.fitsInLong()) return v.asLong();
+			return v.asDouble();
+		}
+		if (v.isString()) return v.asString();
+		if (v.isProxyObject()) {
+			Object proxy = v.asProxyObject();
+			if (proxy instanceof PayloadObject p) return p.map;
+			if (proxy instanceof PayloadArray a) return a.list;
+		}
+		if (v.isHostObject()) return v.asHostObject();
+		if (v.hasArrayElements()) {
+			List<Object> list = new ArrayList<>((int) v.getArraySize());
+			for (long i = 0; i < v.getArraySize(); i++) list.add(toJava(v.getArrayElement(i)));
+			return list;
+		}
+		if (v.hasMembers() && !v.canExecute()) {
+			Map<String, Object> map = new LinkedHashMap<>();
+			for (String k : v.getMemberKeys()) map.put(k, toJava(v.getMember(k)));
+			return map;
+		}
+		return v.toString();
+	}
+
+	private static Object wrap(Object o) {
+		if (o instanceof Map<?, ?> m) {
+			@SuppressWarnings("unchecked") Map<String, Object> map = (Map<String, Object>) m;
+			return new PayloadObject(map);
+		}
+		if (o instanceof List<?> l) {
+			@SuppressWarnings("unchecked") List<Object> list = (List<Object>) l;
+			return new PayloadArray(list);
+		}
+		return o;
+	}
+
+	/** Exposes the request map to JS as a plain object without copying it; nested values wrap lazily. */
+	static final class PayloadObject implements ProxyObject {
+		final Map<String, Object> map;
+		PayloadObject(Map<String, Object> map) { this.map = map == null ? Map.of() : map; }
+		@Override public Object getMember(String key) { return wrap(map.get(key)); }
+		@Override public Object getMemberKeys() { return ProxyArray.fromArray(map.keySet().toArray()); }
+		@Override public boolean hasMember(String key) { return map.containsKey(key); }
+		@Override public void putMember(String key, Value value) { map.put(key, toJava(value)); }
+		@Override public boolean removeMember(String key) { return map.remove(key) != null; }
+	}
+
+	static final class PayloadArray implements ProxyArray {
+		final List<Object> list;
+		PayloadArray(List<Object> list) { this.list = list; }
+		@Override public Object get(long index) { return wrap(list.get((int) index)); }
+		@Override public void set(long index, Value value) { list.set((int) index, toJava(value)); }
+		@Override public long getSize() { return list.size(); }
+	}
+}
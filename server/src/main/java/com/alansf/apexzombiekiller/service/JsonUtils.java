@@ -1,7 +1,10 @@
 package com.alansf.apexzombiekiller.service;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.util.Map;
+
 public class JsonUtils {
 	private static final ObjectMapper MAPPER = new ObjectMapper();
 	public static String toJson(Object obj) {
@@ -11,6 +14,14 @@ public class JsonUtils {
 			return "{}";
 		}
 	}
-}
-
 
+	/** Parses a JSON object; null or blank input gives an empty map. */
+	public static Map<String, Object> toMap(String json) {
+		if (json == null || json.isBlank()) return Map.of();
+		try {
+			return MAPPER.readValue(json, new TypeReference<Map<String, Object>>() {});
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Invalid JSON object: " + e.getMessage(), e);
+		}
+	}
+}
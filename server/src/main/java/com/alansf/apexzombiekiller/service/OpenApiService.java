@@ -58,9 +58,21 @@ public class OpenApiService {
 			+ "        codeName: { type: string }\n"
 			+ "        startedAt: { type: string, format: date-time }\n"
 			+ "        completedAt: { type: string, format: date-time, nullable: true }\n"
-			+ "        status: { type: string }\n"
+			+ "        status: { type: string, enum: [ACCEPTED, RUNNING, SUCCEEDED, FAILED, TIMED_OUT] }\n"
 			+ "        error: { type: string }\n"
-			+ "        inputJson: { type: string }\n";
+			+ "        inputJson: { type: string }\n"
+			+ "        outputJson: { type: string, nullable: true }\n"
+			+ "        usage:\n"
+			+ "          $ref: '#/components/schemas/ExecutionUsage'\n"
+			+ "    ExecutionUsage:\n"
+			+ "      type: object\n"
+			+ "      nullable: true\n"
+			+ "      properties:\n"
+			+ "        cpuTimeMicros: { type: integer, format: int64 }\n"
+			+ "        wallTimeMicros: { type: integer, format: int64 }\n"
+			+ "        allocatedBytes: { type: integer, format: int64 }\n"
+			+ "        cacheHit: { type: boolean }\n"
+			+ "        queueWaitMillis: { type: integer, format: int64 }\n";
 	}
 
 	private String dynamicWebPaths() {
@@ -0,0 +1,220 @@
+package com.alansf.apexzombiekiller.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Incremental decoder for a chat-completions event stream. Bytes are fed as they arrive, in
+ * chunks that may end mid-line or mid-character; complete lines are framed into SSE events and
+ * each event's {@code choices[0].delta.content} (or {@code choices[0].message.content}) is read
+ * with a streaming {@link JsonParser}, without building a tree. Lines without a {@code data:}
+ * field that hold a JSON object (newline-delimited JSON) are decoded the same way. One instance
+ * per response; not thread-safe.
+ */
+public final class SseDeltaDecoder {
+	private static final Logger log = LoggerFactory.getLogger(SseDeltaDecoder.class);
+	private static final JsonFactory JSON = new JsonFactory();
+	private static final byte[] DONE = "[DONE]".getBytes(StandardCharsets.US_ASCII);
+
+	// Bytes received but not yet framed into a complete line.
+	private byte[] pending = new byte[4096];
+	private int pendingLength;
+	// pending[0, scanned) is known to hold no newline, so a long line split over many chunks is scanned once.
+	private int scanned;
+	// Data of the event being assembled; multiple data: lines join with '\n'.
+	private byte[] data = new byte[1024];
+	private int dataLength = -1;
+
+	/** Decodes a response body into content deltas, releasing each buffer once it has been read. */
+	public static Flux<String> decode(Flux<DataBuffer> body) {
+		return Flux.defer(() -> {
+			SseDeltaDecoder decoder = new SseDeltaDecoder();
+			return body
+					.concatMapIterable(buf -> {
+						List<String> deltas = new ArrayList<>(2);
+						try (DataBuffer.ByteBufferIterator it = buf.readableByteBuffers()) {
+							while (it.hasNext()) decoder.feed(it.next(), deltas::add);
+						} finally {
+							DataBufferUtils.release(buf);
+						}
+						return deltas;
+					})
+					.doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+					.concatWith(Flux.defer(() -> {
+						List<String> rest = new ArrayList<>(1);
+						decoder.finish(rest::add);
+						return Flux.fromIterable(rest);
+					}));
+		});
+	}
+
+	public void feed(ByteBuffer chunk, Consumer<String> out) {
+		int n = chunk.remaining();
+		ensurePending(n);
+		chunk.get(pending, pendingLength, n);
+		pendingLength += n;
+		drainLines(out);
+	}
+
+	public void feed(byte[] chunk, int offset, int length, Consumer<String> out) {
+		ensurePending(length);
+		System.arraycopy(chunk, offset, pending, pendingLength, length);
+		pendingLength += length;
+		drainLines(out);
+	}
+
+	/** End of stream: a last line without a newline and an event without its blank line still count. */
+	public void finish(Consumer<String> out) {
+		if (pendingLength > 0) {
+			int end = pendingLength;
+			pendingLength = 0;
+			scanned = 0;
+			line(pending, 0, end, out);
+		}
+		dispatch(out);
+	}
+
+	private void drainLines(Consumer<String> out) {
+		int start = 0;
+		for (int i = scanned; i < pendingLength; i++) {
+			if (pending[i] == '\n') {
+				line(pending, start, i, out);
+				start = i + 1;
+			}
+		}
+		if (start > 0) {
+			System.arraycopy(pending, start, pending, 0, pendingLength - start);
+			pendingLength -= start;
+		}
+		scanned = pendingLength;
+	}
+
+	private void line(byte[] buf, int start, int end, Consumer<String> out) {
+		if (end > start && buf[end - 1] == '\r') end--;
+		if (start == end) {
+			dispatch(out);
+			return;
+		}
+		if (startsWith(buf, start, end, "data:")) {
+			int from = start + 5;
+			if (from < end && buf[from] == ' ') from++;
+			// A data line opening a new object ends the previous event, for servers that omit the blank line
+			if (from < end && buf[from] == '{') dispatch(out);
+			appendData(buf, from, end);
+		} else if (buf[start] == '{') {
+			// Newline-delimited JSON rather than SSE
+			dispatch(out);
+			appendData(buf, start, end);
+			dispatch(out);
+		}
+		// event:, id:, retry: and ":" comments carry nothing we need
+	}
+
+	private void appendData(byte[] buf, int from, int end) {
+		int n = end - from;
+		int needed = (dataLength < 0 ? 0 : dataLength + 1) + n;
+		if (needed > data.length) data = Arrays.copyOf(data, Math.max(needed, data.length * 2));
+		if (dataLength < 0) {
+			dataLength = 0;
+		} else {
+			data[dataLength++] = '\n';
+		}
+		System.arraycopy(buf, from, data, dataLength, n);
+		dataLength += n;
+	}
+
+	private void dispatch(Consumer<String> out) {
+		if (dataLength < 0) return;
+		int length = dataLength;
+		dataLength = -1;
+		int start = 0;
+		while (start < length && data[start] == ' ') start++;
+		if (start == length || matches(data, start, length, DONE)) return;
+		if (data[start] != '{') {
+			// Plain-text data: pass through as the delta itself
+			out.accept(new String(data, start, length - start, StandardCharsets.UTF_8));
+			return;
+		}
+		try (JsonParser p = JSON.createParser(data, start, length - start)) {
+			String content = firstChoiceContent(p);
+			if (content != null && !content.isEmpty()) out.accept(content);
+		} catch (IOException e) {
+			log.debug("Skipping malformed stream event: {}", e.getMessage());
+		}
+	}
+
+	/** Walks {@code {"choices":[{"delta":{"content":...}}]}} (or {@code message}) and skips everything else. */
+	static String firstChoiceContent(JsonParser p) throws IOException {
+		if (p.nextToken() != JsonToken.START_OBJECT) return null;
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String field = p.currentName();
+			JsonToken value = p.nextToken();
+			if (!"choices".equals(field) || value != JsonToken.START_ARRAY) {
+				p.skipChildren();
+				continue;
+			}
+			if (p.nextToken() != JsonToken.START_OBJECT) return null;
+			String fromMessage = null;
+			while (p.nextToken() == JsonToken.FIELD_NAME) {
+				String choiceField = p.currentName();
+				JsonToken choiceValue = p.nextToken();
+				if (("delta".equals(choiceField) || "message".equals(choiceField)) && choiceValue == JsonToken.START_OBJECT) {
+					String content = contentField(p);
+					if ("delta".equals(choiceField)) return content;
+					fromMessage = content;
+				} else {
+					p.skipChildren();
+				}
+			}
+			return fromMessage;
+		}
+		return null;
+	}
+
+	private static String contentField(JsonParser p) throws IOException {
+		String content = null;
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String field = p.currentName();
+			JsonToken value = p.nextToken();
+			if ("content".equals(field) && value == JsonToken.VALUE_STRING) {
+				content = p.getText();
+			} else {
+				p.skipChildren();
+			}
+		}
+		return content;
+	}
+
+	private void ensurePending(int more) {
+		if (pendingLength + more > pending.length) {
+			pending = Arrays.copyOf(pending, Math.max(pendingLength + more, pending.length * 2));
+		}
+	}
+
+	private static boolean startsWith(byte[] buf, int start, int end, String prefix) {
+		if (end - start < prefix.length()) return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buf[start + i] != prefix.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private static boolean matches(byte[] buf, int start, int end, byte[] token) {
+		while (end > start && buf[end - 1] == ' ') end--;
+		return end - start == token.length && Arrays.equals(buf, start, end, token, 0, token.length);
+	}
+}
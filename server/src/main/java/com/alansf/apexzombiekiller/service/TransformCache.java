@@ -0,0 +1,237 @@
+package com.alansf.apexzombiekiller.service;
+
+import com.alansf.apexzombiekiller.model.TransformResponse;
+import com.alansf.apexzombiekiller.repo.TransformCacheRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Inference results keyed by {@link #key}: an in-process LRU (bounded by {@code max-entries} and
+ * {@code max-chars} of generated code) in front of {@code transform_cache}. Concurrent requests for
+ * the same key wait for the one already calling inference instead of sending their own. Only real
+ * inference output is cached; fallback stubs are never stored. Rows older than {@code ttl-days} are
+ * no longer served and are purged at most hourly, so entries for models or prompts no longer in use
+ * do not pile up.
+ */
+@Service
+public class TransformCache {
+	private static final Logger log = LoggerFactory.getLogger(TransformCache.class);
+	private static final long PURGE_INTERVAL_MILLIS = 3_600_000;
+
+	/** {@code response} is null when nothing cacheable was produced; {@code tier} is set on hits only. */
+	public record Lookup(TransformResponse response, String status, String tier) {}
+
+	private final TransformCacheRepository repo;
+	private final int maxEntries;
+	private final long maxChars;
+	private final Duration ttl;
+	private final AtomicLong nextPurgeMillis = new AtomicLong();
+	private final LinkedHashMap<String, TransformResponse> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long chars;
+	private final Map<String, CompletableFuture<TransformResponse>> inFlight = new ConcurrentHashMap<>();
+	private final LongAdder memoryHits = new LongAdder();
+	private final LongAdder postgresHits = new LongAdder();
+	private final LongAdder sharedHits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder storeErrors = new LongAdder();
+
+	/** Memory-only cache, for tests and tools without a database. */
+	public TransformCache() {
+		this(null, 500, 20_000_000);
+	}
+
+	public TransformCache(TransformCacheRepository repo, int maxEntries, long maxChars) {
+		this(repo, maxEntries, maxChars, 30);
+	}
+
+	@Autowired
+	public TransformCache(TransformCacheRepository repo,
+	                      @Value("${transform.cache.max-entries:500}") int maxEntries,
+	                      @Value("${transform.cache.max-chars:20000000}") long maxChars,
+	                      @Value("${transform.cache.ttl-days:30}") int ttlDays) {
+		this.repo = repo;
+		this.maxEntries = maxEntries;
+		this.maxChars = maxChars;
+		this.ttl = Duration.ofDays(Math.max(1, ttlDays));
+	}
+
+	/**
+	 * Same key for Apex that differs only in line endings, trailing whitespace or surrounding blank
+	 * lines; the model id and prompt version are part of it so switching models or editing a prompt
+	 * does not serve the old output.
+	 */
+	public static String key(String target, String apexCode, boolean useHerokuConnect, boolean generateTests, String model, String promptVersion) {
+		return ContentHash.sha256("transform", target, normalize(apexCode),
+				String.valueOf(useHerokuConnect), String.valueOf(generateTests), model == null ? "" : model,
+				promptVersion == null ? "" : promptVersion);
+	}
+
+	static String normalize(String apexCode) {
+		if (apexCode == null) return "";
+		return apexCode.lines().map(String::stripTrailing).collect(Collectors.joining("\n")).strip();
+	}
+
+	/**
+	 * Returns the cached result for {@code key}, or runs {@code loader} (an inference call) and
+	 * caches what it yields. Status is {@code HIT}, {@code MISS}, or {@code BYPASS} when the loader
+	 * produced nothing worth caching.
+	 */
+	public Lookup get(String key, String target, String model, Supplier<Optional<TransformResponse>> loader) {
+		TransformResponse cached = fromMemory(key);
+		if (cached != null) {
+			memoryHits.increment();
+			return new Lookup(copy(cached), "HIT", "memory");
+		}
+		CompletableFuture<TransformResponse> mine = new CompletableFuture<>();
+		CompletableFuture<TransformResponse> running = inFlight.putIfAbsent(key, mine);
+		if (running != null) {
+			TransformResponse shared = running.join();
+			if (shared == null) return new Lookup(null, "BYPASS", null);
+			sharedHits.increment();
+			return new Lookup(copy(shared), "HIT", "in-flight");
+		}
+		TransformResponse result = null;
+		try {
+			TransformResponse stored = fromPostgres(key);
+			if (stored != null) {
+				postgresHits.increment();
+				remember(key, stored);
+				result = stored;
+				return new Lookup(copy(stored), "HIT", "postgres");
+			}
+			misses.increment();
+			result = loader.get().map(TransformCache::copy).orElse(null);
+			if (result == null) return new Lookup(null, "BYPASS", null);
+			remember(key, result);
+			toPostgres(key, target, model, result);
+			return new Lookup(copy(result), "MISS", null);
+		} finally {
+			mine.complete(result);
+			inFlight.remove(key, mine);
+		}
+	}
+
+	/** Memory, then Postgres, without calling inference; used by streaming, which produces its result itself. */
+	public Optional<Lookup> find(String key) {
+		TransformResponse cached = fromMemory(key);
+		if (cached != null) {
+			memoryHits.increment();
+			return Optional.of(new Lookup(copy(cached), "HIT", "memory"));
+		}
+		TransformResponse stored = fromPostgres(key);
+		if (stored != null) {
+			postgresHits.increment();
+			remember(key, stored);
+			return Optional.of(new Lookup(copy(stored), "HIT", "postgres"));
+		}
+		misses.increment();
+		return Optional.empty();
+	}
+
+	/** Stores a result produced outside {@link #get}, in both tiers. */
+	public void put(String key, String target, String model, TransformResponse r) {
+		TransformResponse stored = copy(r);
+		remember(key, stored);
+		toPostgres(key, target, model, stored);
+	}
+
+	public synchronized Map<String, Object> stats() {
+		long hits = memoryHits.sum() + postgresHits.sum() + sharedHits.sum();
+		long m = misses.sum();
+		Map<String, Object> out = new LinkedHashMap<>();
+		out.put("entries", entries.size());
+		out.put("chars", chars);
+		out.put("memoryHits", memoryHits.sum());
+		out.put("postgresHits", postgresHits.sum());
+		out.put("sharedHits", sharedHits.sum());
+		out.put("misses", m);
+		out.put("hitRatio", hits + m == 0 ? 0.0 : (double) hits / (hits + m));
+		out.put("evictions", evictions.sum());
+		out.put("storeErrors", storeErrors.sum());
+		return out;
+	}
+
+	private synchronized TransformResponse fromMemory(String key) {
+		return entries.get(key);
+	}
+
+	private synchronized void remember(String key, TransformResponse r) {
+		if (weight(r) > maxChars) return;
+		TransformResponse previous = entries.put(key, r);
+		if (previous != null) chars -= weight(previous);
+		chars += weight(r);
+		for (Iterator<TransformResponse> it = entries.values().iterator();
+		     it.hasNext() && (entries.size() > maxEntries || chars > maxChars); ) {
+			chars -= weight(it.next());
+			it.remove();
+			evictions.increment();
+		}
+	}
+
+	// The database tier only saves inference calls; when it is unavailable the request carries on without it.
+	private TransformResponse fromPostgres(String key) {
+		if (repo == null) return null;
+		try {
+			return repo.find(key, ttl).orElse(null);
+		} catch (DataAccessException e) {
+			storeErrors.increment();
+			log.warn("Transform cache lookup failed for {}: {}", ContentHash.shortKey(key), e.getMessage());
+			return null;
+		}
+	}
+
+	private void toPostgres(String key, String target, String model, TransformResponse r) {
+		if (repo == null) return;
+		try {
+			repo.save(key, target, model, r);
+			purgeExpired();
+		} catch (DataAccessException e) {
+			storeErrors.increment();
+			log.warn("Transform cache store failed for {}: {}", ContentHash.shortKey(key), e.getMessage());
+		}
+	}
+
+	// Piggybacks on stores (each one a paid inference call), so an idle dyno never touches the table.
+	private void purgeExpired() {
+		long now = System.currentTimeMillis();
+		long due = nextPurgeMillis.get();
+		if (now < due || !nextPurgeMillis.compareAndSet(due, now + PURGE_INTERVAL_MILLIS)) return;
+		int purged = repo.deleteOlderThan(ttl);
+		if (purged > 0) log.info("Purged {} transform cache rows older than {} days", purged, ttl.toDays());
+	}
+
+	private static long weight(TransformResponse r) {
+		return len(r.javaCode) + len(r.jsCode) + len(r.testCode) + len(r.notes);
+	}
+
+	private static long len(String s) {
+		return s == null ? 0 : s.length();
+	}
+
+	// Callers get their own copy; the cached instance is shared across requests.
+	private static TransformResponse copy(TransformResponse r) {
+		TransformResponse c = new TransformResponse();
+		c.javaCode = r.javaCode;
+		c.jsCode = r.jsCode;
+		c.testCode = r.testCode;
+		c.notes = r.notes;
+		return c;
+	}
+}
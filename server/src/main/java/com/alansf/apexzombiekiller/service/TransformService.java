@@ -2,25 +2,241 @@ package com.alansf.apexzombiekiller.service;
 
 import com.alansf.apexzombiekiller.model.TransformRequest;
 import com.alansf.apexzombiekiller.model.TransformResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
 
 @Service
 public class TransformService {
+	private static final Logger log = LoggerFactory.getLogger(TransformService.class);
 	private final InferenceClient inference;
+	private final TransformCache cache;
+	private final int unitMinChars;
+	private final int unitParallelism;
+
+	/** A transform result and how the cache served it ({@code HIT}, {@code MISS} or {@code BYPASS}). */
+	public record Transformed(TransformResponse response, String cacheStatus, String cacheTier, String cacheKey) {}
+
+	/**
+	 * A streamed code fragment, or (with {@code delta} null) the closing event carrying notes, any
+	 * test code and the final cache status.
+	 */
+	public record StreamEvent(String delta, String testCode, String notes, String cacheStatus) {}
+
+	/**
+	 * {@code cacheStatus} is known before any event: a stream that then yields nothing falls back to
+	 * the stub, and only its closing event says {@code BYPASS}.
+	 */
+	public record Streaming(Flux<StreamEvent> events, String cacheStatus, String cacheTier, String cacheKey) {}
+
 	public TransformService(InferenceClient inference) {
+		this(inference, new TransformCache());
+	}
+
+	public TransformService(InferenceClient inference, TransformCache cache) {
+		this(inference, cache, 12_000, 4);
+	}
+
+	@Autowired
+	public TransformService(InferenceClient inference, TransformCache cache,
+	                        @Value("${transform.units.min-chars:12000}") int unitMinChars,
+	                        @Value("${transform.units.parallelism:4}") int unitParallelism) {
 		this.inference = inference;
+		this.cache = cache;
+		this.unitMinChars = unitMinChars;
+		this.unitParallelism = Math.max(1, unitParallelism);
 	}
+
 	public TransformResponse apexToJava(TransformRequest req) {
-		TransformResponse res = new TransformResponse();
+		return transform("java", req).response();
+	}
+
+	public TransformResponse apexToJs(TransformRequest req) {
+		return transform("js", req).response();
+	}
+
+	/** Converts to {@code target} ("java" or "js"), reusing a cached inference result for the same Apex and options. */
+	public Transformed transform(String target, TransformRequest req) {
 		// Prefer Managed Inference when configured; otherwise fallback stub
 		String body = req.apexCode == null ? "" : req.apexCode;
 		boolean useConnect = req.options != null && Boolean.TRUE.equals(req.options.useHerokuConnect);
 		boolean genTests = req.options != null && Boolean.TRUE.equals(req.options.generateTests);
-		var maybe = inference.apexToJava(body, useConnect, genTests);
-		if (maybe.isPresent() && maybe.get() != null && !maybe.get().isBlank()) {
-			res.javaCode = maybe.get();
-			res.notes = "Generated via Managed Inference";
-		} else {
+		Optional<String> model = inference.modelId();
+		if (model.isEmpty()) {
+			return new Transformed(fallback(target, body), "BYPASS", null, null);
+		}
+		String key = TransformCache.key(target, body, useConnect, genTests, model.get(), inference.promptVersion());
+		TransformCache.Lookup lookup = cache.get(key, target, model.get(), () -> generate(target, body, useConnect, genTests, model.get()));
+		TransformResponse res = lookup.response() != null ? lookup.response() : fallback(target, body);
+		return new Transformed(res, lookup.status(), lookup.tier(), key);
+	}
+
+	/**
+	 * Like {@link #transform}, but relays the code as inference produces it. Cache hits and the
+	 * fallback stub arrive as a single delta; a completed stream is cached for later requests.
+	 */
+	public Streaming stream(String target, TransformRequest req) {
+		String body = req.apexCode == null ? "" : req.apexCode;
+		boolean useConnect = req.options != null && Boolean.TRUE.equals(req.options.useHerokuConnect);
+		boolean genTests = req.options != null && Boolean.TRUE.equals(req.options.generateTests);
+		Optional<String> model = inference.modelId();
+		if (model.isEmpty()) {
+			return new Streaming(whole(target, fallback(target, body), "BYPASS"), "BYPASS", null, null);
+		}
+		String key = TransformCache.key(target, body, useConnect, genTests, model.get(), inference.promptVersion());
+		Optional<TransformCache.Lookup> hit = cache.find(key);
+		if (hit.isPresent()) {
+			return new Streaming(whole(target, hit.get().response(), "HIT"), "HIT", hit.get().tier(), key);
+		}
+		if (splitForUnits(target, body).isPresent()) {
+			// Units are converted concurrently and only usable once stitched, so the class arrives whole.
+			Flux<StreamEvent> stitched = Mono.fromCallable(() -> transform(target, req))
+					.subscribeOn(Schedulers.boundedElastic())
+					.flatMapMany(t -> whole(target, t.response(), t.cacheStatus()));
+			return new Streaming(stitched, "MISS", null, key);
+		}
+		Flux<StreamEvent> events = Flux.defer(() -> {
+			StringBuilder generated = new StringBuilder();
+			return inference.streamTransform(target, body, useConnect, genTests)
+					.doOnNext(generated::append)
+					.map(delta -> new StreamEvent(delta, null, null, null))
+					.concatWith(Flux.defer(() -> {
+						// Nothing generated and nothing cached: the same BYPASS as transform() reports
+						if (generated.isEmpty()) return whole(target, fallback(target, body), "BYPASS");
+						TransformResponse res = new TransformResponse();
+						if ("java".equals(target)) res.javaCode = generated.toString();
+						else res.jsCode = generated.toString();
+						res.notes = "Generated via Managed Inference";
+						// Stored off the HTTP client's event loop; the Postgres write is blocking JDBC.
+						Mono.fromRunnable(() -> cache.put(key, target, model.get(), res))
+								.subscribeOn(Schedulers.boundedElastic())
+								.subscribe(null, e -> log.warn("Caching streamed transform failed: {}", e.getMessage()));
+						return Flux.just(new StreamEvent(null, null, res.notes, "MISS"));
+					}))
+					.onErrorResume(e -> {
+						log.warn("Inference stream interrupted: {}", e.getMessage());
+						return Flux.just(new StreamEvent(null, null, "Inference stream interrupted: " + e.getMessage(), "MISS"));
+					});
+		});
+		return new Streaming(events, "MISS", null, key);
+	}
+
+	private static Flux<StreamEvent> whole(String target, TransformResponse res, String cacheStatus) {
+		String code = "java".equals(target) ? res.javaCode : res.jsCode;
+		return Flux.just(new StreamEvent(code == null ? "" : code, null, null, null), new StreamEvent(null, res.testCode, res.notes, cacheStatus));
+	}
+
+	private Optional<TransformResponse> generate(String target, String body, boolean useConnect, boolean genTests, String model) {
+		Optional<ApexUnits.Split> split = splitForUnits(target, body);
+		if (split.isPresent()) {
+			Optional<TransformResponse> stitched = generateInUnits(split.get(), useConnect, genTests, model);
+			if (stitched.isPresent()) return stitched;
+			log.warn("Unit transform of {} did not complete, converting it in one request", split.get().className());
+		}
+		var maybe = "java".equals(target)
+				? inference.apexToJava(body, useConnect, genTests)
+				: inference.apexToJs(body, useConnect, genTests);
+		if (maybe.isEmpty() || maybe.get() == null || maybe.get().isBlank()) return Optional.empty();
+		TransformResponse res = new TransformResponse();
+		if ("java".equals(target)) res.javaCode = maybe.get();
+		else res.jsCode = maybe.get();
+		res.notes = "Generated via Managed Inference";
+		return Optional.of(res);
+	}
+
+	/** Large Java-bound classes with more than one member are converted unit by unit. */
+	private Optional<ApexUnits.Split> splitForUnits(String target, String body) {
+		if (!"java".equals(target) || body.length() < unitMinChars) return Optional.empty();
+		return ApexUnits.split(body).filter(s -> s.units().size() > 1);
+	}
+
+	/**
+	 * Converts the outline and each member of {@code split} with at most {@code unitParallelism}
+	 * inference calls in flight, then stitches them into one class. Every piece is cached on its
+	 * own: a member's key covers the class declaration, its state and that member only, so
+	 * editing one method body sends just that method to inference again.
+	 */
+	private Optional<TransformResponse> generateInUnits(ApexUnits.Split split, boolean useConnect, boolean genTests, String model) {
+		String outline = split.outline();
+		String context = split.declaration() + "{\n" + split.state();
+		List<Supplier<TransformCache.Lookup>> pieces = new ArrayList<>();
+		String prompts = inference.promptVersion();
+		pieces.add(() -> cache.get(TransformCache.key("java-outline", outline, useConnect, genTests, model, prompts), "java-outline", model,
+				() -> unit(inference.apexOutlineToJava(outline, useConnect, genTests))));
+		for (ApexUnits.Unit u : split.units()) {
+			pieces.add(() -> cache.get(TransformCache.key("java-member", context + "\n" + u.source(), useConnect, genTests, model, prompts), "java-member", model,
+					() -> unit(inference.apexMemberToJava(outline, u.source(), useConnect))));
+		}
+		long start = System.nanoTime();
+		List<TransformCache.Lookup> done = Flux.fromIterable(pieces)
+				.flatMapSequential(p -> Mono.fromSupplier(p).subscribeOn(Schedulers.boundedElastic()), unitParallelism)
+				.collectList()
+				.block();
+		if (done == null || done.stream().anyMatch(l -> l.response() == null)) return Optional.empty();
+		long cached = done.stream().filter(l -> "HIT".equals(l.status())).count();
+		log.info("Transformed {} in {} units ({} cached) in {} ms", split.className(), done.size(), cached,
+				(System.nanoTime() - start) / 1_000_000);
+
+		List<String> members = done.subList(1, done.size()).stream().map(l -> l.response().javaCode).toList();
+		TransformResponse res = new TransformResponse();
+		res.javaCode = stitch(done.get(0).response().javaCode, members);
+		res.notes = "Generated via Managed Inference from " + done.size() + " units";
+		return Optional.of(res);
+	}
+
+	private static Optional<TransformResponse> unit(Optional<String> code) {
+		if (code.isEmpty() || code.get().isBlank()) return Optional.empty();
+		TransformResponse res = new TransformResponse();
+		res.javaCode = code.get();
+		return Optional.of(res);
+	}
+
+	/**
+	 * Inserts the converted members before the outline class's closing brace. Markdown fences and
+	 * package lines are dropped, and member imports move to the top, once each.
+	 */
+	private static String stitch(String outlineJava, List<String> members) {
+		Set<String> imports = new LinkedHashSet<>();
+		String outline = codeLines(outlineJava, imports);
+		StringBuilder body = new StringBuilder();
+		for (String m : members) body.append('\n').append(codeLines(m, imports).stripTrailing()).append('\n');
+		int close = outline.lastIndexOf('}');
+		if (close < 0) close = outline.length();
+		StringBuilder out = new StringBuilder();
+		for (String imp : imports) out.append(imp).append('\n');
+		if (!imports.isEmpty()) out.append('\n');
+		return out.append(outline, 0, close).append(body).append(outline.substring(close)).toString();
+	}
+
+	private static String codeLines(String code, Set<String> imports) {
+		StringBuilder sb = new StringBuilder();
+		for (String line : code.split("\n", -1)) {
+			String t = line.strip();
+			if (t.startsWith("```") || t.startsWith("package ")) continue;
+			if (t.startsWith("import ")) {
+				imports.add(t);
+				continue;
+			}
+			sb.append(line).append('\n');
+		}
+		return sb.toString().strip() + "\n";
+	}
+
+	private static TransformResponse fallback(String target, String body) {
+		TransformResponse res = new TransformResponse();
+		if ("java".equals(target)) {
 			res.javaCode =
 					"package com.demo.jobs;\n\n" +
 					"public class ConvertedFromApex {\n" +
@@ -39,32 +255,14 @@ public class TransformService {
 					"        assertDoesNotThrow(() -> new ConvertedFromApex().run());\n" +
 					"    }\n" +
 					"}\n";
-			res.notes = "Fallback stub. Configure INFERENCE_URL and INFERENCE_MODEL_ID for Managed Inference.";
-		}
-		return res;
-	}
-
-	public TransformResponse apexToJs(TransformRequest req) {
-		TransformResponse res = new TransformResponse();
-		String body = req.apexCode == null ? "" : req.apexCode;
-		boolean useConnect = req.options != null && Boolean.TRUE.equals(req.options.useHerokuConnect);
-		boolean genTests = req.options != null && Boolean.TRUE.equals(req.options.generateTests);
-		var maybe = inference.apexToJs(body, useConnect, genTests);
-		if (maybe.isPresent() && maybe.get() != null && !maybe.get().isBlank()) {
-			res.jsCode = maybe.get();
-			res.notes = "Generated via Managed Inference";
 		} else {
 			res.jsCode =
 					"export function convertedFromApex() {\n" +
 					"  /*\n" + body + "\n" +
 					"  */\n" +
 					"}\n";
-			res.notes = "Fallback stub. Configure INFERENCE_URL and INFERENCE_MODEL_ID for Managed Inference.";
 		}
+		res.notes = "Fallback stub. Configure INFERENCE_URL and INFERENCE_MODEL_ID for Managed Inference.";
 		return res;
 	}
 }
-
-
-
-
@@ -1,6 +1,7 @@
 package com.alansf.apexzombiekiller.worker;
 
-import com.alansf.apexzombiekiller.repo.JobQueueRepository;
+import com.alansf.apexzombiekiller.service.AuditEvents;
+import com.alansf.apexzombiekiller.service.CodeRegistry;
 import org.postgresql.PGConnection;
 import org.postgresql.PGNotification;
 import org.slf4j.Logger;
@@ -12,17 +13,22 @@ import jakarta.annotation.PostConstruct;
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.util.UUID;
 import java.util.concurrent.Executors;
 
 @Component
 public class NotifyListener {
 	private static final Logger log = LoggerFactory.getLogger(NotifyListener.class);
 	private final DataSource dataSource;
-	private final JobQueueRepository jobs;
+	private final WorkSignal signal;
+	private final CodeRegistry codes;
+	private final AuditEvents auditEvents;
 
-	public NotifyListener(DataSource dataSource, JobQueueRepository jobs) {
+	public NotifyListener(DataSource dataSource, WorkSignal signal, CodeRegistry codes, AuditEvents auditEvents) {
 		this.dataSource = dataSource;
-		this.jobs = jobs;
+		this.signal = signal;
+		this.codes = codes;
+		this.auditEvents = auditEvents;
 	}
 
 	@PostConstruct
@@ -36,28 +42,60 @@ public class NotifyListener {
 
 	private void listenLoop() {
 		while (true) {
+			Connection conn = null;
 			try {
-				Connection conn = DataSourceUtils.getConnection(dataSource);
+				conn = DataSourceUtils.getConnection(dataSource);
 				PGConnection pg = conn.unwrap(PGConnection.class);
 				try (Statement st = conn.createStatement()) {
 					st.execute("LISTEN mia_events");
+					st.execute("LISTEN code_changed");
+					st.execute("LISTEN audit_done");
 				}
+				// Changes made while we were not listening were missed; start the code cache over.
+				codes.invalidateAll();
 				while (true) {
 					PGNotification[] notifications = pg.getNotifications(5000);
-					if (notifications != null) {
+					if (notifications != null && notifications.length > 0) {
+						boolean work = false;
 						for (PGNotification n : notifications) {
-							log.info("Received NOTIFY on {} payload={}", n.getName(), n.getParameter());
-							// For demo we simply wake the queue worker by enqueuing a no-op publish job
-							try { jobs.enqueue("publish", "_notify_tick_", null); } catch (Exception ignored) {}
+							log.debug("Received NOTIFY on {} payload={}", n.getName(), n.getParameter());
+							// A bad payload costs only its own notification, not the connection and the code cache.
+							try {
+								if ("code_changed".equals(n.getName())) {
+									codes.invalidate(n.getParameter());
+								} else if ("audit_done".equals(n.getName())) {
+									auditEvents.completed(UUID.fromString(n.getParameter()));
+								} else {
+									// payload is {"id": ..., "type": ...} of the enqueued job
+									work = true;
+								}
+							} catch (RuntimeException ex) {
+								log.warn("Ignoring NOTIFY on {} with payload {}: {}", n.getName(), n.getParameter(), ex.getMessage());
+							}
 						}
+						// One wakeup per batch; the worker claims whatever is queued by then.
+						if (work) signal.signal();
 					}
 				}
 			} catch (Exception ex) {
 				log.warn("LISTEN loop error, retrying in 2s", ex);
-				try { Thread.sleep(2000); } catch (InterruptedException ignored) {}
+			} finally {
+				release(conn);
 			}
+			try { Thread.sleep(2000); } catch (InterruptedException ignored) {}
 		}
 	}
+
+	/** Returns the listening connection to the pool without its subscriptions, if it still works. */
+	private void release(Connection conn) {
+		if (conn == null) return;
+		try (Statement st = conn.createStatement()) {
+			st.execute("UNLISTEN *");
+		} catch (Exception ignored) {
+			// a broken connection is discarded by the pool
+		}
+		DataSourceUtils.releaseConnection(conn, dataSource);
+	}
 }
 
 
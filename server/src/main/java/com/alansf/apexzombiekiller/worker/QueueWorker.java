@@ -1,77 +1,329 @@
 package com.alansf.apexzombiekiller.worker;
 
 import com.alansf.apexzombiekiller.model.JobItem;
+import com.alansf.apexzombiekiller.model.TransformedCode;
+import com.alansf.apexzombiekiller.repo.ArtifactRepository;
 import com.alansf.apexzombiekiller.repo.JobQueueRepository;
 import com.alansf.apexzombiekiller.repo.CodeRepository;
+import com.alansf.apexzombiekiller.service.ExecutionService;
 import com.alansf.apexzombiekiller.service.JavaExecutionAdapter;
+import com.alansf.apexzombiekiller.service.JsExecutionAdapter;
+import com.alansf.apexzombiekiller.service.JsonUtils;
 import com.alansf.apexzombiekiller.service.PublishService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.scheduling.annotation.EnableScheduling;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Component
-@EnableScheduling
 public class QueueWorker {
 	private static final Logger log = LoggerFactory.getLogger(QueueWorker.class);
 	private final JobQueueRepository jobs;
 	private final CodeRepository codeRepo;
 	private final PublishService publish;
+	private final JavaExecutionAdapter javaAdapter;
+	private final JsExecutionAdapter jsAdapter;
+	private final ArtifactRepository artifacts;
+	private final ExecutionService exec;
+	private final WorkSignal signal;
+	private final long idleDelayMillis;
+	private final int compileBatchSize;
+	private final int claimSize;
+	// One permit per running task (a compile batch is one task); bounds total concurrency.
+	private final Semaphore slots;
+	private final Map<String, Semaphore> typeSlots = new HashMap<>();
+	// Types at their limit when a claim came back empty; freeing one of them rings the signal.
+	private final Set<String> deferred = ConcurrentHashMap.newKeySet();
+	private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+	// Finished jobs waiting to be written back; see flushCompletions.
+	private final Queue<Completion> completions = new ConcurrentLinkedQueue<>();
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private volatile Thread poller;
 
-	public QueueWorker(JobQueueRepository jobs, CodeRepository codeRepo, PublishService publish) {
+	public QueueWorker(JobQueueRepository jobs, CodeRepository codeRepo, PublishService publish,
+	                   JavaExecutionAdapter javaAdapter, JsExecutionAdapter jsAdapter, ArtifactRepository artifacts,
+	                   ExecutionService exec, WorkSignal signal,
+	                   @Value("${worker.idle-delay-ms:2000}") long idleDelayMillis,
+	                   @Value("${worker.compile-batch-size:50}") int compileBatchSize,
+	                   @Value("${worker.concurrency:8}") int concurrency,
+	                   @Value("${worker.claim-size:8}") int claimSize,
+	                   @Value("${worker.limits.compile:1}") int compileLimit,
+	                   @Value("${worker.limits.publish:1}") int publishLimit,
+	                   @Value("${worker.limits.execute:8}") int executeLimit) {
 		this.jobs = jobs;
 		this.codeRepo = codeRepo;
 		this.publish = publish;
+		this.javaAdapter = javaAdapter;
+		this.jsAdapter = jsAdapter;
+		this.artifacts = artifacts;
+		this.exec = exec;
+		this.signal = signal;
+		this.idleDelayMillis = idleDelayMillis;
+		this.compileBatchSize = Math.max(1, compileBatchSize);
+		this.claimSize = Math.max(1, claimSize);
+		this.slots = new Semaphore(Math.max(1, concurrency));
+		typeSlots.put("compile", new Semaphore(Math.max(1, compileLimit)));
+		typeSlots.put("publish", new Semaphore(Math.max(1, publishLimit)));
+		typeSlots.put("execute", new Semaphore(Math.max(1, executeLimit)));
 	}
 
-	@Scheduled(fixedDelay = 2000)
+	/**
+	 * Polls on a dedicated thread: drains the queue, then sleeps until {@link NotifyListener}
+	 * signals new work or the idle delay passes, whichever comes first.
+	 */
+	@PostConstruct
+	public void start() {
+		poller = Thread.ofPlatform().name("queue-worker").daemon().start(() -> {
+			while (!Thread.currentThread().isInterrupted()) {
+				tick();
+				try {
+					signal.await(idleDelayMillis);
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+		});
+	}
+
+	/** Claims and dispatches jobs for as long as the queue yields any. */
 	public void tick() {
 		try {
-			Optional<JobItem> next = jobs.lockNext();
-			if (next.isEmpty()) return;
-			JobItem j = next.get();
-			log.info("Processing job {} type={} target={}", j.id, j.jobType, j.targetName);
+			while (poll() != 0) {
+				// keep draining
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (Exception ex) {
+			log.warn("Queue tick error", ex);
+		}
+	}
+
+	/**
+	 * Waits for a free slot, claims up to as many jobs as there are free slots in one round trip,
+	 * and hands them to virtual threads. The free permits of every job type are taken first and
+	 * each type is claimed only up to them, so a dispatched job already holds both of its permits
+	 * and never waits on its type while keeping a global slot from other types. When nothing is
+	 * claimed but some types are at their limit, it waits for one of them to free up (or for new
+	 * work) instead of claiming again. Returns the number of jobs claimed, or -1 when busy job
+	 * types may still have queued work.
+	 */
+	int poll() throws InterruptedException {
+		slots.acquire();
+		int free = 1 + slots.drainPermits();
+		int n = Math.min(free, claimSize);
+		Map<String, Integer> held = new HashMap<>();
+		typeSlots.forEach((type, slot) -> held.put(type, slot.drainPermits()));
+		Map<String, Integer> limits = new HashMap<>();
+		Set<String> busy = new HashSet<>();
+		held.forEach((type, permits) -> {
+			if (permits > 0) limits.put(type, Math.min(permits, n));
+			else busy.add(type);
+		});
+		int dispatched = 0;
+		List<JobItem> claimed;
+		try {
+			flushCompletions();
+			claimed = jobs.lockBatch(n, limits);
+			List<JobItem> compiles = claimed.stream().filter(j -> "compile".equals(j.jobType)).toList();
+			if (!compiles.isEmpty()) {
+				// Drain the other queued compile jobs too so they share one compile pass.
+				List<JobItem> batch = new ArrayList<>(compiles);
+				batch.addAll(jobs.lockBatch(compileBatchSize - batch.size(), Set.of("compile")));
+				dispatch("compile", () -> compileBatch(batch));
+				held.merge("compile", -1, Integer::sum);
+				dispatched++;
+			}
+			for (JobItem j : claimed) {
+				if (compiles.contains(j)) continue;
+				dispatch(j.jobType, () -> process(j));
+				held.merge(j.jobType, -1, Integer::sum);
+				dispatched++;
+			}
+		} finally {
+			held.forEach((type, permits) -> {
+				if (permits > 0) typeSlots.get(type).release(permits);
+			});
+			slots.release(free - dispatched);
+		}
+		if (claimed.isEmpty() && !busy.isEmpty()) {
+			// Busy types may still have queued work; look again once one of them frees up.
+			awaitFreed(busy);
+			return -1;
+		}
+		return claimed.size();
+	}
+
+	/** Waits for a permit of one of the {@code busy} types to be released, or for new work to be signalled. */
+	private void awaitFreed(Set<String> busy) throws InterruptedException {
+		deferred.addAll(busy);
+		// A permit released before the types were deferred rang no signal, so check once more.
+		for (String type : busy) {
+			if (typeSlots.get(type).availablePermits() > 0) return;
+		}
+		signal.await(idleDelayMillis);
+	}
+
+	/** Runs a task that already holds one of the global slots and one of its job type's; both are released when it ends. */
+	private void dispatch(String jobType, Runnable task) {
+		Semaphore typeSlot = typeSlots.get(jobType);
+		executor.execute(() -> {
+			try {
+				task.run();
+			} catch (Exception ex) {
+				log.warn("Queue task error", ex);
+			} finally {
+				typeSlot.release();
+				slots.release();
+				if (deferred.remove(jobType)) signal.signal();
+			}
+		});
+	}
+
+	private void complete(UUID id, String error) {
+		completions.add(new Completion(id, error));
+		flushCompletions();
+	}
+
+	/**
+	 * Writes finished jobs back in one statement per outcome. Whoever holds the lock also writes
+	 * the completions that queued up while it was busy, so concurrent jobs share round trips.
+	 */
+	private void flushCompletions() {
+		while (!completions.isEmpty() && flushLock.tryLock()) {
 			try {
-				switch (j.jobType) {
-					case "compile" -> compile(j);
-					case "publish" -> publish(j);
-					case "execute" -> execute(j);
-					default -> log.warn("Unknown job type {}", j.jobType);
+				List<UUID> done = new ArrayList<>();
+				List<UUID> failed = new ArrayList<>();
+				List<String> errors = new ArrayList<>();
+				for (Completion c; (c = completions.poll()) != null; ) {
+					if (c.error == null) {
+						done.add(c.id);
+					} else {
+						failed.add(c.id);
+						errors.add(c.error);
+					}
 				}
-				jobs.markDone(j.id);
+				jobs.markDone(done);
+				jobs.markError(failed, errors);
 			} catch (Exception ex) {
-				log.error("Job {} failed", j.id, ex);
-				jobs.markError(j.id, ex.getMessage());
+				log.warn("Failed to record job completions", ex);
+			} finally {
+				flushLock.unlock();
+			}
+		}
+	}
+
+	private record Completion(UUID id, String error) {}
+
+	@PreDestroy
+	public void shutdown() throws InterruptedException {
+		Thread t = poller;
+		if (t != null) {
+			t.interrupt();
+			t.join(5_000);
+		}
+		executor.shutdown();
+		if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+			log.warn("Queue tasks still running at shutdown");
+		}
+		flushCompletions();
+	}
+
+	private void process(JobItem j) {
+		log.info("Processing job {} type={} target={}", j.id, j.jobType, j.targetName);
+		try {
+			switch (j.jobType) {
+				// poll() routes every compile job to compileBatch
+				case "compile" -> throw new IllegalStateException("Compile job " + j.id + " must run in a compile batch");
+				case "publish" -> publish(j);
+				case "execute" -> execute(j);
+				default -> log.warn("Unknown job type {}", j.jobType);
 			}
+			complete(j.id, null);
 		} catch (Exception ex) {
-			log.warn("Queue tick error", ex);
+			log.error("Job {} failed", j.id, ex);
+			complete(j.id, String.valueOf(ex.getMessage()));
 		}
 	}
 
-	private void compile(JobItem j) throws Exception {
-		codeRepo.findByName(j.targetName).ifPresent(code -> {
+	private void compileBatch(List<JobItem> batch) {
+		log.info("Processing {} compile job(s)", batch.size());
+		Map<UUID, String> errors = new HashMap<>();
+		Map<String, JavaExecutionAdapter.BatchItem> javaItems = new LinkedHashMap<>();
+		for (JobItem j : batch) {
 			try {
+				Optional<TransformedCode> found = codeRepo.findByName(j.targetName);
+				if (found.isEmpty()) {
+					errors.put(j.id, "Code not found: " + j.targetName);
+					continue;
+				}
+				TransformedCode code = found.get();
 				if ("java".equalsIgnoreCase(code.language)) {
-					new JavaExecutionAdapter().execute(code.name, code.source);
+					javaItems.computeIfAbsent(code.name, n -> new JavaExecutionAdapter.BatchItem(n, n, code.source));
+				} else if ("js".equalsIgnoreCase(code.language)) {
+					// Parse once and pre-create pooled contexts; invalidates the previous version's pool.
+					jsAdapter.warm(code.name, code.source);
 				}
-				// JS compile is eval-on-demand; skip here
-			} catch (Exception e) {
-				throw new RuntimeException(e);
+			} catch (Exception ex) {
+				errors.put(j.id, String.valueOf(ex.getMessage()));
 			}
-		});
+		}
+		// Warm the compiled-class cache (retiring any previous version of this code) and persist
+		// the bytecode so other dynos can skip javac for this source.
+		javaAdapter.loadAll(new ArrayList<>(javaItems.values()));
+		for (JavaExecutionAdapter.BatchItem item : javaItems.values()) {
+			if (item.unit == null) continue;
+			try {
+				artifacts.save(item.unit.key(), item.unit.className(), item.unit.classBytes());
+			} catch (Exception ex) {
+				item.error = ex.getMessage();
+			}
+		}
+		for (JobItem j : batch) {
+			JavaExecutionAdapter.BatchItem item = javaItems.get(j.targetName);
+			String error = errors.getOrDefault(j.id, item == null ? null : item.error);
+			if (error != null) {
+				log.error("Compile job {} for {} failed: {}", j.id, j.targetName, error);
+			}
+			completions.add(new Completion(j.id, error));
+		}
+		flushCompletions();
 	}
 
 	private void publish(JobItem j) {
 		publish.queueRepublish();
 	}
 
-	private void execute(JobItem j) throws Exception {
-		// In this demo, executions are handled via REST endpoints; queue executions optional
-		compile(j);
+	private void execute(JobItem j) {
+		// payload is {"auditId": ..., "payload": {...}} as queued by ExecutionService.submitByName.
+		Map<String, Object> job = JsonUtils.toMap(j.payloadJson);
+		@SuppressWarnings("unchecked")
+		Map<String, Object> payload = job.get("payload") instanceof Map<?, ?> m ? (Map<String, Object>) m : Map.of();
+		Object auditId = job.get("auditId");
+		if (auditId == null) {
+			// Enqueued without an audit: record one like a synchronous call would.
+			exec.executeByName(j.targetName, payload);
+		} else {
+			exec.runQueued(UUID.fromString(auditId.toString()), j.targetName, payload);
+		}
 	}
 }
-
-
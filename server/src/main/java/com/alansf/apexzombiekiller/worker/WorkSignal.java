@@ -0,0 +1,29 @@
+package com.alansf.apexzombiekiller.worker;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * In-process doorbell between {@link NotifyListener} and {@link QueueWorker}. Signals that arrive
+ * while the worker is busy coalesce into a single pending wakeup.
+ */
+@Component
+public class WorkSignal {
+	private boolean pending;
+
+	public synchronized void signal() {
+		pending = true;
+		notifyAll();
+	}
+
+	/** Waits up to {@code millis} for a signal and clears it; returns whether one arrived. */
+	public synchronized boolean await(long millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		while (!pending) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) return false;
+			wait(left);
+		}
+		pending = false;
+		return true;
+	}
+}
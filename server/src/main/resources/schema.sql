@@ -24,6 +24,10 @@ CREATE INDEX IF NOT EXISTS idx_transformed_code_name ON transformed_code (name);
 CREATE INDEX IF NOT EXISTS idx_exec_audit_code_time ON execution_audit (code_name, started_at);
 
 
+-- Execution result returned by the user code entrypoint
+ALTER TABLE IF EXISTS execution_audit
+  ADD COLUMN IF NOT EXISTS output JSONB;
+
 -- New demo runtime tables for bindings, queue, and optional compiled cache
 -- Transformed code approval metadata
 ALTER TABLE IF EXISTS transformed_code
@@ -64,5 +68,30 @@ CREATE TABLE IF NOT EXISTS compiled_artifact (
   bytes BYTEA,
   updated_at TIMESTAMPTZ DEFAULT NOW()
 );
+-- name holds the source hash; bytes packs every class file produced for it
+ALTER TABLE IF EXISTS compiled_artifact
+  ADD COLUMN IF NOT EXISTS class_name VARCHAR(200);
+
+-- Per-execution resource usage, measured on the thread that ran the user code
+ALTER TABLE IF EXISTS execution_audit
+  ADD COLUMN IF NOT EXISTS cpu_time_us BIGINT,
+  ADD COLUMN IF NOT EXISTS wall_time_us BIGINT,
+  ADD COLUMN IF NOT EXISTS allocated_bytes BIGINT,
+  ADD COLUMN IF NOT EXISTS cache_hit BOOLEAN,
+  ADD COLUMN IF NOT EXISTS queue_wait_ms BIGINT;
 
 
+-- Inference results keyed by a hash of target, normalized Apex, options, model id and prompt version; shared by every dyno
+CREATE TABLE IF NOT EXISTS transform_cache (
+  cache_key VARCHAR(64) PRIMARY KEY,
+  target VARCHAR(16) NOT NULL,
+  model VARCHAR(200),
+  java_code TEXT,
+  js_code TEXT,
+  test_code TEXT,
+  notes TEXT,
+  created_at TIMESTAMPTZ DEFAULT NOW()
+);
+-- Rows past transform.cache.ttl-days are skipped on lookup and purged by age
+CREATE INDEX IF NOT EXISTS idx_transform_cache_created ON transform_cache (created_at);
+
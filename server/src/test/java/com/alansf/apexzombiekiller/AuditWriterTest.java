@@ -0,0 +1,103 @@
+package com.alansf.apexzombiekiller;
+
+import com.alansf.apexzombiekiller.model.ExecutionAudit;
+import com.alansf.apexzombiekiller.repo.CodeRepository;
+import com.alansf.apexzombiekiller.service.AuditWriter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuditWriterTest {
+
+	/** Records upsert batches instead of writing to execution_audit. */
+	static class RecordingRepository extends CodeRepository {
+		final List<List<ExecutionAudit>> batches = Collections.synchronizedList(new ArrayList<>());
+		RecordingRepository() { super(null); }
+		@Override public void upsertAudits(List<ExecutionAudit> audits) { batches.add(List.copyOf(audits)); }
+	}
+
+	@Test
+	void writeBehindBatchesLatestSnapshotsAndFlushesOnClose() throws Exception {
+		RecordingRepository repo = new RecordingRepository();
+		AuditWriter writer = new AuditWriter(repo, true, 1024, 50, 60_000, 100);
+
+		List<ExecutionAudit> returned = new ArrayList<>();
+		for (int i = 0; i < 120; i++) {
+			ExecutionAudit a = writer.start(UUID.randomUUID(), "Job", "{}");
+			assertEquals("RUNNING", a.status);
+			returned.add(i % 10 == 0 ? writer.fail(a, "boom", null) : writer.succeed(a, "{\"ok\":true}", null));
+		}
+		writer.close();
+
+		List<ExecutionAudit> written = repo.batches.stream().flatMap(List::stream).toList();
+		assertTrue(repo.batches.stream().allMatch(b -> b.size() <= 50), "batches respect flush-size");
+		for (ExecutionAudit r : returned) {
+			ExecutionAudit last = written.stream().filter(w -> w.id.equals(r.id)).reduce((x, y) -> y).orElseThrow();
+			assertEquals(r.status, last.status, "the final state of every audit is written by close()");
+			assertNotNull(last.completedAt);
+		}
+	}
+
+	@Test
+	void closeWakesAWriterWaitingOutTheFlushInterval() throws Exception {
+		RecordingRepository repo = new RecordingRepository();
+		AuditWriter writer = new AuditWriter(repo, true, 1024, 50, 60_000, 100);
+		ExecutionAudit a = writer.succeed(writer.start(UUID.randomUUID(), "Job", "{}"), "{}", null);
+		Thread.sleep(100); // the writer now holds the snapshot and waits for more
+
+		long start = System.nanoTime();
+		writer.close();
+
+		assertTrue(System.nanoTime() - start < 2_000_000_000L, "close() should not wait for the writer to time out");
+		assertEquals(List.of(a.id), repo.batches.stream().flatMap(List::stream).map(w -> w.id).distinct().toList());
+	}
+
+	@Test
+	void failedBatchIsRetriedThenWrittenRowByRow() throws Exception {
+		AtomicInteger outage = new AtomicInteger(2);
+		RecordingRepository repo = new RecordingRepository() {
+			@Override public void upsertAudits(List<ExecutionAudit> audits) {
+				if (outage.getAndDecrement() > 0) throw new QueryTimeoutException("connection lost");
+				if (audits.stream().anyMatch(a -> a.codeName.equals("Bad"))) throw new DataIntegrityViolationException("bad row");
+				super.upsertAudits(audits);
+			}
+		};
+		SimpleMeterRegistry meters = new SimpleMeterRegistry();
+		AuditWriter writer = new AuditWriter(repo, meters, true, 1024, 50, 10, 100);
+		List<ExecutionAudit> finished = new ArrayList<>();
+		for (int i = 0; i < 5; i++) finished.add(AuditWriter.succeeded(AuditWriter.running(UUID.randomUUID(), i == 2 ? "Bad" : "Job", "{}"), "{}", null));
+		writer.writeAll(finished);
+		long deadline = System.currentTimeMillis() + 5_000;
+		while (meters.counter("azk.audit.dropped").count() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+		writer.close();
+
+		List<String> written = repo.batches.stream().flatMap(List::stream).map(w -> w.codeName).toList();
+		assertEquals(List.of("Job", "Job", "Job", "Job"), written, "every audit but the bad one survives the outage");
+		assertEquals(1.0, meters.counter("azk.audit.dropped").count());
+	}
+
+	@Test
+	void fullBufferFallsBackToInlineWrites() throws Exception {
+		RecordingRepository repo = new RecordingRepository() {
+			@Override public void upsertAudits(List<ExecutionAudit> audits) {
+				if (Thread.currentThread().getName().equals("audit-writer")) {
+					try { Thread.sleep(200); } catch (InterruptedException ignored) {}
+				}
+				super.upsertAudits(audits);
+			}
+		};
+		AuditWriter writer = new AuditWriter(repo, true, 1, 1, 1, 0);
+		for (int i = 0; i < 5; i++) writer.start(UUID.randomUUID(), "Job", "{}");
+		assertTrue(repo.batches.size() >= 3, "callers write inline instead of waiting on a stalled writer");
+		writer.close();
+		assertEquals(5, repo.batches.stream().mapToInt(List::size).sum());
+	}
+}
@@ -0,0 +1,43 @@
+package com.alansf.apexzombiekiller;
+
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link DriverManagerDataSource} that counts the statements created on its connections. Each
+ * one is executed once by JdbcTemplate, so the count is the number of round trips to the database.
+ */
+class CountingDataSource extends DriverManagerDataSource {
+	private final AtomicInteger statements = new AtomicInteger();
+
+	CountingDataSource(String url, String username, String password) {
+		super(url, username, password);
+	}
+
+	/** Statements created since the last call; resets the count. */
+	int takeCount() {
+		return statements.getAndSet(0);
+	}
+
+	@Override
+	protected Connection getConnectionFromDriver(Properties props) throws SQLException {
+		Connection target = super.getConnectionFromDriver(props);
+		return (Connection) Proxy.newProxyInstance(CountingDataSource.class.getClassLoader(), new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+			String name = method.getName();
+			if (name.equals("createStatement") || name.equals("prepareStatement") || name.equals("prepareCall")) {
+				statements.incrementAndGet();
+			}
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		});
+	}
+}
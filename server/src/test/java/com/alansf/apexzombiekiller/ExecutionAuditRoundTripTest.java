@@ -0,0 +1,61 @@
+package com.alansf.apexzombiekiller;
+
+import com.alansf.apexzombiekiller.model.ExecutionAudit;
+import com.alansf.apexzombiekiller.model.TransformedCode;
+import com.alansf.apexzombiekiller.repo.CodeRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.UUID;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Statements issued by one /exec call's audit lifecycle: the old six (lookup, INSERT, re-SELECT,
+ * RUNNING update, SUCCEEDED update, final SELECT) versus lookup + INSERT ... RETURNING +
+ * UPDATE ... RETURNING. Skipped without Docker.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class ExecutionAuditRoundTripTest {
+
+	@Container
+	static PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>("postgres:15-alpine");
+
+	@Test
+	void auditLifecycleInThreeStatementsInsteadOfSix() {
+		CountingDataSource ds = new CountingDataSource(postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword());
+		new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(ds);
+		JdbcTemplate jdbc = new JdbcTemplate(ds);
+		CodeRepository repo = new CodeRepository(jdbc);
+		repo.insertCode("RoundTrips", "java", "public class UserCode { public void run() { } }", "{}", "test");
+
+		ds.takeCount();
+		TransformedCode code = repo.findByName("RoundTrips").orElseThrow();
+		// The pre-RETURNING statement sequence, kept verbatim for comparison.
+		UUID id = UUID.randomUUID();
+		jdbc.update("INSERT INTO execution_audit(id, code_id, code_name, status, input) VALUES (?,?,?,?,?::jsonb)",
+				id, code.id, code.name, "ACCEPTED", "{}");
+		repo.findAudit(id).orElseThrow();
+		jdbc.update("UPDATE execution_audit SET status='RUNNING', started_at=? WHERE id=?", Timestamp.from(Instant.now()), id);
+		jdbc.update("UPDATE execution_audit SET status='SUCCEEDED', completed_at=?, output=?::jsonb WHERE id=?", Timestamp.from(Instant.now()), null, id);
+		assertEquals("SUCCEEDED", repo.findAudit(id).orElseThrow().status);
+		assertEquals(6, ds.takeCount());
+
+		code = repo.findByName("RoundTrips").orElseThrow();
+		ExecutionAudit audit = repo.startAudit(code.id, code.name, "{}");
+		ExecutionAudit done = repo.markAuditSuccess(audit.id, null, null).orElseThrow();
+		assertEquals(3, ds.takeCount());
+
+		assertEquals("RUNNING", audit.status);
+		assertNotNull(audit.startedAt);
+		assertEquals("SUCCEEDED", done.status);
+		assertNotNull(done.completedAt);
+		assertEquals(done.status, repo.findAudit(audit.id).orElseThrow().status, "the returned row is what was stored");
+	}
+}
@@ -0,0 +1,106 @@
+package com.alansf.apexzombiekiller;
+
+import com.alansf.apexzombiekiller.model.ExecutionUsage;
+import com.alansf.apexzombiekiller.service.ExecutionGuard;
+import com.alansf.apexzombiekiller.service.ExecutionTimeoutException;
+import com.alansf.apexzombiekiller.service.JavaExecutionAdapter;
+import com.alansf.apexzombiekiller.service.JsExecutionAdapter;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExecutionGuardTest {
+
+	@Test
+	void interruptsSleepingCodePastItsTimeout() {
+		ExecutionGuard guard = new ExecutionGuard(200, 0, 4);
+		AtomicBoolean interrupted = new AtomicBoolean();
+		long start = System.nanoTime();
+		ExecutionTimeoutException e = assertThrows(ExecutionTimeoutException.class, () -> guard.run(guard.budgetFor(null), () -> {
+			try {
+				Thread.sleep(10_000);
+			} catch (InterruptedException ie) {
+				interrupted.set(true);
+			}
+			return null;
+		}));
+		assertTrue(e.getMessage().contains("200 ms"), e.getMessage());
+		assertTrue(System.nanoTime() - start < 5_000_000_000L);
+		long deadline = System.currentTimeMillis() + 2_000;
+		while (!interrupted.get() && System.currentTimeMillis() < deadline) Thread.onSpinWait();
+		assertTrue(interrupted.get(), "cancelled execution should see an interrupt");
+		assertEquals(1L, guard.stats().get("timeouts"));
+	}
+
+	@Test
+	void abandonsRunawayJavaLoopUnderCpuBudget() throws Exception {
+		ExecutionGuard guard = new ExecutionGuard();
+		String spin = "public class Spin { public static volatile boolean stop; public void run() { while (!stop) { } } }";
+		JavaExecutionAdapter adapter = new JavaExecutionAdapter();
+		Class<?> type = adapter.load("Spin", "Spin", spin).type();
+		try {
+			ExecutionTimeoutException e = assertThrows(ExecutionTimeoutException.class,
+					() -> guard.run(guard.budgetFor("{\"timeoutMs\": 5000, \"cpuTimeMs\": 100}"),
+							() -> adapter.execute("Spin", "Spin", spin, Map.of())));
+			assertTrue(e.getMessage().contains("CPU"), e.getMessage());
+			assertEquals(1L, guard.stats().get("cpuTimeouts"));
+		} finally {
+			// The loop ignores interrupts, so the abandoned thread only ends when told to.
+			type.getField("stop").setBoolean(null, true);
+			guard.close();
+		}
+	}
+
+	@Test
+	void cancelsJsInfiniteLoopAndKeepsThePoolUsable() throws Exception {
+		ExecutionGuard guard = new ExecutionGuard(1_000, 0, 4);
+		JsExecutionAdapter js = new JsExecutionAdapter();
+		try {
+			String loop = "function run(payload) { if (payload.spin) { while (true) {} } return payload.n + 1; }";
+			js.warm("Loop", loop); // engine start-up is not what this test times
+			assertThrows(ExecutionTimeoutException.class,
+					() -> guard.run(guard.budgetFor(null), () -> js.execute("Loop", loop, Map.of("spin", true))));
+			// The cancelled call releases its lease from the guard's thread, shortly after the timeout.
+			long deadline = System.currentTimeMillis() + 2_000;
+			while (!js.stats().get("discardedContexts").equals(1) && System.currentTimeMillis() < deadline) Thread.sleep(10);
+			assertEquals(1, js.stats().get("discardedContexts"), "the timed-out context must be counted as discarded");
+
+			assertEquals(2, guard.run(guard.budgetFor(null), () -> js.execute("Loop", loop, Map.of("spin", false, "n", 1))));
+			assertEquals(1, js.stats().get("discardedContexts"));
+		} finally {
+			js.close();
+		}
+	}
+
+	@Test
+	void metersCpuAllocationAndCompileVersusCacheHit() throws Exception {
+		ExecutionGuard guard = new ExecutionGuard();
+		JavaExecutionAdapter adapter = new JavaExecutionAdapter();
+		String code = "public class Alloc { public Object run() { long[] a = new long[1 << 20]; long s = 0; " +
+				"for (int i = 0; i < a.length; i++) s += a[i] + i; return s; } }";
+
+		ExecutionUsage first = new ExecutionUsage();
+		guard.run(guard.budgetFor(null), () -> adapter.execute("Alloc", "Alloc", code, Map.of()), first);
+		assertEquals(Boolean.FALSE, first.cacheHit);
+
+		ExecutionUsage second = new ExecutionUsage();
+		guard.run(guard.budgetFor(null), () -> adapter.execute("Alloc", "Alloc", code, Map.of()), second);
+		assertEquals(Boolean.TRUE, second.cacheHit);
+		assertTrue(second.allocatedBytes >= 8L << 20, "allocated " + second.allocatedBytes);
+		assertTrue(second.cpuTimeMicros > 0);
+		assertTrue(second.wallTimeMicros > 0);
+		assertTrue(first.wallTimeMicros > second.wallTimeMicros, "the compiling run should be the slower one");
+	}
+
+	@Test
+	void passesThroughResultsAndErrors() throws Exception {
+		ExecutionGuard guard = new ExecutionGuard();
+		assertEquals(42, guard.run(guard.budgetFor("{}"), () -> 42));
+		IllegalStateException e = assertThrows(IllegalStateException.class,
+				() -> guard.run(guard.budgetFor("{}"), () -> { throw new IllegalStateException("boom"); }));
+		assertEquals("boom", e.getMessage());
+	}
+}
@@ -0,0 +1,97 @@
+package com.alansf.apexzombiekiller;
+
+import com.alansf.apexzombiekiller.model.ExecuteBatchRequest;
+import com.alansf.apexzombiekiller.model.ExecuteBatchResponse;
+import com.alansf.apexzombiekiller.model.ExecutionAudit;
+import com.alansf.apexzombiekiller.model.ExecutionUsage;
+import com.alansf.apexzombiekiller.model.TransformedCode;
+import com.alansf.apexzombiekiller.repo.CodeRepository;
+import com.alansf.apexzombiekiller.service.AuditWriter;
+import com.alansf.apexzombiekiller.service.CodeRegistry;
+import com.alansf.apexzombiekiller.service.ExecutionGuard;
+import com.alansf.apexzombiekiller.service.ExecutionService;
+import com.alansf.apexzombiekiller.service.JavaExecutionAdapter;
+import com.alansf.apexzombiekiller.service.JsExecutionAdapter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExecutionServiceTest {
+
+	@Test
+	void batchItemWhoseLookupFailsGetsAnErrorResult() throws Exception {
+		AuditWriterTest.RecordingRepository repo = new AuditWriterTest.RecordingRepository() {
+			@Override public Optional<TransformedCode> findByName(String name) {
+				if (name.equals("Broken")) throw new IllegalStateException("connection reset");
+				if (!name.equals("Add")) return Optional.empty();
+				TransformedCode code = new TransformedCode();
+				code.id = UUID.randomUUID();
+				code.name = name;
+				code.language = "js";
+				code.source = "function run(payload) { return payload.n + 1; }";
+				return Optional.of(code);
+			}
+		};
+		JsExecutionAdapter js = new JsExecutionAdapter();
+		ExecutionGuard guard = new ExecutionGuard();
+		try {
+			ExecutionService service = new ExecutionService(repo, new CodeRegistry(repo, 10, 1_000_000), new AuditWriter(repo, false, 1, 1, 1, 0),
+					null, new JavaExecutionAdapter(), js, guard, new SimpleMeterRegistry(), 2, 10);
+
+			List<ExecuteBatchResponse.Result> results = service.executeBatch(List.of(item("Add", 1), item("Broken", 2), item("Missing", 3))).results;
+
+			assertEquals(List.of(200, 500, 404), results.stream().map(r -> r.status).toList());
+			assertEquals("SUCCEEDED", results.get(0).audit.status);
+			assertEquals("connection reset", results.get(1).error);
+			assertEquals(1, repo.batches.size(), "the audits of the items that ran are still written");
+		} finally {
+			guard.close();
+			js.close();
+		}
+	}
+
+	@Test
+	void queuedRunOfAnUnknownNameIsNotTaggedWithThatName() throws Exception {
+		AuditWriterTest.RecordingRepository repo = new AuditWriterTest.RecordingRepository() {
+			@Override public Optional<TransformedCode> findByName(String name) { return Optional.empty(); }
+			@Override public void markAuditRunning(UUID id) { }
+			@Override public Optional<ExecutionAudit> markAuditFailure(UUID id, String error, ExecutionUsage usage) {
+				ExecutionAudit a = new ExecutionAudit();
+				a.id = id;
+				a.status = "FAILED";
+				a.error = error;
+				return Optional.of(a);
+			}
+			@Override public void notifyAuditDone(UUID id) { }
+		};
+		SimpleMeterRegistry meters = new SimpleMeterRegistry();
+		JsExecutionAdapter js = new JsExecutionAdapter();
+		ExecutionGuard guard = new ExecutionGuard();
+		try {
+			ExecutionService service = new ExecutionService(repo, new CodeRegistry(repo, 10, 1_000_000), new AuditWriter(repo, false, 1, 1, 1, 0),
+					null, new JavaExecutionAdapter(), js, guard, meters, 2, 10);
+
+			for (int i = 0; i < 3; i++) service.runQueued(UUID.randomUUID(), "Made-Up-" + i, Map.of());
+
+			List<String> tags = meters.find("azk.execution").timers().stream().map(t -> t.getId().getTag("code")).toList();
+			assertEquals(List.of("unknown"), tags);
+			assertEquals(3, meters.get("azk.execution").timer().count());
+		} finally {
+			guard.close();
+			js.close();
+		}
+	}
+
+	private static ExecuteBatchRequest.Item item(String name, int n) {
+		ExecuteBatchRequest.Item item = new ExecuteBatchRequest.Item();
+		item.name = name;
+		item.payload = Map.of("n", n);
+		return item;
+	}
+}
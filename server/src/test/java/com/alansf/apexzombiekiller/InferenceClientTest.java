@@ -0,0 +1,197 @@
+package com.alansf.apexzombiekiller;
+
+import com.alansf.apexzombiekiller.service.InferenceClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InferenceClientTest {
+	private HttpServer server;
+	private ExecutorService executor;
+	private String base;
+	private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+	private final AtomicBoolean inferFails = new AtomicBoolean();
+	private final AtomicBoolean stallNextInfer = new AtomicBoolean();
+	private final AtomicBoolean chatStreams = new AtomicBoolean();
+	private final AtomicBoolean messagesHealthOnly = new AtomicBoolean();
+
+	@BeforeEach
+	void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		// Requests must be served concurrently, or a slow path would hold up the race.
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/v1/chat/completions", ex -> {
+			arrived(ex);
+			if (chatStreams.get()) streamDeltas(ex, "public", " class X {", "\n", "}");
+			else respond(ex, 404, "{}");
+		});
+		server.createContext("/v1/messages", ex -> {
+			arrived(ex);
+			if (messagesHealthOnly.get()) {
+				respond(ex, 200, "{\"status\":\"ok\"}");
+				return;
+			}
+			sleep(1_500);
+			respond(ex, 200, "{\"choices\":[{\"message\":{\"content\":\"from messages\"}}]}");
+		});
+		server.createContext("/v1/infer", ex -> {
+			arrived(ex);
+			if (stallNextInfer.compareAndSet(true, false)) sleep(5_000);
+			if (messagesHealthOnly.get()) sleep(300); // the health answer always lands first
+			if (inferFails.get()) respond(ex, 500, "{}");
+			else respond(ex, 200, "{\"output\":\"from infer\"}");
+		});
+		server.start();
+		base = "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	@AfterEach
+	void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	void probesCandidatesConcurrentlyAndMemoizesTheWinner() {
+		InferenceClient client = new InferenceClient(new SimpleMeterRegistry(), base, "m", null, false, 20);
+
+		// Tried in order, /v1/messages would answer before /v1/infer was ever called.
+		assertEquals(Optional.of("from infer"), client.apexToJava("global class X {}", false, false));
+		sleep(300); // let the losing probes' requests land before counting
+		int chat = count("/v1/chat/completions");
+		int messages = count("/v1/messages");
+		assertEquals(1, messages);
+		int infer = count("/v1/infer");
+
+		assertEquals(Optional.of("from infer"), client.apexToJava("global class X {}", false, false));
+		assertEquals(chat, count("/v1/chat/completions"), "memoized URL should be called alone");
+		assertEquals(messages, count("/v1/messages"));
+		assertEquals(infer + 1, count("/v1/infer"));
+	}
+
+	@Test
+	void reprobesWhenTheMemoizedUrlFails() {
+		InferenceClient client = new InferenceClient(new SimpleMeterRegistry(), base, "m", null, false, 20);
+		assertEquals(Optional.of("from infer"), client.apexToJs("global class X {}", false, false));
+
+		inferFails.set(true);
+		assertEquals(Optional.of("from messages"), client.apexToJs("global class X {}", false, false));
+		sleep(300);
+		int infer = count("/v1/infer");
+
+		assertEquals(Optional.of("from messages"), client.apexToJs("global class X {}", false, false));
+		assertEquals(infer, count("/v1/infer"), "the failed URL should no longer be tried first");
+	}
+
+	@Test
+	void aFastAnswerWithoutACompletionDoesNotWinTheRace() {
+		messagesHealthOnly.set(true);
+		InferenceClient client = new InferenceClient(new SimpleMeterRegistry(), base + "/v1/messages", "m", null, false, 20);
+
+		assertEquals(Optional.of("from infer"), client.apexToJava("global class X {}", false, false));
+		int messages = count("/v1/messages");
+		assertEquals(Optional.of("from infer"), client.apexToJava("global class X {}", false, false));
+		assertEquals(messages, count("/v1/messages"), "the health answer should not have been memoized");
+	}
+
+	@Test
+	void hedgesACallThatRunsPastP95() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		InferenceClient client = new InferenceClient(registry, base + "/v1/infer", "m", null, true, 5);
+		for (int i = 0; i < 6; i++) {
+			assertEquals(Optional.of("from infer"), client.apexToJava("global class X {}", false, false));
+		}
+		double hedgesBefore = registry.counter("azk.inference.hedges", "endpoint", "/v1/infer").count();
+
+		stallNextInfer.set(true);
+		long start = System.nanoTime();
+		assertEquals(Optional.of("from infer"), client.apexToJava("global class X {}", false, false));
+		long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+		assertTrue(elapsedMs < 4_000, "hedge should answer before the stalled call, took " + elapsedMs + " ms");
+		assertTrue(registry.counter("azk.inference.hedges", "endpoint", "/v1/infer").count() > hedgesBefore);
+	}
+
+	@Test
+	void relaysChatDeltasAsTheyArrive() {
+		chatStreams.set(true);
+		InferenceClient client = new InferenceClient(new SimpleMeterRegistry(), base, "m", null, false, 20);
+		long start = System.nanoTime();
+		List<Long> arrivals = new ArrayList<>();
+		List<String> deltas = client.streamTransform("java", "global class X {}", false, false)
+				.doOnNext(d -> arrivals.add((System.nanoTime() - start) / 1_000_000))
+				.collectList()
+				.block(Duration.ofSeconds(10));
+
+		assertEquals(List.of("public", " class X {", "\n", "}"), deltas, "whitespace-only deltas carry the code's newlines");
+		assertTrue(arrivals.get(arrivals.size() - 1) - arrivals.get(0) >= 300,
+				"first delta should be relayed before the stream finishes: " + arrivals);
+		assertEquals(0, count("/v1/messages"), "a working stream needs no other candidate");
+	}
+
+	private int count(String path) {
+		return hits.getOrDefault(path, new AtomicInteger()).get();
+	}
+
+	private void arrived(HttpExchange ex) {
+		hits.computeIfAbsent(ex.getHttpContext().getPath(), p -> new AtomicInteger()).incrementAndGet();
+	}
+
+	private void respond(HttpExchange ex, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type", "application/json");
+		try {
+			ex.sendResponseHeaders(status, bytes.length);
+			ex.getResponseBody().write(bytes);
+		} catch (IOException cancelled) {
+			// the client already hung up (a losing probe or hedge)
+		} finally {
+			ex.close();
+		}
+	}
+
+	/** Writes each delta as its own chat-completions SSE event, 200 ms apart. */
+	private static void streamDeltas(HttpExchange ex, String... deltas) throws IOException {
+		ex.getResponseHeaders().set("Content-Type", "text/event-stream");
+		try (var body = ex.getResponseBody()) {
+			ex.sendResponseHeaders(200, 0);
+			for (String delta : deltas) {
+				String json = "{\"choices\":[{\"delta\":{\"content\":\"" + delta.replace("\n", "\\n") + "\"}}]}";
+				body.write(("data: " + json + "\n\n").getBytes(StandardCharsets.UTF_8));
+				body.flush();
+				sleep(200);
+			}
+			body.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+		} catch (IOException cancelled) {
+			// client went away
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
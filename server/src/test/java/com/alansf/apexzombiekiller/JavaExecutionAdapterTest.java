@@ -0,0 +1,156 @@
+package com.alansf.apexzombiekiller;
+
+import com.alansf.apexzombiekiller.model.CompiledArtifact;
+import com.alansf.apexzombiekiller.repo.ArtifactRepository;
+import com.alansf.apexzombiekiller.service.CompiledUnit;
+import com.alansf.apexzombiekiller.service.JavaExecutionAdapter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+class JavaExecutionAdapterTest {
+
+	private static String version(String marker) {
+		return "package com.demo.jobs;\n" +
+			"public class UserCode { public void run() { System.setProperty(\"azk.test.version\", \"" + marker + "\"); } }";
+	}
+
+	@Test
+	void reusesCompiledVersionAndHotReloadsChangedSource() throws Exception {
+		JavaExecutionAdapter adapter = new JavaExecutionAdapter();
+
+		adapter.execute("Demo", "UserCode", version("v1"), Map.of());
+		adapter.execute("Demo", "UserCode", version("v1"), Map.of());
+		assertEquals("v1", System.getProperty("azk.test.version"));
+		assertEquals(1L, adapter.stats().get("misses"));
+		assertEquals(1L, adapter.stats().get("hits"));
+
+		adapter.execute("Demo", "UserCode", version("v2"), Map.of());
+		assertEquals("v2", System.getProperty("azk.test.version"), "re-approved source must not run stale bytecode");
+		assertEquals(2L, adapter.stats().get("misses"));
+		assertEquals(1L, adapter.stats().get("evictions"));
+		assertEquals(1, adapter.stats().get("entries"));
+	}
+
+	@Test
+	void handsPayloadToTypedEntrypointAndReturnsResult() throws Exception {
+		String code =
+			"import java.util.Map;\n" +
+			"public class Totals {\n" +
+			"  public Object run(Map<String, Object> payload) {\n" +
+			"    return Map.of(\"doubled\", ((Number) payload.get(\"amount\")).intValue() * 2);\n" +
+			"  }\n" +
+			"}";
+		Map<String, Object> payload = new HashMap<>(Map.of("amount", 21));
+		Object result = new JavaExecutionAdapter().execute("Totals", "Totals", code, payload);
+		assertEquals(Map.of("doubled", 42), result);
+	}
+
+	@Test
+	void batchCompileIsolatesFailingUnits() {
+		JavaExecutionAdapter adapter = new JavaExecutionAdapter();
+		JavaExecutionAdapter.BatchItem a = new JavaExecutionAdapter.BatchItem("A", "UserCode", version("a"));
+		JavaExecutionAdapter.BatchItem broken = new JavaExecutionAdapter.BatchItem("B", "Broken", "public class Broken { void x() { nope(); } }");
+		JavaExecutionAdapter.BatchItem c = new JavaExecutionAdapter.BatchItem("C", "UserCode", version("c"));
+		adapter.loadAll(List.of(a, broken, c));
+
+		assertNotNull(a.unit, a.error);
+		assertNotNull(c.unit, c.error);
+		assertNotEquals(a.unit.key(), c.unit.key());
+		assertNull(broken.unit);
+		assertTrue(broken.error.contains("nope"), broken.error);
+		assertEquals(2L, adapter.stats().get("compiles"));
+	}
+
+	@Test
+	void concurrentMissesShareOneCompileAndFailuresAreRetried() throws Exception {
+		AtomicInteger lookups = new AtomicInteger();
+		ArtifactRepository slowStore = new ArtifactRepository(null) {
+			@Override public Optional<CompiledArtifact> find(String sourceHash) {
+				lookups.incrementAndGet();
+				try { Thread.sleep(200); } catch (InterruptedException ignored) {}
+				return Optional.empty();
+			}
+		};
+		JavaExecutionAdapter adapter = new JavaExecutionAdapter(slowStore, "janino", new SimpleMeterRegistry());
+		String code = "public class Shared { public Object run() { return 7; } }";
+
+		try (ExecutorService pool = Executors.newFixedThreadPool(4)) {
+			List<Future<Object>> runs = new ArrayList<>();
+			for (int i = 0; i < 4; i++) runs.add(pool.submit(() -> adapter.execute("Shared", "Shared", code, Map.of())));
+			for (Future<Object> run : runs) assertEquals(7, run.get());
+		}
+		assertEquals(1, lookups.get());
+		assertEquals(1L, adapter.stats().get("compiles"));
+
+		String broken = "public class Broken { void x() { nope(); } }";
+		assertThrows(RuntimeException.class, () -> adapter.load("Broken", "Broken", broken));
+		assertThrows(RuntimeException.class, () -> adapter.load("Broken", "Broken", broken));
+		assertEquals(3, lookups.get(), "a failed compile is not remembered");
+		assertEquals(1, adapter.stats().get("entries"));
+	}
+
+	@Test
+	void batchedJavacUnitsKeepTheirOwnAuxiliaryClasses() throws Exception {
+		JavaExecutionAdapter adapter = new JavaExecutionAdapter();
+		// Records send both to javac; each declares its own Helper
+		String first = "public class First { record R(int v) {} public Object run() { return new Helper().v(); } }\n" +
+				"class Helper { int v() { return 1; } }";
+		String second = "public class Second { record R(int v) {} public Object run() { return new Helper().v(); } }\n" +
+				"class Helper { int v() { return 2; } }";
+		JavaExecutionAdapter.BatchItem a = new JavaExecutionAdapter.BatchItem("First", "First", first);
+		JavaExecutionAdapter.BatchItem b = new JavaExecutionAdapter.BatchItem("Second", "Second", second);
+		adapter.loadAll(List.of(a, b));
+
+		assertNull(a.error, a.error);
+		assertNull(b.error, b.error);
+		assertTrue(a.unit.classBytes().containsKey("Helper"), "the stored artifact carries its auxiliary class");
+		assertEquals(1, adapter.execute("First", "First", first, Map.of()));
+		assertEquals(2, adapter.execute("Second", "Second", second, Map.of()));
+		assertEquals(2L, adapter.stats().get("compiles"));
+	}
+
+	@Test
+	void compilesPlainClassesWithJaninoAndFallsBackToJavac() throws Exception {
+		JavaExecutionAdapter adapter = new JavaExecutionAdapter();
+		assertEquals("janino", adapter.load("Plain", "UserCode", version("plain")).backend());
+
+		String record = "public class Modern { record Pair(int a, int b) {} public Object run() { return new Pair(1, 2).b(); } }";
+		assertEquals("javac", adapter.load("Modern", "Modern", record).backend());
+		assertEquals(2, adapter.execute("Modern", "Modern", record, Map.of()));
+		assertEquals(1L, adapter.stats().get("fallbacks"));
+	}
+
+	@Test
+	void storedArtifactsAreOnlySharedBetweenTheSameBackends() {
+		Map<String, CompiledArtifact> stored = new HashMap<>();
+		ArtifactRepository store = new ArtifactRepository(null) {
+			@Override public Optional<CompiledArtifact> find(String sourceHash) { return Optional.ofNullable(stored.get(sourceHash)); }
+			@Override public void save(String sourceHash, String className, Map<String, byte[]> classes) {
+				CompiledArtifact a = new CompiledArtifact();
+				a.sourceHash = sourceHash;
+				a.className = className;
+				a.classes = classes;
+				stored.put(sourceHash, a);
+			}
+		};
+		CompiledUnit janino = new JavaExecutionAdapter(store, "janino", new SimpleMeterRegistry())
+				.load("Plain", "UserCode", version("shared"));
+		store.save(janino.key(), janino.className(), janino.classBytes());
+
+		assertEquals("artifact", new JavaExecutionAdapter(store, "janino", new SimpleMeterRegistry())
+				.load("Plain", "UserCode", version("shared")).backend());
+		assertEquals("javac", new JavaExecutionAdapter(store, "javac", new SimpleMeterRegistry())
+				.load("Plain", "UserCode", version("shared")).backend(), "Janino bytecode is not reused by a javac dyno");
+	}
+}
@@ -0,0 +1,124 @@
+package com.alansf.apexzombiekiller;
+
+import com.alansf.apexzombiekiller.model.JobItem;
+import com.alansf.apexzombiekiller.repo.JobQueueRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Claims and completions against a real job_queue: draining a backlog takes two statements per
+ * batch rather than two per job, and concurrent claims never hand out the same job twice.
+ * Skipped without Docker.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class JobQueueRepositoryTest {
+	private static final int JOBS = 200;
+	private static final int BATCH = 50;
+
+	@Container
+	static PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>("postgres:15-alpine");
+
+	static CountingDataSource ds;
+	static JdbcTemplate jdbc;
+	static JobQueueRepository jobs;
+
+	@BeforeAll
+	static void schema() {
+		ds = new CountingDataSource(postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword());
+		new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(ds);
+		jdbc = new JdbcTemplate(ds);
+		jobs = new JobQueueRepository(jdbc, new SimpleMeterRegistry());
+	}
+
+	@BeforeEach
+	void backlog() {
+		jdbc.update("TRUNCATE job_queue");
+		jdbc.update("INSERT INTO job_queue(id, job_type, target_name, payload) " +
+				"SELECT gen_random_uuid(), CASE WHEN g % 2 = 0 THEN 'execute' ELSE 'publish' END, 'bench', '{}'::jsonb " +
+				"FROM generate_series(1, ?) g", JOBS);
+		ds.takeCount();
+	}
+
+	@Test
+	void batchedDrainTakesTwoStatementsPerBatch() {
+		int single = 0;
+		for (var j = jobs.lockNext(); j.isPresent(); j = jobs.lockNext()) {
+			jobs.markDone(j.get().id);
+			single++;
+		}
+		assertEquals(JOBS, single);
+		assertEquals(2 * JOBS + 1, ds.takeCount(), "a claim and a completion per job, then the empty claim");
+
+		backlog();
+		int batched = 0;
+		for (List<JobItem> claimed = jobs.lockBatch(BATCH, Set.of()); !claimed.isEmpty(); claimed = jobs.lockBatch(BATCH, Set.of())) {
+			jobs.markDone(claimed.stream().map(j -> j.id).toList());
+			batched += claimed.size();
+		}
+		assertEquals(JOBS, batched);
+		assertEquals(2 * (JOBS / BATCH) + 1, ds.takeCount(), "a claim and a completion per batch, then the empty claim");
+		assertEquals(JOBS, jdbc.queryForObject("SELECT COUNT(*) FROM job_queue WHERE status='done'", Integer.class));
+	}
+
+	@Test
+	void concurrentClaimsAreDisjoint() throws Exception {
+		List<UUID> claimed = Collections.synchronizedList(new ArrayList<>());
+		try (ExecutorService workers = Executors.newFixedThreadPool(4)) {
+			List<Future<?>> runs = new ArrayList<>();
+			for (int w = 0; w < 4; w++) {
+				runs.add(workers.submit(() -> {
+					for (List<JobItem> batch = jobs.lockBatch(7, Set.of()); !batch.isEmpty(); batch = jobs.lockBatch(7, Set.of())) {
+						batch.forEach(j -> claimed.add(j.id));
+					}
+				}));
+			}
+			for (Future<?> run : runs) run.get();
+		}
+		assertEquals(JOBS, claimed.size());
+		assertEquals(JOBS, new HashSet<>(claimed).size(), "no job is claimed twice");
+		assertEquals(JOBS, jdbc.queryForObject("SELECT COUNT(*) FROM job_queue WHERE status='running' AND attempts=1", Integer.class));
+	}
+
+	@Test
+	void lockBatchHonoursTypesAndMarkErrorUnnestsMessages() {
+		List<JobItem> claimed = jobs.lockBatch(10, Set.of("execute"));
+		assertEquals(10, claimed.size());
+		assertTrue(claimed.stream().allMatch(j -> "execute".equals(j.jobType)));
+
+		List<UUID> ids = claimed.stream().map(j -> j.id).toList();
+		jobs.markError(ids.subList(0, 2), List.of("first", "second"));
+		jobs.markDone(ids.subList(2, 10));
+		assertEquals("first", jdbc.queryForObject("SELECT error FROM job_queue WHERE id=?", String.class, ids.get(0)));
+		assertEquals("second", jdbc.queryForObject("SELECT error FROM job_queue WHERE id=?", String.class, ids.get(1)));
+		assertEquals(8, jdbc.queryForObject("SELECT COUNT(*) FROM job_queue WHERE status='done'", Integer.class));
+	}
+
+	@Test
+	void lockBatchCapsEachTypeAtItsOwnLimit() {
+		List<JobItem> claimed = jobs.lockBatch(10, Map.of("publish", 1, "execute", 20));
+		assertEquals(10, claimed.size());
+		assertEquals(1, claimed.stream().filter(j -> "publish".equals(j.jobType)).count());
+		assertEquals(1, ds.takeCount(), "one statement for every type");
+		assertEquals(List.of(), jobs.lockBatch(10, Map.of("compile", 5)));
+	}
+}
@@ -0,0 +1,38 @@
+package com.alansf.apexzombiekiller;
+
+import com.alansf.apexzombiekiller.service.JsExecutionAdapter;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsExecutionAdapterTest {
+
+	@Test
+	void topLevelStateDoesNotCarryOverBetweenExecutions() throws Exception {
+		JsExecutionAdapter js = new JsExecutionAdapter();
+		try {
+			String counter = "let calls = 0;\n" +
+					"function run(payload) { calls++; globalThis.seen = (globalThis.seen || 0) + payload.n; return calls * 100 + seen; }";
+			js.warm("Counter", counter);
+			for (int i = 0; i < 5; i++) {
+				assertEquals(107, js.execute("Counter", counter, Map.of("n", 7)), "execution " + i);
+			}
+		} finally {
+			js.close();
+		}
+	}
+
+	@Test
+	void payloadBindingIsNotVisibleToTheNextCaller() throws Exception {
+		JsExecutionAdapter js = new JsExecutionAdapter();
+		try {
+			String echo = "var last;\nfunction run(p) { const before = last; last = p.secret; return before === undefined ? 'clean' : before; }";
+			assertEquals("clean", js.execute("Echo", echo, Map.of("secret", "caller-a")));
+			assertEquals("clean", js.execute("Echo", echo, Map.of("secret", "caller-b")));
+		} finally {
+			js.close();
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package com.alansf.apexzombiekiller;
+
+import com.alansf.apexzombiekiller.service.JavaExecutionAdapter;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsScrapeTest {
+
+	@Test
+	void compileAndInvokeTimersShowUpInPrometheusScrape() throws Exception {
+		PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+		JavaExecutionAdapter adapter = new JavaExecutionAdapter(null, "janino", registry);
+		String ok = "public class Ok { public Object run() { return 1; } }";
+		String boom = "public class Boom { public Object run() { throw new IllegalStateException(\"boom\"); } }";
+
+		adapter.execute("Ok", "Ok", ok, Map.of());
+		adapter.execute("Ok", "Ok", ok, Map.of());
+		assertThrows(IllegalStateException.class, () -> adapter.execute("Boom", "Boom", boom, Map.of()));
+
+		String scrape = registry.scrape();
+		assertTrue(scrape.contains("azk_compile_seconds_count{backend=\"janino\",outcome=\"success\"} 2"), scrape);
+		assertTrue(scrape.contains("azk_invoke_seconds_count{language=\"java\",outcome=\"success\"} 2"), scrape);
+		assertTrue(scrape.contains("azk_invoke_seconds_count{language=\"java\",outcome=\"error\"} 1"), scrape);
+	}
+}
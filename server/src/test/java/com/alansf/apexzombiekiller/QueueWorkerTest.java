@@ -0,0 +1,186 @@
+package com.alansf.apexzombiekiller;
+
+import com.alansf.apexzombiekiller.model.ExecutionAudit;
+import com.alansf.apexzombiekiller.model.JobItem;
+import com.alansf.apexzombiekiller.model.TransformedCode;
+import com.alansf.apexzombiekiller.repo.CodeRepository;
+import com.alansf.apexzombiekiller.repo.JobQueueRepository;
+import com.alansf.apexzombiekiller.service.ExecutionService;
+import com.alansf.apexzombiekiller.service.JavaExecutionAdapter;
+import com.alansf.apexzombiekiller.service.JsonUtils;
+import com.alansf.apexzombiekiller.service.PublishService;
+import com.alansf.apexzombiekiller.worker.QueueWorker;
+import com.alansf.apexzombiekiller.worker.WorkSignal;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueueWorkerTest {
+
+	/** In-memory queue standing in for job_queue. */
+	static class FakeQueue extends JobQueueRepository {
+		final Deque<JobItem> queued = new ArrayDeque<>();
+		final Set<UUID> done = ConcurrentHashMap.newKeySet();
+		final AtomicInteger claims = new AtomicInteger();
+
+		FakeQueue() { super(null); }
+
+		void add(String jobType, int count) {
+			for (int i = 0; i < count; i++) {
+				JobItem j = new JobItem();
+				j.id = UUID.randomUUID();
+				j.jobType = jobType;
+				j.targetName = "_test_";
+				queued.add(j);
+			}
+		}
+
+		@Override public List<JobItem> lockBatch(int n, Set<String> jobTypes) {
+			Map<String, Integer> perType = new HashMap<>();
+			(jobTypes.isEmpty() ? Set.of("compile", "publish", "execute") : jobTypes).forEach(t -> perType.put(t, n));
+			return lockBatch(n, perType);
+		}
+		@Override public synchronized List<JobItem> lockBatch(int n, Map<String, Integer> perType) {
+			claims.incrementAndGet();
+			Map<String, Integer> left = new HashMap<>(perType);
+			List<JobItem> out = new ArrayList<>();
+			for (var it = queued.iterator(); it.hasNext() && out.size() < n; ) {
+				JobItem j = it.next();
+				if (left.getOrDefault(j.jobType, 0) > 0) {
+					left.merge(j.jobType, -1, Integer::sum);
+					it.remove();
+					out.add(j);
+				}
+			}
+			return out;
+		}
+		@Override public void markDone(Collection<UUID> ids) { done.addAll(ids); }
+		@Override public void markError(List<UUID> ids, List<String> errors) { if (!ids.isEmpty()) fail(errors.toString()); }
+	}
+
+	@Test
+	void drainsBacklogInOneTickWithinPerTypeLimits() throws Exception {
+		FakeQueue queue = new FakeQueue();
+		queue.add("publish", 12);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger peak = new AtomicInteger();
+		PublishService publish = new PublishService(null) {
+			@Override public String queueRepublish() {
+				peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try { Thread.sleep(20); } catch (InterruptedException ignored) {}
+				running.decrementAndGet();
+				return "ok";
+			}
+		};
+		QueueWorker worker = new QueueWorker(queue, null, publish, null, null, null, null, new WorkSignal(), 2000, 50, 4, 4, 1, 2, 8);
+
+		worker.tick();
+		worker.shutdown();
+
+		assertEquals(12, queue.done.size());
+		assertTrue(queue.claims.get() >= 3, "claims up to the free slots per round trip and polls again at once");
+		assertEquals(2, peak.get(), "publish jobs are capped at worker.limits.publish");
+	}
+
+	@Test
+	void waitsForABusyTypeToFreeUpInsteadOfClaimingAgain() throws Exception {
+		CountDownLatch firstRunning = new CountDownLatch(1);
+		FakeQueue queue = new FakeQueue() {
+			@Override public List<JobItem> lockBatch(int n, Map<String, Integer> perType) {
+				// Later claims see the first publish job holding its type's only slot
+				if (claims.get() > 0) {
+					try { firstRunning.await(); } catch (InterruptedException ignored) {}
+				}
+				return super.lockBatch(n, perType);
+			}
+		};
+		queue.add("publish", 2);
+		PublishService publish = new PublishService(null) {
+			@Override public String queueRepublish() {
+				firstRunning.countDown();
+				try { Thread.sleep(1_000); } catch (InterruptedException ignored) {}
+				return "ok";
+			}
+		};
+		// One job per claim and one publish at a time, with global slots to spare while it runs
+		QueueWorker worker = new QueueWorker(queue, null, publish, null, null, null, null, new WorkSignal(), 2000, 50, 4, 1, 1, 1, 8);
+
+		long start = System.nanoTime();
+		worker.tick();
+		worker.shutdown();
+
+		assertEquals(2, queue.done.size());
+		assertTrue(System.nanoTime() - start < 3_500_000_000L, "a freed publish slot wakes the poller without the idle delay");
+		// A claim per job plus an empty one per freed publish slot; re-polling on a timer makes a dozen or more.
+		assertTrue(queue.claims.get() <= 6, "claims " + queue.claims.get());
+	}
+
+	@Test
+	void jobsOfATypeAtItsLimitDoNotHoldSlotsOtherTypesCouldUse() throws Exception {
+		FakeQueue queue = new FakeQueue();
+		queue.add("publish", 4);
+		queue.add("execute", 2);
+		JsonUtils.toMap("{}"); // loads Jackson, which execute jobs use, before anything is timed
+		List<Long> publishEnds = new CopyOnWriteArrayList<>();
+		List<Long> executeStarts = new CopyOnWriteArrayList<>();
+		PublishService publish = new PublishService(null) {
+			@Override public String queueRepublish() {
+				try { Thread.sleep(300); } catch (InterruptedException ignored) {}
+				publishEnds.add(System.nanoTime());
+				return "ok";
+			}
+		};
+		ExecutionService exec = new ExecutionService(null, null, null, null, null, null, null, null, 1, 1) {
+			@Override public ExecutionAudit executeByName(String name, Map<String, Object> payload) {
+				executeStarts.add(System.nanoTime());
+				return null;
+			}
+		};
+		// Four global slots, one publish at a time: the oldest four jobs are all publish jobs
+		QueueWorker worker = new QueueWorker(queue, null, publish, null, null, null, exec, new WorkSignal(), 2000, 50, 4, 4, 1, 1, 8);
+
+		worker.tick();
+		worker.shutdown();
+
+		assertEquals(6, queue.done.size());
+		assertEquals(2, executeStarts.size());
+		long firstPublishEnd = publishEnds.stream().min(Long::compare).orElseThrow();
+		assertTrue(executeStarts.stream().allMatch(t -> t < firstPublishEnd), "execute jobs should not wait behind queued publishes");
+	}
+
+	@Test
+	void compileJobForMissingCodeIsMarkedAsAnError() throws Exception {
+		Map<UUID, String> failed = new ConcurrentHashMap<>();
+		FakeQueue queue = new FakeQueue() {
+			@Override public void markError(List<UUID> ids, List<String> errors) {
+				for (int i = 0; i < ids.size(); i++) failed.put(ids.get(i), errors.get(i));
+			}
+		};
+		queue.add("compile", 1);
+		UUID id = queue.queued.peek().id;
+		CodeRepository noCode = new CodeRepository(null) {
+			@Override public Optional<TransformedCode> findByName(String name) { return Optional.empty(); }
+		};
+		QueueWorker worker = new QueueWorker(queue, noCode, null, new JavaExecutionAdapter(), null, null, null, new WorkSignal(), 2000, 50, 4, 4, 1, 1, 8);
+
+		worker.tick();
+		worker.shutdown();
+
+		assertEquals("Code not found: _test_", failed.get(id));
+		assertFalse(queue.done.contains(id));
+	}
+}
@@ -0,0 +1,119 @@
+package com.alansf.apexzombiekiller;
+
+import com.alansf.apexzombiekiller.service.SseDeltaDecoder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SseDeltaDecoderTest {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	// Multi-byte characters, JSON escapes and SSE-looking text all have to survive arbitrary splits.
+	private static final String[] PIECES = {
+		"public", " class", " X", " {", "\n", "    ", "\t", "}", "\"quoted\"", "back\\slash", "é", "中文", "😀",
+		"data: not a field", "[DONE]", "{", "\r\n", " ", "a", "// comment", "0"
+	};
+
+	@Test
+	void randomChunkSplitsDecodeToTheSameDeltas() throws Exception {
+		for (int seed = 0; seed < 500; seed++) {
+			Random random = new Random(seed);
+			List<String> expected = new ArrayList<>();
+			for (int i = 0, n = 1 + random.nextInt(40); i < n; i++) {
+				StringBuilder delta = new StringBuilder();
+				for (int j = 0, k = 1 + random.nextInt(3); j < k; j++) delta.append(PIECES[random.nextInt(PIECES.length)]);
+				expected.add(delta.toString());
+			}
+			byte[] stream = stream(expected, random);
+
+			List<String> decoded = new ArrayList<>();
+			SseDeltaDecoder decoder = new SseDeltaDecoder();
+			for (int off = 0; off < stream.length; ) {
+				int len = Math.min(stream.length - off, 1 + random.nextInt(random.nextBoolean() ? 8 : 96));
+				decoder.feed(stream, off, len, decoded::add);
+				off += len;
+			}
+			decoder.finish(decoded::add);
+			assertEquals(expected, decoded, "seed " + seed);
+		}
+	}
+
+	@Test
+	void readsNewlineDelimitedJsonAndFullMessages() {
+		String body = "{\"choices\":[{\"delta\":{\"content\":\"a\"}}]}\n" +
+				"{\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":\"b\"}}]}";
+		assertEquals(List.of("a", "b"), decodeAll(body));
+	}
+
+	@Test
+	void skipsMalformedEventsAndRoleOnlyDeltas() {
+		String body = "data: {\"choices\":[{\"delta\":{\"role\":\"assistant\"}}]}\n\n" +
+				"data: {\"choices\":[{\"delta\":{\"content\":\n\n" +
+				"data: {\"usage\":{\"total_tokens\":3},\"choices\":[{\"index\":0,\"delta\":{\"content\":\"ok\"}}]}\n\n" +
+				"data: [DONE]\n\n";
+		assertEquals(List.of("ok"), decodeAll(body));
+	}
+
+	@Test
+	void toleratesEventsWithoutBlankLines() {
+		String body = "data: {\"choices\":[{\"delta\":{\"content\":\"x\"}}]}\n" +
+				"data: {\"choices\":[{\"delta\":{\"content\":\"y\"}}]}\n";
+		assertEquals(List.of("x", "y"), decodeAll(body));
+	}
+
+	@Test
+	void decodesDataBuffersAndFlushesTheLastEvent() {
+		DefaultDataBufferFactory buffers = DefaultDataBufferFactory.sharedInstance;
+		byte[] bytes = "data: {\"choices\":[{\"delta\":{\"content\":\"é中\"}}]}".getBytes(StandardCharsets.UTF_8);
+		// Split inside the two-byte é
+		int cut = indexOf(bytes, (byte) 0xC3) + 1;
+		Flux<DataBuffer> body = Flux.just(
+				buffers.wrap(Arrays.copyOfRange(bytes, 0, cut)),
+				buffers.wrap(Arrays.copyOfRange(bytes, cut, bytes.length)));
+		assertEquals(List.of("é中"), SseDeltaDecoder.decode(body).collectList().block());
+	}
+
+	private static List<String> decodeAll(String body) {
+		List<String> out = new ArrayList<>();
+		SseDeltaDecoder decoder = new SseDeltaDecoder();
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		decoder.feed(bytes, 0, bytes.length, out::add);
+		decoder.finish(out::add);
+		return out;
+	}
+
+	/** A chat-completions stream as a provider writes it, with the framing variations SSE allows. */
+	private static byte[] stream(List<String> deltas, Random random) throws Exception {
+		String eol = random.nextBoolean() ? "\n" : "\r\n";
+		StringBuilder sb = new StringBuilder();
+		sb.append(": keep-alive").append(eol).append(eol);
+		sb.append("data: {\"id\":\"c1\",\"choices\":[{\"index\":0,\"delta\":{\"role\":\"assistant\"}}]}").append(eol).append(eol);
+		for (int i = 0; i < deltas.size(); i++) {
+			if (random.nextInt(4) == 0) sb.append("id: ").append(i).append(eol);
+			if (random.nextInt(4) == 0) sb.append("event: message").append(eol);
+			Map<String, Object> chunk = Map.of(
+					"id", "c1",
+					"object", "chat.completion.chunk",
+					"choices", List.of(Map.of("index", 0, "delta", Map.of("content", deltas.get(i)))));
+			sb.append(random.nextBoolean() ? "data: " : "data:").append(MAPPER.writeValueAsString(chunk)).append(eol).append(eol);
+		}
+		sb.append("data: [DONE]").append(eol);
+		if (random.nextBoolean()) sb.append(eol);
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int indexOf(byte[] bytes, byte b) {
+		for (int i = 0; i < bytes.length; i++) if (bytes[i] == b) return i;
+		return -1;
+	}
+}
@@ -0,0 +1,175 @@
+package com.alansf.apexzombiekiller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process stand-in for Managed Inference on a random local port. It serves
+ * {@code /v1/chat/completions} (SSE when the request asks to stream, JSON otherwise),
+ * {@code /v1/messages} and {@code /v1/infer}. Latency, chunking and failures are plain fields
+ * that may be changed while it runs. Every request is counted per path, and the number served
+ * at once is tracked.
+ */
+class StubInferenceServer implements AutoCloseable {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	/** Generated code returned by every path; streamed answers split it into {@link #chunks} deltas. */
+	volatile String answer = "public class Stub {\n    public Object run(java.util.Map<String, Object> payload) {\n        return payload;\n    }\n}\n";
+	/** Delay before the first byte of every answer. */
+	volatile Duration latency = Duration.ZERO;
+	volatile int chunks = 4;
+	/** Delay between streamed deltas. */
+	volatile Duration chunkGap = Duration.ZERO;
+	/** When positive, each SSE event is written in pieces of this many bytes, flushed separately. */
+	volatile int fragmentBytes;
+	/** When positive, every Nth request (counted across paths) is answered with {@link #errorStatus}. */
+	volatile int errorEvery;
+	volatile int errorStatus = 500;
+	/** When positive, every Nth streamed answer is cut off halfway through. */
+	volatile int abortEvery;
+	/** Paths answered with 404, as when a schema variant does not exist. */
+	volatile Set<String> missing = Set.of();
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+	private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger streams = new AtomicInteger();
+	private final AtomicInteger injectedErrors = new AtomicInteger();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+
+	private StubInferenceServer(HttpServer server) {
+		this.server = server;
+	}
+
+	static StubInferenceServer start() {
+		try {
+			StubInferenceServer stub = new StubInferenceServer(HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0));
+			// One thread per request, so a slow or stalled answer never holds up the others.
+			stub.server.setExecutor(stub.executor);
+			for (String path : List.of("/v1/chat/completions", "/v1/messages", "/v1/infer")) {
+				stub.server.createContext(path, stub::handle);
+			}
+			stub.server.start();
+			return stub;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Base URL, to be configured as the inference endpoint. */
+	String url() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	int hits(String path) {
+		return hits.getOrDefault(path, new AtomicInteger()).get();
+	}
+
+	int injectedErrors() {
+		return injectedErrors.get();
+	}
+
+	int maxInFlight() {
+		return maxInFlight.get();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange ex) throws IOException {
+		String path = ex.getHttpContext().getPath();
+		hits.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+		maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+		try {
+			String request = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+			int n = requests.incrementAndGet();
+			sleep(latency);
+			if (missing.contains(path)) {
+				respond(ex, 404, "{\"error\":\"not found\"}");
+			} else if (errorEvery > 0 && n % errorEvery == 0) {
+				injectedErrors.incrementAndGet();
+				respond(ex, errorStatus, "{\"error\":\"injected\"}");
+			} else if (path.equals("/v1/chat/completions") && MAPPER.readTree(request).path("stream").asBoolean()) {
+				stream(ex);
+			} else if (path.equals("/v1/infer")) {
+				respond(ex, 200, MAPPER.writeValueAsString(Map.of("output", answer)));
+			} else {
+				respond(ex, 200, MAPPER.writeValueAsString(Map.of("choices", List.of(Map.of("message", Map.of("role", "assistant", "content", answer))))));
+			}
+		} finally {
+			inFlight.decrementAndGet();
+		}
+	}
+
+	private void stream(HttpExchange ex) throws IOException {
+		String code = answer;
+		int pieces = Math.max(1, Math.min(chunks, code.length()));
+		boolean abort = abortEvery > 0 && streams.incrementAndGet() % abortEvery == 0;
+		ex.getResponseHeaders().set("Content-Type", "text/event-stream");
+		try (OutputStream body = ex.getResponseBody()) {
+			ex.sendResponseHeaders(200, 0);
+			for (int i = 0; i < pieces; i++) {
+				if (abort && i == pieces / 2) return;
+				if (i > 0) sleep(chunkGap);
+				String delta = code.substring(code.length() * i / pieces, code.length() * (i + 1) / pieces);
+				Map<String, Object> event = Map.of("object", "chat.completion.chunk",
+						"choices", List.of(Map.of("index", 0, "delta", Map.of("content", delta))));
+				write(body, "data: " + MAPPER.writeValueAsString(event) + "\n\n");
+			}
+			write(body, "data: [DONE]\n\n");
+		} catch (IOException cancelled) {
+			// the client hung up: a losing probe, a hedge, or a cancelled stream
+		}
+	}
+
+	private void write(OutputStream body, String event) throws IOException {
+		byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+		int step = fragmentBytes > 0 ? fragmentBytes : bytes.length;
+		for (int off = 0; off < bytes.length; off += step) {
+			body.write(bytes, off, Math.min(step, bytes.length - off));
+			body.flush();
+		}
+	}
+
+	private static void respond(HttpExchange ex, int status, String body) {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type", "application/json");
+		try {
+			ex.sendResponseHeaders(status, bytes.length);
+			ex.getResponseBody().write(bytes);
+		} catch (IOException cancelled) {
+			// the client already hung up
+		} finally {
+			ex.close();
+		}
+	}
+
+	private static void sleep(Duration d) {
+		if (d.isZero()) return;
+		try {
+			Thread.sleep(d);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
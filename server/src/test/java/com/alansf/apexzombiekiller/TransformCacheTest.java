@@ -0,0 +1,223 @@
+package com.alansf.apexzombiekiller;
+
+import com.alansf.apexzombiekiller.model.TransformRequest;
+import com.alansf.apexzombiekiller.model.TransformResponse;
+import com.alansf.apexzombiekiller.repo.TransformCacheRepository;
+import com.alansf.apexzombiekiller.service.InferenceClient;
+import com.alansf.apexzombiekiller.service.TransformCache;
+import com.alansf.apexzombiekiller.service.TransformService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransformCacheTest {
+
+	/** Counts calls instead of reaching a real endpoint; {@code gate} holds callers until released. */
+	static class CountingInference extends InferenceClient {
+		final AtomicInteger calls = new AtomicInteger();
+		volatile String answer = "public class Converted {}";
+		volatile List<String> streamed = List.of("public ", "class S {", "\n", "}");
+		volatile CountDownLatch gate;
+		volatile String prompts = "p1";
+
+		CountingInference(String model) {
+			super(new SimpleMeterRegistry(), "http://inference.invalid", model, null, false, 20);
+		}
+
+		@Override public Optional<String> apexToJava(String apexCode, boolean useHerokuConnect, boolean generateTests) {
+			calls.incrementAndGet();
+			try {
+				if (gate != null) gate.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return Optional.ofNullable(answer);
+		}
+
+		@Override public String promptVersion() {
+			return prompts;
+		}
+
+		@Override public Flux<String> streamTransform(String target, String apexCode, boolean useHerokuConnect, boolean generateTests) {
+			calls.incrementAndGet();
+			return Flux.fromIterable(streamed);
+		}
+
+		@Override public Optional<String> apexToJs(String apexCode, boolean useHerokuConnect, boolean generateTests) {
+			return apexToJava(apexCode, useHerokuConnect, generateTests);
+		}
+	}
+
+	/** Stands in for the transform_cache table. */
+	static class MapRepository extends TransformCacheRepository {
+		final Map<String, TransformResponse> rows = new ConcurrentHashMap<>();
+
+		MapRepository() { super(null); }
+
+		@Override public Optional<TransformResponse> find(String key, Duration maxAge) { return Optional.ofNullable(rows.get(key)); }
+		@Override public void save(String key, String target, String model, TransformResponse r) { rows.putIfAbsent(key, r); }
+		@Override public int deleteOlderThan(Duration maxAge) { return 0; }
+	}
+
+	private static TransformRequest request(String apex, boolean generateTests) {
+		TransformRequest req = new TransformRequest();
+		req.apexCode = apex;
+		req.options = new TransformRequest.Options();
+		req.options.generateTests = generateTests;
+		return req;
+	}
+
+	@Test
+	void identicalApexIsSentToInferenceOnce() {
+		CountingInference inference = new CountingInference("m1");
+		TransformService svc = new TransformService(inference, new TransformCache());
+
+		TransformService.Transformed first = svc.transform("java", request("global class X {\n  void a() {}\n}", false));
+		TransformService.Transformed second = svc.transform("java", request("global class X {  \r\n  void a() {}\r\n}\r\n", false));
+
+		assertEquals("MISS", first.cacheStatus());
+		assertEquals("HIT", second.cacheStatus());
+		assertEquals("memory", second.cacheTier());
+		assertEquals(first.response().javaCode, second.response().javaCode);
+		assertEquals(1, inference.calls.get());
+
+		assertEquals("MISS", svc.transform("java", request("global class X {\n  void a() {}\n}", true)).cacheStatus());
+		assertEquals("MISS", svc.transform("js", request("global class X {\n  void a() {}\n}", false)).cacheStatus());
+		assertEquals(3, inference.calls.get());
+	}
+
+	@Test
+	void streamedResultIsCachedForLaterRequests() throws Exception {
+		CountingInference inference = new CountingInference("m1");
+		TransformService svc = new TransformService(inference, new TransformCache());
+
+		TransformService.Streaming first = svc.stream("java", request("global class S {}", false));
+		assertEquals("MISS", first.cacheStatus());
+		List<TransformService.StreamEvent> events = first.events().collectList().block();
+		assertEquals(5, events.size());
+		assertEquals("Generated via Managed Inference", events.get(4).notes());
+		assertEquals("MISS", events.get(4).cacheStatus());
+
+		// The streamed code is stored off the event loop; wait for it to land.
+		TransformService.Transformed later = null;
+		for (int i = 0; i < 100 && (later == null || !"HIT".equals(later.cacheStatus())); i++) {
+			Thread.sleep(20);
+			later = svc.transform("java", request("global class S {}", false));
+		}
+		assertEquals("HIT", later.cacheStatus());
+		assertEquals("public class S {\n}", later.response().javaCode);
+
+		TransformService.Streaming replay = svc.stream("java", request("global class S {}", false));
+		assertEquals("HIT", replay.cacheStatus());
+		assertEquals("public class S {\n}", replay.events().blockFirst().delta());
+		assertEquals("HIT", replay.events().blockLast().cacheStatus());
+		assertEquals(1, inference.calls.get());
+	}
+
+	@Test
+	void emptyStreamFallsBackAndReportsBypass() {
+		CountingInference inference = new CountingInference("m1");
+		inference.streamed = List.of();
+		TransformService svc = new TransformService(inference, new TransformCache());
+
+		TransformService.Streaming s = svc.stream("java", request("global class E {}", false));
+		List<TransformService.StreamEvent> events = s.events().collectList().block();
+		assertTrue(events.get(0).delta().contains("ConvertedFromApex"));
+		TransformService.StreamEvent done = events.get(events.size() - 1);
+		assertNull(done.delta());
+		assertEquals("BYPASS", done.cacheStatus(), "same status as the non-streaming fallback");
+
+		inference.answer = null;
+		assertEquals("BYPASS", svc.transform("java", request("global class E {}", false)).cacheStatus());
+	}
+
+	@Test
+	void modelIdIsPartOfTheKey() {
+		assertNotEquals(TransformCache.key("java", "class A {}", false, false, "m1", "p1"),
+				TransformCache.key("java", "class A {}", false, false, "m2", "p1"));
+	}
+
+	@Test
+	void editedPromptsAreNotServedTheOldOutput() {
+		MapRepository table = new MapRepository();
+		CountingInference inference = new CountingInference("m1");
+		new TransformService(inference, new TransformCache(table, 500, 1_000_000)).transform("java", request("global class P {}", false));
+
+		inference.prompts = "p2";
+		TransformService redeployed = new TransformService(inference, new TransformCache(table, 500, 1_000_000));
+		assertEquals("MISS", redeployed.transform("java", request("global class P {}", false)).cacheStatus());
+		assertEquals(2, inference.calls.get());
+	}
+
+	@Test
+	void fallbackStubsAreNotCached() {
+		CountingInference inference = new CountingInference("m1");
+		inference.answer = null;
+		TransformService svc = new TransformService(inference, new TransformCache());
+
+		TransformService.Transformed first = svc.transform("java", request("global class Y {}", false));
+		assertEquals("BYPASS", first.cacheStatus());
+		assertTrue(first.response().javaCode.contains("ConvertedFromApex"));
+
+		inference.answer = "public class Y {}";
+		assertEquals("MISS", svc.transform("java", request("global class Y {}", false)).cacheStatus());
+		assertEquals(2, inference.calls.get());
+	}
+
+	@Test
+	void anotherDynoReadsThroughThePostgresTier() {
+		MapRepository table = new MapRepository();
+		CountingInference inference = new CountingInference("m1");
+		new TransformService(inference, new TransformCache(table, 500, 1_000_000)).transform("java", request("global class Z {}", false));
+
+		TransformService otherDyno = new TransformService(inference, new TransformCache(table, 500, 1_000_000));
+		TransformService.Transformed t = otherDyno.transform("java", request("global class Z {}", false));
+		assertEquals("HIT", t.cacheStatus());
+		assertEquals("postgres", t.cacheTier());
+		assertEquals("memory", otherDyno.transform("java", request("global class Z {}", false)).cacheTier());
+		assertEquals(1, inference.calls.get());
+	}
+
+	@Test
+	void concurrentIdenticalRequestsShareOneInferenceCall() throws Exception {
+		CountingInference inference = new CountingInference("m1");
+		inference.gate = new CountDownLatch(1);
+		TransformService svc = new TransformService(inference, new TransformCache());
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<TransformService.Transformed>> results = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				results.add(pool.submit(() -> svc.transform("java", request("global class W {}", false))));
+			}
+			while (inference.calls.get() == 0) Thread.sleep(5);
+			Thread.sleep(100); // give the others time to find the call in flight
+			inference.gate.countDown();
+
+			long misses = 0;
+			for (Future<TransformService.Transformed> f : results) {
+				TransformService.Transformed t = f.get(5, TimeUnit.SECONDS);
+				assertEquals("public class Converted {}", t.response().javaCode);
+				if ("MISS".equals(t.cacheStatus())) misses++;
+			}
+			assertEquals(1, misses);
+			assertEquals(1, inference.calls.get());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
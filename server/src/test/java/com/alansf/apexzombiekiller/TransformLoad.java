@@ -0,0 +1,209 @@
+package com.alansf.apexzombiekiller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Open-loop load on one {@code /transform/*} endpoint. Requests start on a fixed schedule
+ * whether or not earlier ones have finished. Latency is measured from the scheduled start, so a
+ * stalled server shows up in the percentiles instead of lowering the request rate. Each request
+ * sends distinct Apex, so every one misses the transform cache. While the load runs, the threads
+ * of this JVM are sampled by pool; that is only meaningful when the server runs in-process.
+ */
+final class TransformLoad {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final String APEX = "public with sharing class LoadProbe {\n" +
+			"    public static void run(List<Account> accounts) {\n" +
+			"        for (Account a : accounts) { a.Description = 'probe'; }\n" +
+			"        update accounts;\n" +
+			"    }\n" +
+			"}\n";
+
+	/** Latencies in milliseconds; {@code firstDelta} is set for stream endpoints only. */
+	record Report(String path, int rps, int sent, int ok, Map<String, Integer> failures, double achievedRps,
+	              long[] latency, long[] firstDelta, Map<String, Integer> peakThreads, int peakLiveThreads) {
+
+		double errorRate() {
+			return sent == 0 ? 0 : (sent - ok) / (double) sent;
+		}
+
+		long percentile(double p) {
+			return TransformLoad.percentile(latency, p);
+		}
+
+		String format() {
+			StringBuilder sb = new StringBuilder(String.format(
+					"%s @ %d rps: sent=%d ok=%d errors=%.1f%% achieved=%.1f rps latency p50=%d p90=%d p99=%d max=%d ms",
+					path, rps, sent, ok, errorRate() * 100, achievedRps,
+					percentile(0.50), percentile(0.90), percentile(0.99), percentile(1.0)));
+			if (firstDelta.length > 0) {
+				sb.append(String.format(" first delta p50=%d p99=%d ms",
+						TransformLoad.percentile(firstDelta, 0.50), TransformLoad.percentile(firstDelta, 0.99)));
+			}
+			if (!failures.isEmpty()) sb.append(" failures=").append(failures);
+			return sb.append(" peak threads=").append(peakThreads).append(" live=").append(peakLiveThreads).toString();
+		}
+	}
+
+	private TransformLoad() {}
+
+	/** Sends {@code rps} requests a second to {@code base + path} for {@code duration}, then waits for the stragglers. */
+	static Report run(String base, String path, int rps, Duration duration) throws Exception {
+		boolean streaming = path.endsWith("/stream");
+		int total = (int) Math.max(1, duration.toMillis() * rps / 1000);
+		long periodNanos = 1_000_000_000L / rps;
+		String run = Long.toHexString(System.nanoTime());
+		ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+		ConcurrentLinkedQueue<Long> firstDeltas = new ConcurrentLinkedQueue<>();
+		Map<String, Integer> failures = new ConcurrentHashMap<>();
+		AtomicInteger ok = new AtomicInteger();
+		List<CompletableFuture<?>> pending = new ArrayList<>(total);
+		ThreadSampler sampler = new ThreadSampler();
+
+		try (HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(5)).build();
+		     ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor();
+		     // Two threads, so sampling stacks never delays a scheduled send
+		     ScheduledExecutorService ticker = Executors.newScheduledThreadPool(2)) {
+			AtomicInteger sent = new AtomicInteger();
+			long start = System.nanoTime();
+			ScheduledFuture<?> sampling = ticker.scheduleAtFixedRate(sampler::sample, 0, 50, TimeUnit.MILLISECONDS);
+			CompletableFuture<Void> allSent = new CompletableFuture<>();
+			ScheduledFuture<?> sending = ticker.scheduleAtFixedRate(() -> {
+				int i = sent.getAndIncrement();
+				if (i >= total) {
+					allSent.complete(null);
+					return;
+				}
+				long scheduled = start + i * periodNanos;
+				HttpRequest request = HttpRequest.newBuilder(URI.create(base + path))
+						.timeout(Duration.ofSeconds(60))
+						.header("Content-Type", "application/json")
+						.POST(HttpRequest.BodyPublishers.ofString(body(run, i)))
+						.build();
+				synchronized (pending) {
+					pending.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofLines())
+							.thenAcceptAsync(res -> {
+								long first = -1;
+								boolean done = !streaming;
+								try (Stream<String> lines = res.body()) {
+									for (String line : (Iterable<String>) lines::iterator) {
+										if (first < 0 && line.startsWith("event:delta")) first = System.nanoTime();
+										if (line.startsWith("event:done")) done = true;
+									}
+								}
+								long end = System.nanoTime();
+								if (res.statusCode() != 200) {
+									failures.merge("http_" + res.statusCode(), 1, Integer::sum);
+								} else if (!done) {
+									failures.merge("no_done_event", 1, Integer::sum);
+								} else {
+									ok.incrementAndGet();
+								}
+								latencies.add((end - scheduled) / 1_000_000);
+								if (first > 0) firstDeltas.add((first - scheduled) / 1_000_000);
+							}, readers)
+							.exceptionally(e -> {
+								Throwable cause = e.getCause() != null ? e.getCause() : e;
+								failures.merge(cause.getClass().getSimpleName(), 1, Integer::sum);
+								latencies.add((System.nanoTime() - scheduled) / 1_000_000);
+								return null;
+							}));
+				}
+			}, 0, periodNanos, TimeUnit.NANOSECONDS);
+
+			allSent.get(duration.toMillis() + 30_000, TimeUnit.MILLISECONDS);
+			sending.cancel(false);
+			double elapsed = (System.nanoTime() - start) / 1e9;
+			CompletableFuture<?>[] all;
+			synchronized (pending) {
+				all = pending.toArray(CompletableFuture[]::new);
+			}
+			CompletableFuture.allOf(all).get(90, TimeUnit.SECONDS);
+			sampling.cancel(false);
+			sampler.sample();
+
+			return new Report(path, rps, total, ok.get(), new TreeMap<>(failures), total / elapsed,
+					sorted(latencies), sorted(firstDeltas), sampler.peaks(), sampler.peakLive());
+		}
+	}
+
+	private static String body(String run, int i) {
+		try {
+			// The trailing comment makes every source, and so every cache key, unique.
+			return MAPPER.writeValueAsString(Map.of("apexCode", APEX + "// load run " + run + " request " + i + "\n",
+					"options", Map.of("useHerokuConnect", false, "generateTests", false)));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static long[] sorted(ConcurrentLinkedQueue<Long> values) {
+		long[] out = values.stream().mapToLong(Long::longValue).toArray();
+		Arrays.sort(out);
+		return out;
+	}
+
+	static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) return 0;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1))];
+	}
+
+	/**
+	 * Peak threads per pool: Tomcat request threads and Reactor's bounded elastic workers that are
+	 * busy (not waiting for a task), and live Netty event loops.
+	 */
+	private static final class ThreadSampler {
+		private final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		private final Map<String, Integer> peaks = new ConcurrentHashMap<>();
+		private volatile int peakLive;
+
+		void sample() {
+			Map<String, Integer> now = new TreeMap<>();
+			for (Map.Entry<Thread, StackTraceElement[]> e : Thread.getAllStackTraces().entrySet()) {
+				String pool = pool(e.getKey().getName());
+				if (pool == null) continue;
+				boolean idle = Arrays.stream(e.getValue()).anyMatch(f -> f.getMethodName().equals("getTask"));
+				if (!idle || pool.equals("netty")) now.merge(pool, 1, Integer::sum);
+			}
+			now.forEach((pool, n) -> peaks.merge(pool, n, Math::max));
+			peakLive = Math.max(peakLive, mx.getThreadCount());
+		}
+
+		Map<String, Integer> peaks() {
+			return new TreeMap<>(peaks);
+		}
+
+		int peakLive() {
+			return peakLive;
+		}
+
+		private static String pool(String name) {
+			if (name.startsWith("http-nio-") && name.contains("-exec-")) return "tomcat";
+			if (name.startsWith("reactor-http-")) return "netty";
+			if (name.startsWith("boundedElastic-")) return "boundedElastic";
+			return null;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.alansf.apexzombiekiller;
+
+import com.alansf.apexzombiekiller.controller.TransformController;
+import com.alansf.apexzombiekiller.service.InferenceClient;
+import com.alansf.apexzombiekiller.service.OpenApiService;
+import com.alansf.apexzombiekiller.service.TransformCache;
+import com.alansf.apexzombiekiller.service.TransformService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Drives the transform endpoints at a fixed request rate against {@link StubInferenceServer}
+ * and logs latency percentiles, error rates and peak thread use for each. Only the transform
+ * path is started, with an in-memory cache and no database. Each endpoint is warmed up first,
+ * since a cold JVM queues the first second of requests behind class loading and JIT. Runs only
+ * when asked for, e.g. {@code mvn test -Dtest=TransformLoadTest -Dload.rps=20}; tune it with
+ * {@code -Dload.seconds}, {@code -Dload.latency-ms} and {@code -Dload.error-every}.
+ */
+@EnabledIfSystemProperty(named = "load.rps", matches = "[1-9][0-9]*")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = TransformLoadTest.TransformSlice.class)
+class TransformLoadTest {
+	private static final Logger log = LoggerFactory.getLogger(TransformLoadTest.class);
+	private static final int RPS = Integer.getInteger("load.rps", 20);
+	private static final Duration DURATION = Duration.ofSeconds(Integer.getInteger("load.seconds", 3));
+	private static final Duration WARMUP = Duration.ofSeconds(2);
+	private static final List<String> PATHS = List.of("/transform/apex-to-java", "/transform/apex-to-java/stream");
+
+	// Started before the Spring context, whose inference client points at it
+	static StubInferenceServer stub;
+
+	// Not a @SpringBootConfiguration, so other tests still find DemoApplication alone; as a class nested
+	// in a test, component scanning skips it.
+	@Configuration(proxyBeanMethods = false)
+	@EnableAutoConfiguration(exclude = DataSourceAutoConfiguration.class)
+	@Import(TransformController.class)
+	static class TransformSlice {
+		@Bean
+		InferenceClient inferenceClient(MeterRegistry meters) {
+			return new InferenceClient(meters, stub.url(), "stub-model", null, false, 20);
+		}
+
+		@Bean
+		TransformCache transformCache() {
+			return new TransformCache();
+		}
+
+		@Bean
+		TransformService transformService(InferenceClient inference, TransformCache cache) {
+			return new TransformService(inference, cache);
+		}
+
+		@Bean
+		OpenApiService openApiService() {
+			return new OpenApiService(null, null);
+		}
+	}
+
+	@LocalServerPort
+	int port;
+
+	@BeforeAll
+	static void startStub() {
+		stub = StubInferenceServer.start();
+	}
+
+	@AfterAll
+	static void stopStub() {
+		stub.close();
+	}
+
+	@Test
+	void transformEndpointsUnderSteadyLoad() throws Exception {
+		stub.latency = Duration.ofMillis(Integer.getInteger("load.latency-ms", 200));
+		stub.chunks = 8;
+		stub.chunkGap = Duration.ofMillis(25);
+		stub.fragmentBytes = 16;
+		// Heroku Managed Inference serves chat completions only
+		stub.missing = Set.of("/v1/messages", "/v1/infer");
+		String base = "http://127.0.0.1:" + port;
+		for (String path : PATHS) TransformLoad.run(base, path, RPS, WARMUP);
+
+		stub.errorEvery = Integer.getInteger("load.error-every", 10);
+		for (String path : PATHS) {
+			TransformLoad.Report report = TransformLoad.run(base, path, RPS, DURATION);
+			log.info(report.format());
+
+			// Injected inference failures are retried or re-probed; none should reach the caller.
+			assertEquals(0, report.errorRate(), report.format());
+			assertTrue(report.achievedRps() > RPS * 0.8, report.format());
+		}
+		log.info("stub: chat={} messages={} infer={} injected errors={} max concurrent={}",
+				stub.hits("/v1/chat/completions"), stub.hits("/v1/messages"), stub.hits("/v1/infer"),
+				stub.injectedErrors(), stub.maxInFlight());
+		if (stub.errorEvery > 0) assertTrue(stub.injectedErrors() > 0);
+	}
+}
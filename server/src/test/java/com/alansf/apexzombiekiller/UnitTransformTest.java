@@ -0,0 +1,154 @@
+package com.alansf.apexzombiekiller;
+
+import com.alansf.apexzombiekiller.model.TransformRequest;
+import com.alansf.apexzombiekiller.service.ApexUnits;
+import com.alansf.apexzombiekiller.service.InferenceClient;
+import com.alansf.apexzombiekiller.service.JavaExecutionAdapter;
+import com.alansf.apexzombiekiller.service.TransformCache;
+import com.alansf.apexzombiekiller.service.TransformService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UnitTransformTest {
+	private static final Pattern METHOD = Pattern.compile("(?:void|Integer)\\s+(\\w+)\\s*\\(");
+
+	/**
+	 * Answers unit prompts the way a model would: each Apex method {@code m} becomes
+	 * {@code int m()} returning its position, and the outline's run() adds them up.
+	 */
+	static class UnitInference extends InferenceClient {
+		final List<String> converted = new CopyOnWriteArrayList<>();
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+
+		UnitInference() {
+			super(new SimpleMeterRegistry(), "http://inference.invalid", "m1", null, false, 20);
+		}
+
+		@Override public Optional<String> apexOutlineToJava(String outline, boolean useHerokuConnect, boolean generateTests) {
+			return slowly("outline", () -> {
+				StringBuilder sum = new StringBuilder("0");
+				Matcher m = METHOD.matcher(outline);
+				while (m.find()) sum.append(" + ").append(m.group(1)).append("()");
+				return "```java\npackage com.demo.jobs;\n\nimport java.util.Map;\n\npublic class Big {\n" +
+						"    public Big() {}\n\n" +
+						"    public Object run(Map payload) {\n        return Integer.valueOf(" + sum + ");\n    }\n}\n```";
+			});
+		}
+
+		@Override public Optional<String> apexMemberToJava(String outline, String member, boolean useHerokuConnect) {
+			if (member.contains("class Row")) return slowly("Row", () -> "public static class Row {\n    public String id;\n}");
+			Matcher m = METHOD.matcher(member);
+			if (!m.find()) return slowly("Big", () -> "public Big(Integer count) {\n}");
+			String name = m.group(1);
+			return slowly(name, () -> "import java.util.Map;\nimport java.util.List;\n\n" +
+					"    int " + name + "() {\n        return " + name.substring(1) + ";\n    }");
+		}
+
+		@Override public Optional<String> apexToJava(String apexCode, boolean useHerokuConnect, boolean generateTests) {
+			converted.add("whole");
+			return Optional.of("public class Whole {}");
+		}
+
+		private Optional<String> slowly(String what, Supplier<String> code) {
+			maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(50);
+				converted.add(what);
+				return Optional.of(code.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return Optional.empty();
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	private static String bigClass(int methods, String changedBody) {
+		StringBuilder sb = new StringBuilder("/** Nightly rollup. */\npublic with sharing class Big {\n");
+		sb.append("    private static final Map<String, Integer> LIMITS = new Map<String, Integer>{ 'a' => 1, 'b' => 2 };\n");
+		sb.append("    public Integer count { get; set; }\n");
+		sb.append("    public Big(Integer count) { this.count = count; }\n");
+		for (int i = 0; i < methods; i++) {
+			sb.append("\n    // Rolls up bucket ").append(i).append(" }\n");
+			sb.append("    @TestVisible\n    private Integer m").append(i).append("(List<Account> rows) {\n");
+			sb.append("        String s = '{ not a brace }';\n");
+			sb.append(i == 3 && changedBody != null ? changedBody : "        return rows.size();\n");
+			sb.append("    }\n");
+		}
+		sb.append("    public class Row { public Id id; }\n");
+		return sb.append("}\n").toString();
+	}
+
+	private static TransformRequest request(String apex) {
+		TransformRequest req = new TransformRequest();
+		req.apexCode = apex;
+		return req;
+	}
+
+	@Test
+	void splitsMembersAndKeepsStateInTheOutline() {
+		ApexUnits.Split split = ApexUnits.split(bigClass(3, null)).orElseThrow();
+		assertEquals("Big", split.className());
+		assertEquals(List.of("constructor:Big", "method:m0", "method:m1", "method:m2", "type:Row"),
+				split.units().stream().map(u -> u.kind() + ":" + u.name()).toList());
+		assertTrue(split.units().get(1).source().startsWith("    // Rolls up bucket 0 }\n    @TestVisible"));
+		assertTrue(split.state().contains("'a' => 1"));
+		assertTrue(split.state().contains("count { get; set; }"));
+		assertTrue(split.outline().contains("@TestVisible private Integer m1(List<Account> rows) { /* converted separately */ }"));
+		assertFalse(split.outline().contains("rows.size()"));
+
+		assertTrue(ApexUnits.split("trigger T on Account (before insert) { for (Account a : Trigger.new) {} }").isEmpty());
+		assertTrue(ApexUnits.split("public class A { void a() {} }\npublic class B {}").isEmpty());
+	}
+
+	@Test
+	void largeClassIsConvertedInParallelUnitsAndStitchedIntoOneClass() throws Exception {
+		UnitInference inference = new UnitInference();
+		TransformService svc = new TransformService(inference, new TransformCache(), 500, 3);
+
+		TransformService.Transformed t = svc.transform("java", request(bigClass(8, null)));
+
+		assertEquals("MISS", t.cacheStatus());
+		assertFalse(inference.converted.contains("whole"));
+		assertEquals(11, inference.converted.size()); // outline, constructor, 8 methods, inner class
+		assertTrue(inference.maxInFlight.get() > 1 && inference.maxInFlight.get() <= 3, "in flight " + inference.maxInFlight.get());
+		String java = t.response().javaCode;
+		assertFalse(java.contains("```"));
+		assertEquals(1, java.split("import java.util.Map;", -1).length - 1);
+		assertTrue(java.startsWith("import java.util.Map;\nimport java.util.List;\n"));
+		assertEquals(0 + 1 + 2 + 3 + 4 + 5 + 6 + 7, new JavaExecutionAdapter().execute("Big", java));
+	}
+
+	@Test
+	void editingOneMethodOnlyConvertsThatMethodAgain() {
+		UnitInference inference = new UnitInference();
+		TransformService svc = new TransformService(inference, new TransformCache(), 500, 4);
+		svc.transform("java", request(bigClass(6, null)));
+		inference.converted.clear();
+
+		TransformService.Transformed edited = svc.transform("java", request(bigClass(6, "        return rows.size() * 2;\n")));
+
+		assertEquals("MISS", edited.cacheStatus());
+		assertEquals(List.of("m3"), inference.converted);
+	}
+
+	@Test
+	void smallSourcesAreConvertedWhole() {
+		UnitInference inference = new UnitInference();
+		TransformService svc = new TransformService(inference, new TransformCache(), 1_000_000, 4);
+		assertEquals("public class Whole {}", svc.transform("java", request(bigClass(8, null))).response().javaCode);
+		assertEquals(List.of("whole"), inference.converted);
+	}
+}